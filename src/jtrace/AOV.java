@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace;
+
+/**
+ * Arbitrary output variables: per-pixel quantities which can be recorded
+ * alongside the rendered image.  All except LIGHTS are taken from the
+ * first collision of the camera rays through each pixel.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public enum AOV {
+    
+    /**
+     * Distance from camera to first hit.
+     */
+    DEPTH,
+    
+    /**
+     * Scene frame surface normal at first hit.
+     */
+    NORMAL,
+    
+    /**
+     * Index of first hit object in the scene's object list.
+     */
+    OBJECT_ID,
+    
+    /**
+     * Pigment colour at first hit.
+     */
+    ALBEDO,
+    
+    /**
+     * Contribution of each light source to the direct illumination of the
+     * first hit, with one RGB buffer per light.
+     */
+    LIGHTS
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import jtrace.object.SceneObject;
+import jtrace.texture.Texture;
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+/**
+ * Accumulates the requested AOVs over the samples traced through a pixel
+ * and writes their averages to the frame buffer.  Only created when at
+ * least one AOV is requested, so rendering without AOVs does no extra
+ * work.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+class AOVRecorder {
+    
+    boolean depth, normal, objectId, albedo, lights;
+    
+    Map<SceneObject,Integer> objectIndices;
+    Map<LightSource,Integer> lightIndices;
+    
+    double[] normalSum, albedoSum, lightSum;
+    double depthSum;
+    int nHits, firstObjectId;
+    
+    AOVRecorder(Set<AOV> aovs, Scene scene) {
+        depth = aovs.contains(AOV.DEPTH);
+        normal = aovs.contains(AOV.NORMAL);
+        objectId = aovs.contains(AOV.OBJECT_ID);
+        albedo = aovs.contains(AOV.ALBEDO);
+        lights = aovs.contains(AOV.LIGHTS);
+        
+        normalSum = new double[3];
+        albedoSum = new double[3];
+        
+        if (objectId) {
+            objectIndices = new IdentityHashMap<>();
+            for (int i=0; i<scene.getSceneObjects().size(); i++)
+                objectIndices.put(scene.getSceneObjects().get(i), i);
+        }
+        
+        if (lights) {
+            lightIndices = new IdentityHashMap<>();
+            for (int i=0; i<scene.getLightSources().size(); i++)
+                lightIndices.put(scene.getLightSources().get(i), i);
+            lightSum = new double[3*scene.getLightSources().size()];
+        }
+    }
+    
+    /**
+     * Reset accumulators at start of pixel.
+     */
+    void startPixel() {
+        for (int j=0; j<3; j++) {
+            normalSum[j] = 0.0;
+            albedoSum[j] = 0.0;
+        }
+        depthSum = 0.0;
+        nHits = 0;
+        firstObjectId = -1;
+        
+        if (lights)
+            Arrays.fill(lightSum, 0.0);
+    }
+    
+    /**
+     * Record properties of the first collision of a camera ray.
+     * 
+     * @param ray camera ray
+     * @param object object hit by ray
+     */
+    void recordFirstHit(Ray ray, SceneObject object) {
+        Ray normalRay = object.getNormalRay();
+        
+        if (normal) {
+            Vector3D n = normalRay.direction.normalize();
+            normalSum[0] += n.getX();
+            normalSum[1] += n.getY();
+            normalSum[2] += n.getZ();
+        }
+        
+        if (depth)
+            depthSum += normalRay.origin.distance(ray.origin);
+        
+        if (objectId && firstObjectId < 0)
+            firstObjectId = objectIndices.get(object);
+        
+        if (albedo) {
+            for (Texture texture : object.getTextures()) {
+                Colour c = texture.getAlbedo(object);
+                if (c != null) {
+                    albedoSum[0] += c.r;
+                    albedoSum[1] += c.g;
+                    albedoSum[2] += c.b;
+                    break;
+                }
+            }
+        }
+        
+        nHits += 1;
+    }
+    
+    /**
+     * Record contribution of a light to the direct illumination of the
+     * first hit.
+     * 
+     * @param light
+     * @param r
+     * @param g
+     * @param b 
+     */
+    void recordLight(LightSource light, double r, double g, double b) {
+        Integer i = lightIndices.get(light);
+        if (i == null)
+            return;
+        
+        lightSum[3*i] += r;
+        lightSum[3*i+1] += g;
+        lightSum[3*i+2] += b;
+    }
+    
+    /**
+     * Write averaged AOVs to frame buffer.
+     * 
+     * @param frame frame buffer
+     * @param x X-coordinate of pixel
+     * @param y Y-coordinate of pixel
+     * @param nSamples number of samples traced through pixel
+     */
+    void finishPixel(FrameBuffer frame, int x, int y, int nSamples) {
+        int i = y*frame.width + x;
+        
+        if (normal) {
+            double norm = Math.sqrt(normalSum[0]*normalSum[0]
+                    + normalSum[1]*normalSum[1] + normalSum[2]*normalSum[2]);
+            for (int j=0; j<3; j++)
+                frame.normal[3*i+j] = norm > 0.0 ? normalSum[j]/norm : 0.0;
+        }
+        
+        if (depth)
+            frame.depth[i] = nHits > 0 ? depthSum/nHits : Double.POSITIVE_INFINITY;
+        
+        if (objectId)
+            frame.objectId[i] = firstObjectId;
+        
+        if (albedo) {
+            for (int j=0; j<3; j++)
+                frame.albedo[3*i+j] = albedoSum[j]/nSamples;
+        }
+        
+        if (lights) {
+            for (int l=0; l<frame.lights.length; l++) {
+                for (int j=0; j<3; j++)
+                    frame.lights[l][3*i+j] = lightSum[3*l+j]/nSamples;
+            }
+        }
+    }
+}
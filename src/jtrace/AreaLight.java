@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace;
+
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+/**
+ * Abstract class for light sources having a finite extent, which cast
+ * soft shadows.  Visibility of the light from a point is estimated by
+ * shadow-testing a low-discrepancy (Halton) sequence of points on the
+ * light, randomly shifted using the scene's sampler.
+ * Sampling stops after the first few samples if these are either all
+ * visible or all occluded, so that many samples are only used in the
+ * penumbra.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public abstract class AreaLight extends LightSource {
+    
+    int minShadowSamples, maxShadowSamples;
+    
+    public AreaLight(Vector3D location, double scale) {
+        super(location, scale);
+        setShadowSamples(4, 64);
+    }
+    
+    public AreaLight(Vector3D location, double scale,
+            Colour colour, boolean invSqFalloff) {
+        super(location, scale, colour, invSqFalloff);
+        setShadowSamples(4, 64);
+    }
+    
+    /**
+     * Set the number of shadow rays used to determine the visibility of
+     * this light.  The first minSamples rays are always traced; the
+     * remainder are only traced if these disagree.
+     * 
+     * @param minSamples number of initial samples, at least one
+     * @param maxSamples maximum number of samples
+     */
+    public final void setShadowSamples(int minSamples, int maxSamples) {
+        if (minSamples < 1)
+            throw new IllegalArgumentException(
+                    "At least one shadow sample is required.");
+        
+        this.minShadowSamples = minSamples;
+        this.maxShadowSamples = Math.max(minSamples, maxSamples);
+    }
+    
+    public int getMinShadowSamples() {
+        return minShadowSamples;
+    }
+    
+    public int getMaxShadowSamples() {
+        return maxShadowSamples;
+    }
+    
+    /**
+     * Obtain point on the light corresponding to the given coordinates on
+     * the unit square, as seen from the given point.
+     * 
+     * @param point point being illuminated
+     * @param u first sample coordinate in [0,1)
+     * @param v second sample coordinate in [0,1)
+     * @return point on light
+     */
+    public abstract Vector3D getSamplePoint(Vector3D point, double u, double v);
+    
+    /**
+     * @return radius of a sphere about the light's location which
+     * contains the whole light.
+     */
+    public abstract double getBoundingRadius();
+}
@@ -31,6 +31,8 @@ public class Camera {
     
     double fovUp, fovRight;
     
+    double aperture, focalDistance;
+    
     /**
      * Create camera at location directed at pointAt with the top of the
      * frame defined by the up vector and FOV defined by fovUp and fovRight.
@@ -58,6 +60,28 @@ public class Camera {
         
         this.fovUp = fovUp;
         this.fovRight = fovRight;
+        
+        this.aperture = 0.0;
+        this.focalDistance = pointAt.subtract(location).getNorm();
+    }
+    
+    /**
+     * Enable depth of field simulation by giving the camera a lens with
+     * finite aperture.  Points at the focal distance remain in focus.
+     * 
+     * @param aperture radius of lens
+     * @param focalDistance distance to plane of focus
+     */
+    public void setFocus(double aperture, double focalDistance) {
+        this.aperture = aperture;
+        this.focalDistance = focalDistance;
+    }
+    
+    /**
+     * @return true if camera has a lens of finite aperture.
+     */
+    public boolean hasAperture() {
+        return aperture > 0.0;
     }
     
     /**
@@ -70,19 +94,86 @@ public class Camera {
      * @return 
      */
     public Ray getRay(int width, int height, int x, int y) {
+        return getRay(width, height, x, y, 0.0, 0.0);
+    }
+    
+    /**
+     * Obtain camera ray through the given (fractional) image coordinates,
+     * originating from the given point on the lens.
+     * 
+     * @param width Width of image in pixels.
+     * @param height Height of image in pixels.
+     * @param x X-coordinate of image point to trace.
+     * @param y Y-coordinate of image point to trace.
+     * @param lensU First lens coordinate in [0,1).
+     * @param lensV Second lens coordinate in [0,1).
+     * @return 
+     */
+    public Ray getRay(int width, int height, double x, double y,
+            double lensU, double lensV) {
 
         // Determine angles in each direction.  Note the negative
         // in the expression for the vertical angle - this flips
         // the image in that direction to account for the matrix
         // coordinate scheme used in images.
-        double tanThetaUp = -fovUp*(y/(double)height - 0.5);
-        double tanThetaRight = fovRight*(x/(double)width - 0.5);
+        double tanThetaUp = -fovUp*(y/height - 0.5);
+        double tanThetaRight = fovRight*(x/width - 0.5);
         
         Vector3D raydir = new Vector3D(1.0, direction);
         raydir = raydir.add(tanThetaUp, up);
         raydir = raydir.add(tanThetaRight, right);
         
-        return new Ray(location, raydir.normalize());
+        if (aperture <= 0.0)
+            return new Ray(location, raydir.normalize());
+        
+        // Shift ray origin across lens, keeping point on focal plane fixed:
+        double r = aperture*Math.sqrt(lensU);
+        double theta = 2.0*Math.PI*lensV;
+        Vector3D lensOffset = new Vector3D(r*Math.cos(theta), right,
+                r*Math.sin(theta), up);
+        Vector3D focalPoint = location.add(focalDistance, raydir);
+        
+        return new Ray(location.add(lensOffset),
+                focalPoint.subtract(location.add(lensOffset)).normalize());
+    }
+    
+    /**
+     * Obtain inward-facing normals of the planes bounding the region of
+     * space visible through the given rectangle of the image.  All planes
+     * pass through the camera location.  The last plane is perpendicular
+     * to the viewing direction, excluding points behind the camera.
+     * The lens aperture is ignored.
+     * 
+     * @param width Width of image in pixels.
+     * @param height Height of image in pixels.
+     * @param x0 left edge of rectangle
+     * @param y0 top edge of rectangle
+     * @param x1 right edge of rectangle
+     * @param y1 bottom edge of rectangle
+     * @return array of plane normals
+     */
+    public Vector3D[] getFrustumPlanes(int width, int height,
+            double x0, double y0, double x1, double y1) {
+        
+        Vector3D[] corners = {
+            getRay(width, height, x0, y0, 0.0, 0.0).direction,
+            getRay(width, height, x1, y0, 0.0, 0.0).direction,
+            getRay(width, height, x1, y1, 0.0, 0.0).direction,
+            getRay(width, height, x0, y1, 0.0, 0.0).direction
+        };
+        Vector3D centre = getRay(width, height, 0.5*(x0+x1), 0.5*(y0+y1),
+                0.0, 0.0).direction;
+        
+        Vector3D[] planes = new Vector3D[5];
+        for (int i = 0; i < 4; i++) {
+            Vector3D normal = corners[i].crossProduct(corners[(i+1)%4]);
+            if (normal.dotProduct(centre) < 0.0)
+                normal = normal.negate();
+            planes[i] = normal;
+        }
+        planes[4] = direction;
+        
+        return planes;
     }
     
     /**
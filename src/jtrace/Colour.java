@@ -62,6 +62,18 @@ public class Colour {
         return res;
     }
     
+    public double getR() {
+        return r;
+    }
+
+    public double getG() {
+        return g;
+    }
+
+    public double getB() {
+        return b;
+    }
+
     /**
      * Return a new colour with RGB components scaled by the given factor.
      * 
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace;
+
+import java.awt.image.BufferedImage;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stable hash of the content of a scene, used to identify renderings
+ * which can be shared between runs.
+ * 
+ * Objects are hashed by walking their fields reflectively, so that new
+ * object, texture and light types are covered without further work.
+ * Static fields and fields annotated with NotContent are ignored; every
+ * other field is treated as scene content.  The hash depends only on
+ * the renderer version, class names, field names and field values, so
+ * it is stable across runs and JVMs.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+class ContentHash {
+    
+    /**
+     * Version of the renderer output, included in every hash so that
+     * tiles cached by earlier versions are not reused.  Must be increased
+     * whenever a change to the renderer alters the image produced for
+     * unchanged scene content.
+     */
+    static final int RENDERER_VERSION = 1;
+    
+    MessageDigest digest;
+    ByteBuffer buffer;
+    Map<Object,Integer> visited;
+    
+    ContentHash() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        
+        buffer = ByteBuffer.allocate(8);
+        visited = new IdentityHashMap<>();
+    }
+    
+    /**
+     * Compute hash of everything which influences the rendering of a
+     * scene with the given settings.
+     * 
+     * @param scene
+     * @param width
+     * @param height
+     * @param maxRecursionDepth
+     * @param aovs
+     * @return hexadecimal hash string
+     */
+    static String of(Scene scene, int width, int height, int maxRecursionDepth,
+            Collection<AOV> aovs) {
+        ContentHash hash = new ContentHash();
+        
+        hash.addInt(RENDERER_VERSION);
+        hash.addInt(width);
+        hash.addInt(height);
+        hash.addInt(maxRecursionDepth);
+        EnumSet<AOV> sortedAOVs = EnumSet.noneOf(AOV.class);
+        sortedAOVs.addAll(aovs);
+        hash.add(new ArrayList<>(sortedAOVs));
+        
+        hash.add(scene.camera);
+        hash.add(scene.lightSources);
+        hash.add(scene.sceneObjects);
+        hash.add(scene.backgroundColour);
+        hash.addInt(scene.lightSamplesPerHit);
+        hash.addDouble(scene.lightCutoff);
+        hash.add(scene.sampler);
+        hash.addInt(scene.samplesPerPixel);
+        hash.addInt(scene.minSamplesPerPixel);
+        hash.addDouble(scene.varianceTarget);
+        hash.add(scene.pathTracer);
+        
+        return hash.toHex();
+    }
+    
+    /**
+     * Add arbitrary object to hash.
+     * 
+     * @param obj 
+     */
+    void add(Object obj) {
+        if (obj == null) {
+            addString("null");
+            return;
+        }
+        
+        if (visited.containsKey(obj)) {
+            addString("ref");
+            addInt(visited.get(obj));
+            return;
+        }
+        
+        // Buffers hash alike whether held on or off the heap:
+        if (obj instanceof Buffer) {
+            addBuffer((Buffer)obj);
+            return;
+        }
+        
+        Class<?> type = obj.getClass();
+        addString(type.getName());
+        
+        if (obj instanceof Number || obj instanceof Boolean
+                || obj instanceof Character || obj instanceof String
+                || obj instanceof Enum) {
+            addString(obj.toString());
+            return;
+        }
+        
+        visited.put(obj, visited.size());
+        
+        if (type.isArray()) {
+            addArray(obj);
+        } else if (obj instanceof Collection) {
+            addInt(((Collection<?>)obj).size());
+            for (Object element : (Collection<?>)obj)
+                add(element);
+        } else if (obj instanceof BufferedImage) {
+            BufferedImage image = (BufferedImage)obj;
+            addInt(image.getWidth());
+            addInt(image.getHeight());
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++)
+                    addInt(image.getRGB(x, y));
+            }
+        } else if (type.getName().startsWith("java.")) {
+            throw new IllegalArgumentException(
+                    "Cannot hash instance of " + type.getName());
+        } else {
+            addFields(obj, type);
+        }
+    }
+    
+    /**
+     * Add non-static fields of object not annotated with NotContent to
+     * hash, ordered by declaring class and field name.
+     * 
+     * @param obj
+     * @param type 
+     */
+    private void addFields(Object obj, Class<?> type) {
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            List<Field> fields = new ArrayList<>();
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())
+                        && !field.isAnnotationPresent(NotContent.class)
+                        && !field.isSynthetic())
+                    fields.add(field);
+            }
+            fields.sort(Comparator.comparing(Field::getName));
+            
+            for (Field field : fields) {
+                addString(field.getName());
+                field.setAccessible(true);
+                try {
+                    Class<?> fieldType = field.getType();
+                    if (fieldType == double.class)
+                        addDouble(field.getDouble(obj));
+                    else if (fieldType == float.class)
+                        addDouble(field.getFloat(obj));
+                    else if (fieldType == long.class)
+                        addLong(field.getLong(obj));
+                    else if (fieldType.isPrimitive())
+                        addString(String.valueOf(field.get(obj)));
+                    else
+                        add(field.get(obj));
+                } catch (IllegalAccessException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        }
+    }
+    
+    private void addArray(Object array) {
+        if (array instanceof double[]) {
+            double[] a = (double[])array;
+            addInt(a.length);
+            for (double x : a)
+                addDouble(x);
+        } else if (array instanceof float[]) {
+            float[] a = (float[])array;
+            addInt(a.length);
+            for (float x : a)
+                addInt(Float.floatToIntBits(x));
+        } else if (array instanceof int[]) {
+            int[] a = (int[])array;
+            addInt(a.length);
+            for (int x : a)
+                addInt(x);
+        } else if (array instanceof long[]) {
+            long[] a = (long[])array;
+            addInt(a.length);
+            for (long x : a)
+                addLong(x);
+        } else if (array instanceof Object[]) {
+            Object[] a = (Object[])array;
+            addInt(a.length);
+            for (Object x : a)
+                add(x);
+        } else {
+            int n = java.lang.reflect.Array.getLength(array);
+            addInt(n);
+            for (int i = 0; i < n; i++)
+                addString(String.valueOf(java.lang.reflect.Array.get(array, i)));
+        }
+    }
+    
+    private void addBuffer(Buffer buffer) {
+        if (buffer instanceof DoubleBuffer) {
+            DoubleBuffer b = (DoubleBuffer)buffer;
+            addString("DoubleBuffer");
+            addInt(b.limit());
+            for (int i = 0; i < b.limit(); i++)
+                addDouble(b.get(i));
+        } else if (buffer instanceof FloatBuffer) {
+            FloatBuffer b = (FloatBuffer)buffer;
+            addString("FloatBuffer");
+            addInt(b.limit());
+            for (int i = 0; i < b.limit(); i++)
+                addInt(Float.floatToIntBits(b.get(i)));
+        } else if (buffer instanceof IntBuffer) {
+            IntBuffer b = (IntBuffer)buffer;
+            addString("IntBuffer");
+            addInt(b.limit());
+            for (int i = 0; i < b.limit(); i++)
+                addInt(b.get(i));
+        } else {
+            throw new IllegalArgumentException(
+                    "Cannot hash instance of " + buffer.getClass().getName());
+        }
+    }
+    
+    void addString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        addInt(bytes.length);
+        digest.update(bytes);
+    }
+    
+    void addInt(int x) {
+        buffer.clear();
+        buffer.putInt(x);
+        digest.update(buffer.array(), 0, 4);
+    }
+    
+    void addLong(long x) {
+        buffer.clear();
+        buffer.putLong(x);
+        digest.update(buffer.array(), 0, 8);
+    }
+    
+    void addDouble(double x) {
+        addLong(Double.doubleToLongBits(x));
+    }
+    
+    /**
+     * @return hexadecimal representation of hash.
+     */
+    String toHex() {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest())
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
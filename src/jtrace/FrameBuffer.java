@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace;
+
+import java.awt.image.BufferedImage;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Floating point image produced by rendering a scene.  Alongside the
+ * (unclamped) colour of each pixel, the buffer may contain any of the
+ * requested arbitrary output variables (AOVs).  Buffers for AOVs which
+ * were not requested are null.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class FrameBuffer {
+    
+    int width, height;
+    
+    /**
+     * Interleaved RGB colour of each pixel.
+     */
+    double[] colour;
+    
+    /**
+     * Interleaved XYZ components of first-hit surface normal.
+     */
+    double[] normal;
+    
+    /**
+     * Distance to first hit, or infinity where camera rays miss.
+     */
+    double[] depth;
+    
+    /**
+     * Index of first hit object, or -1 where camera rays miss.
+     */
+    int[] objectId;
+    
+    /**
+     * Interleaved RGB pigment colour at first hit.
+     */
+    double[] albedo;
+    
+    /**
+     * Interleaved RGB direct illumination of first hit due to each light.
+     */
+    double[][] lights;
+    
+    /**
+     * Create frame buffer containing colour only.
+     * 
+     * @param width
+     * @param height 
+     */
+    public FrameBuffer(int width, int height) {
+        this(width, height, EnumSet.noneOf(AOV.class), 0);
+    }
+    
+    /**
+     * Create frame buffer with space for the given AOVs.
+     * 
+     * @param width
+     * @param height
+     * @param aovs AOVs to allocate
+     * @param nLights number of light sources in scene
+     */
+    public FrameBuffer(int width, int height, Set<AOV> aovs, int nLights) {
+        this.width = width;
+        this.height = height;
+        
+        colour = new double[3*width*height];
+        
+        if (aovs.contains(AOV.NORMAL))
+            normal = new double[3*width*height];
+        
+        if (aovs.contains(AOV.DEPTH))
+            depth = new double[width*height];
+        
+        if (aovs.contains(AOV.OBJECT_ID))
+            objectId = new int[width*height];
+        
+        if (aovs.contains(AOV.ALBEDO))
+            albedo = new double[3*width*height];
+        
+        if (aovs.contains(AOV.LIGHTS))
+            lights = new double[nLights][3*width*height];
+    }
+    
+    /**
+     * Create new frame buffer sharing the AOV buffers of this one but
+     * with an empty colour buffer.
+     * 
+     * @return new frame buffer
+     */
+    public FrameBuffer copyGuides() {
+        FrameBuffer res = new FrameBuffer(width, height);
+        res.normal = normal;
+        res.depth = depth;
+        res.objectId = objectId;
+        res.albedo = albedo;
+        res.lights = lights;
+        
+        return res;
+    }
+    
+    /**
+     * Create an independent copy of this frame buffer, including all of
+     * its AOV buffers.
+     * 
+     * @return new frame buffer
+     */
+    public FrameBuffer copy() {
+        FrameBuffer res = new FrameBuffer(width, height);
+        res.colour = colour.clone();
+        res.normal = normal == null ? null : normal.clone();
+        res.depth = depth == null ? null : depth.clone();
+        res.objectId = objectId == null ? null : objectId.clone();
+        res.albedo = albedo == null ? null : albedo.clone();
+        if (lights != null) {
+            res.lights = new double[lights.length][];
+            for (int l = 0; l < lights.length; l++)
+                res.lights[l] = lights[l].clone();
+        }
+        
+        return res;
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    public double[] getColourBuffer() {
+        return colour;
+    }
+    
+    public double[] getNormalBuffer() {
+        return normal;
+    }
+    
+    public double[] getDepthBuffer() {
+        return depth;
+    }
+    
+    public int[] getObjectIdBuffer() {
+        return objectId;
+    }
+    
+    public double[] getAlbedoBuffer() {
+        return albedo;
+    }
+    
+    /**
+     * Retrieve buffer containing direct illumination due to a single light.
+     * 
+     * @param lightIndex index of light in scene's list of light sources
+     * @return interleaved RGB buffer
+     */
+    public double[] getLightBuffer(int lightIndex) {
+        return lights[lightIndex];
+    }
+    
+    public Colour getColour(int x, int y) {
+        int i = 3*(y*width + x);
+        return new Colour(colour[i], colour[i+1], colour[i+2]);
+    }
+    
+    public void setColour(int x, int y, Colour c) {
+        int i = 3*(y*width + x);
+        colour[i] = c.r;
+        colour[i+1] = c.g;
+        colour[i+2] = c.b;
+    }
+    
+    /**
+     * Convert colour buffer to an image.
+     * 
+     * @return BufferedImage containing rendering.
+     */
+    public BufferedImage getImage() {
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_BGR);
+        
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++)
+                image.setRGB(x, y, getColour(x, y).getInt());
+        }
+        
+        return image;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace;
+
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+/**
+ * Illumination arriving at a collision point from a single visible light
+ * source.  Samples are computed once per collision and shared by all of
+ * the finishes applied at that point.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class LightSample {
+    
+    public final LightSource light;
+    
+    /**
+     * Unit vector pointing from the collision point towards the light.
+     */
+    public final Vector3D direction;
+    
+    /**
+     * Square of distance between collision point and light.
+     */
+    public final double distanceSq;
+    
+    /**
+     * RGB components of light colour scaled by the light's intensity at
+     * the collision point.
+     */
+    public final double r, g, b;
+    
+    public LightSample(LightSource light, Vector3D direction, double distanceSq) {
+        this(light, direction, distanceSq, 1.0);
+    }
+    
+    /**
+     * Create light sample whose contribution is scaled by the given weight.
+     * Used when only a subset of lights is sampled, in which case the weight
+     * compensates for the probability of the light having been chosen.
+     * 
+     * @param light
+     * @param direction
+     * @param distanceSq
+     * @param weight 
+     */
+    public LightSample(LightSource light, Vector3D direction, double distanceSq,
+            double weight) {
+        this(light, direction, distanceSq, weight, Colour.white);
+    }
+    
+    /**
+     * Create light sample whose contribution is scaled by the given weight
+     * and filtered by the transparent objects through which the light
+     * passes on its way to the collision point.
+     * 
+     * @param light
+     * @param direction
+     * @param distanceSq
+     * @param weight
+     * @param filter transmittance of shadow ray
+     */
+    public LightSample(LightSource light, Vector3D direction, double distanceSq,
+            double weight, Colour filter) {
+        this.light = light;
+        this.direction = direction;
+        this.distanceSq = distanceSq;
+        
+        double intensity = light.getIntensity(distanceSq)*weight;
+        Colour colour = light.getColour();
+        this.r = colour.r*intensity*filter.r;
+        this.g = colour.g*intensity*filter.g;
+        this.b = colour.b*intensity*filter.b;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+/**
+ * Bounding volume hierarchy over the point light sources in a scene.  Each
+ * node records the bounds and total power of the lights beneath it, which
+ * allows lights to be selected stochastically in proportion to their
+ * estimated contribution at a point, or culled when their intensity falls
+ * below a threshold.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class LightTree {
+    
+    /**
+     * Node in the light hierarchy.  Leaf nodes hold exactly one light.
+     */
+    static class Node {
+        double[] min = {Double.POSITIVE_INFINITY,
+            Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        double[] max = {Double.NEGATIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        
+        double power, maxScaleSq;
+        boolean anyConstant;
+        
+        Node left, right;
+        LightSource light;
+        
+        /**
+         * Estimate of the illumination due to lights in this node at
+         * the given point.
+         * 
+         * @param p point being illuminated
+         * @return importance of node
+         */
+        double getImportance(double[] p) {
+            double distSq = 0.0, halfDiagSq = 0.0;
+            for (int i=0; i<3; i++) {
+                double d = p[i] - 0.5*(min[i]+max[i]);
+                double h = 0.5*(max[i]-min[i]);
+                distSq += d*d;
+                halfDiagSq += h*h;
+            }
+            
+            return power/Math.max(distSq, Math.max(halfDiagSq, 1e-12));
+        }
+        
+        /**
+         * Upper bound on the intensity of any light in this node at
+         * the given point.
+         * 
+         * @param p point being illuminated
+         * @return intensity bound
+         */
+        double getMaxIntensity(double[] p) {
+            if (anyConstant)
+                return maxScaleSq;
+            
+            double distSq = 0.0;
+            for (int i=0; i<3; i++) {
+                double d = Math.max(0.0, Math.max(min[i]-p[i], p[i]-max[i]));
+                distSq += d*d;
+            }
+            
+            return maxScaleSq/distSq;
+        }
+        
+        void include(Node child) {
+            for (int i=0; i<3; i++) {
+                min[i] = Math.min(min[i], child.min[i]);
+                max[i] = Math.max(max[i], child.max[i]);
+            }
+            power += child.power;
+            maxScaleSq = Math.max(maxScaleSq, child.maxScaleSq);
+            anyConstant = anyConstant || child.anyConstant;
+        }
+    }
+    
+    /**
+     * Light chosen by stochastic selection together with the probability
+     * with which it was chosen.
+     */
+    public static class Choice {
+        public final LightSource light;
+        public final double pdf;
+        
+        Choice(LightSource light, double pdf) {
+            this.light = light;
+            this.pdf = pdf;
+        }
+    }
+    
+    Node root;
+    
+    /**
+     * Build hierarchy over given light sources.
+     * 
+     * @param lightSources 
+     */
+    public LightTree(List<LightSource> lightSources) {
+        if (!lightSources.isEmpty())
+            root = build(new ArrayList<>(lightSources));
+    }
+    
+    /**
+     * Recursively construct hierarchy by splitting lights at the median
+     * along the longest axis of their bounds.
+     * 
+     * @param lights
+     * @return node containing lights
+     */
+    private Node build(List<LightSource> lights) {
+        Node node = new Node();
+        
+        if (lights.size() == 1) {
+            LightSource light = lights.get(0);
+            double[] loc = light.getLocation().toArray();
+            Colour colour = light.getColour();
+            
+            node.light = light;
+            node.min = loc;
+            node.max = loc.clone();
+            node.maxScaleSq = light.scaleSq;
+            node.power = light.scaleSq*(colour.r + colour.g + colour.b)/3.0;
+            node.anyConstant = !light.invSqFalloff;
+            
+            return node;
+        }
+        
+        double[] min = {Double.POSITIVE_INFINITY,
+            Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        double[] max = {Double.NEGATIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (LightSource light : lights) {
+            double[] loc = light.getLocation().toArray();
+            for (int i=0; i<3; i++) {
+                min[i] = Math.min(min[i], loc[i]);
+                max[i] = Math.max(max[i], loc[i]);
+            }
+        }
+        
+        int axis = 0;
+        for (int i=1; i<3; i++) {
+            if (max[i]-min[i] > max[axis]-min[axis])
+                axis = i;
+        }
+        
+        final int splitAxis = axis;
+        lights.sort(Comparator.comparingDouble(
+                l -> l.getLocation().toArray()[splitAxis]));
+        
+        int mid = lights.size()/2;
+        node.left = build(new ArrayList<>(lights.subList(0, mid)));
+        node.right = build(new ArrayList<>(lights.subList(mid, lights.size())));
+        node.include(node.left);
+        node.include(node.right);
+        
+        return node;
+    }
+    
+    /**
+     * Select a single light with probability proportional to its estimated
+     * contribution at the given point.
+     * 
+     * @param point point being illuminated
+     * @param u uniform sample in [0,1), which is rescaled and reused to
+     * make the choice at each level of the tree
+     * @return chosen light and selection probability, or null if the tree
+     * is empty
+     */
+    public Choice sample(Vector3D point, double u) {
+        if (root == null)
+            return null;
+        
+        double[] p = point.toArray();
+        double pdf = 1.0;
+        
+        Node node = root;
+        while (node.light == null) {
+            double impLeft = node.left.getImportance(p);
+            double impRight = node.right.getImportance(p);
+            
+            double probLeft;
+            if (impLeft + impRight > 0.0)
+                probLeft = impLeft/(impLeft + impRight);
+            else
+                probLeft = 0.5;
+            
+            if (u < probLeft) {
+                node = node.left;
+                pdf *= probLeft;
+                u = Math.min(u/probLeft, Math.nextDown(1.0));
+            } else {
+                node = node.right;
+                pdf *= 1.0 - probLeft;
+                u = Math.min((u - probLeft)/(1.0 - probLeft), Math.nextDown(1.0));
+            }
+        }
+        
+        return new Choice(node.light, pdf);
+    }
+    
+    /**
+     * Retrieve all lights whose intensity at the given point may equal or
+     * exceed the given threshold.  Subtrees whose intensity bound is below
+     * the threshold are skipped entirely.
+     * 
+     * @param point point being illuminated
+     * @param threshold minimum intensity
+     * @return list of lights
+     */
+    public List<LightSource> getLightsAbove(Vector3D point, double threshold) {
+        List<LightSource> lights = new ArrayList<>();
+        if (root != null)
+            collect(root, point.toArray(), threshold, lights);
+        
+        return lights;
+    }
+    
+    private void collect(Node node, double[] p, double threshold,
+            List<LightSource> lights) {
+        if (node.getMaxIntensity(p) < threshold)
+            return;
+        
+        if (node.light != null)
+            lights.add(node.light);
+        else {
+            collect(node.left, p, threshold, lights);
+            collect(node.right, p, threshold, lights);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field whose value does not affect the rendered image, such as
+ * per-collision scratch state, caches, acceleration structures and back
+ * references.  All other fields of the objects, textures, lights and
+ * samplers of a scene are scene content: ContentHash includes them in
+ * the key identifying cached tiles.  Fields which are filled in lazily
+ * during rendering must carry this annotation, otherwise the hash of a
+ * scene changes once it has been rendered and the scene is rejected by
+ * the check in Scene.render().
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface NotContent {
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace;
+
+import jtrace.object.SceneObject;
+import jtrace.sampler.Sampler;
+import jtrace.texture.Scatter;
+import jtrace.texture.Texture;
+
+/**
+ * Monte Carlo path tracing integrator.  Unlike Scene.traceRay(), which
+ * only follows mirror and refracted rays, this follows a single randomly
+ * scattered path from each camera ray so that indirect (inter-object)
+ * illumination is included.  At each vertex of the path, light arriving
+ * directly from the scene's light sources is added using next event
+ * estimation, and paths are terminated early using Russian roulette.
+ * 
+ * Ambient finishes are ignored, as the indirect illumination they
+ * approximate is computed explicitly.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class PathTracer {
+    
+    int maxDepth;
+    int rouletteDepth;
+    
+    /**
+     * Create path tracer.
+     * 
+     * @param maxDepth maximum number of scattering events along a path
+     * @param rouletteDepth number of scattering events after which
+     * Russian roulette is used to terminate paths
+     */
+    public PathTracer(int maxDepth, int rouletteDepth) {
+        this.maxDepth = maxDepth;
+        this.rouletteDepth = rouletteDepth;
+    }
+    
+    public PathTracer() {
+        this(32, 3);
+    }
+    
+    /**
+     * Estimate colour of light arriving along ray.
+     * 
+     * @param scene scene to trace
+     * @param ray camera ray
+     * @return colour estimate
+     */
+    public Colour tracePath(Scene scene, Ray ray) {
+        return tracePath(scene, ray, null);
+    }
+    
+    /**
+     * Estimate colour of light arriving along ray, whose first collision
+     * may already be known.
+     * 
+     * @param scene scene to trace
+     * @param ray camera ray
+     * @param firstHit object whose most recent collision is the first hit
+     * of the ray, or null if this must be determined
+     * @return colour estimate
+     */
+    Colour tracePath(Scene scene, Ray ray, SceneObject firstHit) {
+        
+        Sampler sampler = scene.getSampler();
+        
+        double tr = 1.0, tg = 1.0, tb = 1.0;
+        double r = 0.0, g = 0.0, b = 0.0;
+        
+        for (int depth = 0; depth <= maxDepth; depth++) {
+            
+            SceneObject object;
+            if (depth == 0 && firstHit != null)
+                object = firstHit;
+            else if (depth == 0 && scene.primaryCandidates != null)
+                object = scene.findNearestObject(ray, scene.primaryCandidates);
+            else
+                object = scene.findNearestObject(ray);
+            if (object == null) {
+                r += tr*scene.backgroundColour.r;
+                g += tg*scene.backgroundColour.g;
+                b += tb*scene.backgroundColour.b;
+                break;
+            }
+            
+            scene.primaryShading = depth == 0;
+            if (scene.primaryShading)
+                scene.recordFirstHit(ray, object);
+            
+            object.clearCollisionCache();
+            
+            // Next event estimation:
+            Colour direct = Colour.black;
+            for (Texture texture : object.getTextures())
+                direct = texture.layerDirectColour(object, direct);
+            
+            scene.primaryShading = false;
+            r += tr*direct.r;
+            g += tg*direct.g;
+            b += tb*direct.b;
+            
+            // Choose scattering event to continue path:
+            Scatter scatter = sampleScatter(object, sampler);
+            if (scatter == null)
+                break;
+            
+            tr *= scatter.filter.r;
+            tg *= scatter.filter.g;
+            tb *= scatter.filter.b;
+            
+            // Russian roulette:
+            if (depth >= rouletteDepth) {
+                double survival = Math.min(0.95, Math.max(tr, Math.max(tg, tb)));
+                if (sampler.get1D() >= survival)
+                    break;
+                tr /= survival;
+                tg /= survival;
+                tb /= survival;
+            }
+            
+            ray = scatter.ray;
+        }
+        
+        return new Colour(r, g, b);
+    }
+    
+    /**
+     * Choose one of the object's textures uniformly and sample its
+     * scattering distribution.
+     * 
+     * @param object object at path vertex
+     * @param sampler
+     * @return scatter event or null
+     */
+    private Scatter sampleScatter(SceneObject object, Sampler sampler) {
+        int nTextures = object.getTextures().size();
+        if (nTextures == 0)
+            return null;
+        
+        if (nTextures == 1)
+            return object.getTextures().get(0).sampleScatter(object, sampler);
+        
+        int i = Math.min((int)(sampler.get1D()*nTextures), nTextures-1);
+        Scatter scatter = object.getTextures().get(i).sampleScatter(object, sampler);
+        if (scatter == null)
+            return null;
+        
+        return new Scatter(scatter.ray, scatter.filter.scale(nTextures));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace;
+
+import java.util.ArrayList;
+import java.util.List;
+import jtrace.object.SceneObject;
+
+/**
+ * Object and collision details of the first hit of every camera ray
+ * traced during a render.  Retained so that the frame can be relit
+ * without re-tracing camera rays.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+class PrimaryHitCache {
+    
+    Camera camera;
+    int width, height;
+    
+    /**
+     * Object hit by each sample of each pixel, or null for misses.
+     */
+    SceneObject[][] objects;
+    SceneObject.Collision[][] collisions;
+    
+    /**
+     * Whether any sample of each pixel traced rays beyond its first hit,
+     * for instance by reflection or refraction.
+     */
+    boolean[] secondary;
+    
+    List<SceneObject> pixelObjects;
+    List<SceneObject.Collision> pixelCollisions;
+    boolean pixelSecondary;
+    
+    PrimaryHitCache(Camera camera, int width, int height) {
+        this.camera = camera;
+        this.width = width;
+        this.height = height;
+        
+        objects = new SceneObject[width*height][];
+        collisions = new SceneObject.Collision[width*height][];
+        secondary = new boolean[width*height];
+        
+        pixelObjects = new ArrayList<>();
+        pixelCollisions = new ArrayList<>();
+    }
+    
+    /**
+     * Begin recording new pixel sample, which is assumed to miss until
+     * a hit is recorded.
+     */
+    void startSample() {
+        pixelObjects.add(null);
+        pixelCollisions.add(null);
+    }
+    
+    /**
+     * Record first hit of current sample.
+     * 
+     * @param object 
+     */
+    void recordHit(SceneObject object) {
+        int s = pixelObjects.size()-1;
+        pixelObjects.set(s, object);
+        pixelCollisions.set(s, object.saveCollision());
+    }
+    
+    /**
+     * Record that the current pixel has traced a secondary ray.
+     */
+    void recordSecondaryRay() {
+        pixelSecondary = true;
+    }
+    
+    /**
+     * Store samples recorded for pixel.
+     * 
+     * @param x
+     * @param y 
+     */
+    void finishPixel(int x, int y) {
+        int i = y*width + x;
+        objects[i] = pixelObjects.toArray(new SceneObject[0]);
+        collisions[i] = pixelCollisions.toArray(new SceneObject.Collision[0]);
+        secondary[i] = pixelSecondary;
+        
+        pixelObjects.clear();
+        pixelCollisions.clear();
+        pixelSecondary = false;
+    }
+}
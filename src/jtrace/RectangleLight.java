@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace;
+
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+/**
+ * Rectangular area light.  The rectangle is centred on the light's
+ * location and spanned by two edge vectors.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class RectangleLight extends AreaLight {
+    
+    Vector3D edgeU, edgeV;
+    
+    /**
+     * Create rectangular light centred at location with sides given by
+     * edgeU and edgeV.
+     * 
+     * @param location centre of rectangle
+     * @param edgeU first edge
+     * @param edgeV second edge
+     * @param scale 
+     */
+    public RectangleLight(Vector3D location, Vector3D edgeU, Vector3D edgeV,
+            double scale) {
+        super(location, scale);
+        this.edgeU = edgeU;
+        this.edgeV = edgeV;
+    }
+    
+    public RectangleLight(Vector3D location, Vector3D edgeU, Vector3D edgeV,
+            double scale, Colour colour, boolean invSqFalloff) {
+        super(location, scale, colour, invSqFalloff);
+        this.edgeU = edgeU;
+        this.edgeV = edgeV;
+    }
+
+    @Override
+    public Vector3D getSamplePoint(Vector3D point, double u, double v) {
+        return new Vector3D(1.0, location, u - 0.5, edgeU, v - 0.5, edgeV);
+    }
+
+    @Override
+    public double getBoundingRadius() {
+        return 0.5*Math.max(edgeU.add(edgeV).getNorm(),
+                edgeU.subtract(edgeV).getNorm());
+    }
+}
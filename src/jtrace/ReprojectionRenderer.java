@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace;
+
+import java.awt.image.BufferedImage;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import jtrace.object.SceneObject;
+import jtrace.texture.Texture;
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+/**
+ * Renders successive frames of an animation in which only the camera
+ * moves, reusing shading from the previous frame where possible.
+ * 
+ * A camera ray is still traced through every pixel to find its first
+ * hit.  The hit point is projected into the previous frame using
+ * Camera.getPixel().  The previous shading is reused only when all of
+ * the following hold:
+ * <ul>
+ * <li>the previous pixel hit the same object at a point within the
+ * reuse tolerance of the new hit point (otherwise the point was
+ * disoccluded),</li>
+ * <li>none of the object's textures are view dependent (e.g. mirror or
+ * specular finishes),</li>
+ * <li>the pixel is not due for refresh.</li>
+ * </ul>
+ * Pixels are refreshed on a rolling schedule, so that every pixel is
+ * fully shaded at least once every 1/refreshFraction frames.  Failing any
+ * test, the pixel is fully shaded.
+ * 
+ * Because the scene is static, reused shading is exact for the reused
+ * surface point.  The error relative to a full render therefore comes
+ * only from the offset between the old and new hit points, which is
+ * bounded by the reuse tolerance.  measureError() can be used to check
+ * the actual error against a full render.
+ * 
+ * One sample is traced per pixel using Whitted-style shading.  Scenes
+ * configured with a path tracer, more than one sample per pixel or a
+ * camera with finite aperture cannot be reprojected in this way, and each
+ * of their frames is instead rendered in full by Scene.render().
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ReprojectionRenderer {
+    
+    Scene scene;
+    int width, height, maxRecursionDepth;
+    
+    double reuseTolerance;
+    int refreshPeriod;
+    
+    int frameIndex;
+    Camera prevCamera;
+    SceneObject[] prevObjects;
+    double[] prevHits;
+    double[] prevColours;
+    boolean[] prevReusable;
+    
+    int nReused;
+    BufferedImage lastImage;
+    
+    /**
+     * Create renderer for frames of the given scene.
+     * 
+     * @param scene
+     * @param width Width of frames.
+     * @param height Height of frames.
+     * @param maxRecursionDepth 
+     */
+    public ReprojectionRenderer(Scene scene, int width, int height,
+            int maxRecursionDepth) {
+        this.scene = scene;
+        this.width = width;
+        this.height = height;
+        this.maxRecursionDepth = maxRecursionDepth;
+        
+        this.reuseTolerance = 1e-2;
+        this.refreshPeriod = 10;
+        
+        frameIndex = 0;
+    }
+    
+    /**
+     * Set maximum distance between the hit point of a pixel and the point
+     * at which reused shading was originally computed.
+     * 
+     * @param tolerance 
+     */
+    public void setReuseTolerance(double tolerance) {
+        this.reuseTolerance = tolerance;
+    }
+    
+    /**
+     * Set fraction of pixels which are fully shaded in every frame,
+     * regardless of whether their shading could be reused.
+     * 
+     * @param fraction 
+     */
+    public void setRefreshFraction(double fraction) {
+        this.refreshPeriod = Math.max(1, (int)Math.round(1.0/fraction));
+    }
+    
+    /**
+     * Render frame using scene's current camera.
+     * 
+     * @return BufferedImage containing rendering.
+     */
+    public BufferedImage renderFrame() {
+        
+        Camera camera = scene.camera;
+        
+        if (scene.pathTracer != null || scene.samplesPerPixel > 1
+                || camera.hasAperture()) {
+            prevCamera = null;
+            nReused = 0;
+            frameIndex += 1;
+            
+            lastImage = scene.render(width, height, maxRecursionDepth);
+            return lastImage;
+        }
+        
+        scene.maxRecursionDepth = maxRecursionDepth;
+        
+        Map<SceneObject,Boolean> viewDependent = new IdentityHashMap<>();
+        for (SceneObject object : scene.getSceneObjects()) {
+            boolean dependent = false;
+            for (Texture texture : object.getTextures())
+                dependent = dependent || texture.isViewDependent();
+            viewDependent.put(object, dependent);
+        }
+        
+        SceneObject[] objects = new SceneObject[width*height];
+        double[] hits = new double[3*width*height];
+        double[] colours = new double[3*width*height];
+        boolean[] reusable = new boolean[width*height];
+        
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_BGR);
+        nReused = 0;
+        
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int i = y*width + x;
+                
+                Ray ray = camera.getRay(width, height, x, y);
+                SceneObject object = scene.findNearestObject(ray);
+                
+                Colour colour;
+                if (object == null)
+                    colour = scene.backgroundColour;
+                else {
+                    double[] hit = object.getNormalRay().origin.toArray();
+                    objects[i] = object;
+                    reusable[i] = !viewDependent.get(object);
+                    
+                    colour = null;
+                    if (reusable[i] && prevCamera != null
+                            && (x + 7*y + frameIndex) % refreshPeriod != 0)
+                        colour = reproject(hit, object, hits, 3*i);
+                    
+                    if (colour == null) {
+                        System.arraycopy(hit, 0, hits, 3*i, 3);
+                        scene.sampler.startPixelSample(x, y, 0);
+                        colour = scene.shadeFirstHit(ray, object);
+                    } else
+                        nReused += 1;
+                }
+                
+                colours[3*i] = colour.r;
+                colours[3*i+1] = colour.g;
+                colours[3*i+2] = colour.b;
+                
+                image.setRGB(x, y, colour.getInt());
+            }
+        }
+        
+        prevCamera = camera;
+        prevObjects = objects;
+        prevHits = hits;
+        prevColours = colours;
+        prevReusable = reusable;
+        frameIndex += 1;
+        
+        lastImage = image;
+        return image;
+    }
+    
+    /**
+     * Obtain colour of the given hit point from the previous frame.
+     * 
+     * The point at which the reused colour was originally shaded is
+     * copied to dest, so that reuse over several frames cannot drift
+     * further than the tolerance from that point.
+     * 
+     * @param hit hit point
+     * @param object object hit
+     * @param dest array to receive shading point
+     * @param offset offset into dest
+     * @return colour, or null if the point was not visible in the
+     * previous frame.
+     */
+    private Colour reproject(double[] hit, SceneObject object,
+            double[] dest, int offset) {
+        int[] coord = prevCamera.getPixel(width, height,
+                new Vector3D(hit));
+        
+        if (coord[0] < 0 || coord[0] >= width || coord[1] < 0 || coord[1] >= height)
+            return null;
+        
+        int j = coord[1]*width + coord[0];
+        if (prevObjects[j] != object || !prevReusable[j])
+            return null;
+        
+        double dx = prevHits[3*j] - hit[0];
+        double dy = prevHits[3*j+1] - hit[1];
+        double dz = prevHits[3*j+2] - hit[2];
+        if (dx*dx + dy*dy + dz*dz > reuseTolerance*reuseTolerance)
+            return null;
+        
+        System.arraycopy(prevHits, 3*j, dest, offset, 3);
+        return new Colour(prevColours[3*j], prevColours[3*j+1], prevColours[3*j+2]);
+    }
+    
+    /**
+     * @return fraction of pixels in the last frame whose shading was
+     * reused from the previous frame.
+     */
+    public double getReuseFraction() {
+        return nReused/(double)(width*height);
+    }
+    
+    /**
+     * Compare the last frame with a full render using the same camera.
+     * 
+     * @return largest difference in any colour channel of any pixel, as
+     * a fraction of the full channel range.
+     */
+    public double measureError() {
+        BufferedImage reference = scene.render(width, height, maxRecursionDepth);
+        
+        int maxDiff = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int a = lastImage.getRGB(x, y);
+                int b = reference.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    maxDiff = Math.max(maxDiff,
+                            Math.abs(((a >> shift) & 0xff) - ((b >> shift) & 0xff)));
+                }
+            }
+        }
+        
+        return maxDiff/255.0;
+    }
+}
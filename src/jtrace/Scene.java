@@ -20,9 +20,13 @@ import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
-import java.util.Random;
+import java.util.Set;
+import jtrace.accel.AccelerationStructure;
 import jtrace.object.SceneObject;
+import jtrace.sampler.Sampler;
+import jtrace.sampler.SobolSampler;
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 
 /**
@@ -35,10 +39,77 @@ public class Scene {
     Camera camera;
     List<LightSource> lightSources;
     List<SceneObject> sceneObjects;
+    LightTree lightTree;
     Colour backgroundColour;
     
     int recursionDepth, maxRecursionDepth;
     
+    int lightSamplesPerHit;
+    double lightCutoff;
+    
+    Sampler sampler;
+    int samplesPerPixel;
+    int minSamplesPerPixel;
+    double varianceTarget;
+    
+    PathTracer pathTracer;
+    
+    /**
+     * Records requested AOVs, or null if none were requested.
+     */
+    AOVRecorder aovRecorder;
+    
+    /**
+     * True while the first collision of a camera ray is being shaded.
+     */
+    boolean primaryShading;
+    
+    /**
+     * First hits of camera rays from the most recent render, retained for
+     * relighting.  Null unless enabled using setRetainPrimaryHits().
+     */
+    boolean retainPrimaryHits;
+    PrimaryHitCache primaryHitCache;
+    boolean relighting;
+    
+    /**
+     * Most recent frame rendered with primary hits retained, along with
+     * the scene-frame bounds of objects changed since it was rendered.
+     */
+    FrameBuffer lastFrame;
+    Set<AOV> lastAOVs;
+    List<Vector3D[]> dirtyBounds;
+    boolean dirtyAll;
+    
+    TileCache tileCache;
+    int tileSize;
+    
+    /**
+     * Objects which may be hit by camera rays through the tile currently
+     * being rendered, or null if all objects must be tested.
+     */
+    List<SceneObject> primaryCandidates;
+    
+    AccelerationStructure accelerationStructure;
+    boolean accelerationStructureValid;
+    
+    /**
+     * Number of surfaces a shadow ray may cross before the light is
+     * taken to be blocked.
+     */
+    static final int MAX_SHADOW_CROSSINGS = 64;
+    
+    /**
+     * Distance beyond each crossed surface at which shadow rays resume.
+     */
+    static final double SHADOW_STEP = 1e-5;
+    
+    /**
+     * Whether any object lets light through to shadow rays, and whether
+     * this flag is up to date.
+     */
+    boolean transparentObjects, transparentObjectsValid;
+    
     boolean debugThisRay;
     double debugFrac;
     
@@ -82,6 +153,21 @@ public class Scene {
         sceneObjects = new ArrayList<>();
         backgroundColour = new Colour(0.0, 0.0, 0.0);
         
+        lightSamplesPerHit = 0;
+        lightCutoff = 0.0;
+        
+        sampler = new SobolSampler();
+        samplesPerPixel = 1;
+        minSamplesPerPixel = 1;
+        varianceTarget = 0.0;
+        
+        pathTracer = null;
+        
+        tileSize = 16;
+        
+        dirtyBounds = new ArrayList<>();
+        dirtyAll = true;
+        
         debugThisRay = false;
         debugFrac = -1;
     }
@@ -94,6 +180,37 @@ public class Scene {
     public void addObject(SceneObject object) {
         sceneObjects.add(object);
         object.setScene(this);
+        markDirty(object.getBounds());
+        accelerationStructureValid = false;
+        transparentObjectsValid = false;
+    }
+    
+    /**
+     * Notify scene that the given object has been modified, so that the
+     * affected part of the image is re-traced by the next call to
+     * rerender().  Called automatically by SceneObject.addTransformation()
+     * and SceneObject.addTexture().
+     * 
+     * @param object modified object
+     * @param oldBounds bounds of object before modification
+     */
+    public void objectChanged(SceneObject object, Vector3D[] oldBounds) {
+        markDirty(oldBounds);
+        markDirty(object.getBounds());
+        accelerationStructureValid = false;
+        transparentObjectsValid = false;
+    }
+    
+    /**
+     * Record that the region within the given bounds has changed.
+     * 
+     * @param bounds scene-frame bounds, or null if unbounded.
+     */
+    private void markDirty(Vector3D[] bounds) {
+        if (bounds == null)
+            dirtyAll = true;
+        else
+            dirtyBounds.add(bounds);
     }
 
     /**
@@ -103,6 +220,8 @@ public class Scene {
      */
     public void addLightSource(LightSource lightSource) {
         lightSources.add(lightSource);
+        lightTree = null;
+        dirtyAll = true;
     }
 
     /**
@@ -121,6 +240,7 @@ public class Scene {
      */
     public void setBackground(Colour colour) {
         this.backgroundColour = colour;
+        dirtyAll = true;
     }
     
     /**
@@ -132,6 +252,187 @@ public class Scene {
         this.debugFrac = frac;
     }
     
+    /**
+     * Enable stochastic light selection.  Rather than shadow-testing every
+     * light source at each collision, the given number of lights are chosen
+     * with probability proportional to their estimated contribution and
+     * their illumination weighted accordingly.  A value of zero (the
+     * default) restores exhaustive evaluation of all lights.
+     * 
+     * @param samplesPerHit number of lights to sample per collision
+     */
+    public void setLightSampling(int samplesPerHit) {
+        this.lightSamplesPerHit = samplesPerHit;
+        dirtyAll = true;
+    }
+    
+    /**
+     * Set the intensity below which lights are ignored when shading a
+     * collision point.  A value of zero (the default) disables the cut-off.
+     * The cut-off is not applied when stochastic light selection is
+     * enabled, as discarding sampled lights would bias the estimate.
+     * 
+     * @param threshold minimum light intensity
+     */
+    public void setLightCutoff(double threshold) {
+        this.lightCutoff = threshold;
+        dirtyAll = true;
+    }
+    
+    /**
+     * @return number of lights to sample per collision, or zero if all
+     * lights are to be evaluated.
+     */
+    public int getLightSamplesPerHit() {
+        return lightSamplesPerHit;
+    }
+    
+    /**
+     * @return minimum intensity of lights used for shading.
+     */
+    public double getLightCutoff() {
+        return lightCutoff;
+    }
+    
+    /**
+     * Retrieve hierarchy over the light sources in the scene, building
+     * it if necessary.
+     * 
+     * @return light tree
+     */
+    public LightTree getLightTree() {
+        if (lightTree == null)
+            lightTree = new LightTree(lightSources);
+        
+        return lightTree;
+    }
+    
+    /**
+     * Set sampler used to generate sample points for stochastic effects.
+     * The default is an Owen-scrambled Sobol sampler.
+     * 
+     * @param sampler 
+     */
+    public void setSampler(Sampler sampler) {
+        this.sampler = sampler;
+        dirtyAll = true;
+    }
+    
+    /**
+     * @return sampler used for stochastic effects, positioned at the pixel
+     * sample currently being traced.
+     */
+    public Sampler getSampler() {
+        return sampler;
+    }
+    
+    /**
+     * Set number of samples to trace through each pixel.  When more than
+     * one sample is used, samples are distributed over the pixel area to
+     * anti-alias the image.
+     * 
+     * @param samplesPerPixel 
+     */
+    public void setSamplesPerPixel(int samplesPerPixel) {
+        this.samplesPerPixel = samplesPerPixel;
+        dirtyAll = true;
+    }
+    
+    /**
+     * Enable convergence-based stopping of pixel sampling.  Once at least
+     * minSamples samples have been traced through a pixel, sampling stops
+     * as soon as the estimated variance of the pixel's mean luminance falls
+     * below the given target.  The number of samples set using
+     * setSamplesPerPixel() remains the maximum.  A target of zero (the
+     * default) disables adaptive sampling.
+     * 
+     * @param minSamples minimum number of samples per pixel
+     * @param varianceTarget target variance of pixel estimate
+     */
+    public void setAdaptiveSampling(int minSamples, double varianceTarget) {
+        this.minSamplesPerPixel = Math.max(2, minSamples);
+        this.varianceTarget = varianceTarget;
+        dirtyAll = true;
+    }
+    
+    /**
+     * Use the given path tracer to compute pixel colours instead of
+     * traceRay().  Passing null restores the default ray tracer.
+     * 
+     * @param pathTracer 
+     */
+    public void setPathTracer(PathTracer pathTracer) {
+        this.pathTracer = pathTracer;
+        dirtyAll = true;
+    }
+    
+    /**
+     * Retain the first collision of every camera ray traced by subsequent
+     * renders, so that the frame can be recomputed using relight() after
+     * changes to light sources or finishes.
+     * 
+     * @param retain 
+     */
+    public void setRetainPrimaryHits(boolean retain) {
+        this.retainPrimaryHits = retain;
+        if (!retain)
+            primaryHitCache = null;
+    }
+    
+    /**
+     * Use the given acceleration structure to find the objects hit by
+     * rays, rather than testing every object.  The structure is updated
+     * automatically when objects are added or changed: changes to object
+     * transformations are handled by refitting where the structure
+     * supports this.  Passing null restores exhaustive testing.
+     * 
+     * @param accelerationStructure 
+     */
+    public void setAccelerationStructure(AccelerationStructure accelerationStructure) {
+        this.accelerationStructure = accelerationStructure;
+        this.accelerationStructureValid = false;
+    }
+    
+    /**
+     * Retrieve acceleration structure, updating it if objects have
+     * changed since it was last updated.
+     * 
+     * @return acceleration structure, or null if none is in use.
+     */
+    public AccelerationStructure getAccelerationStructure() {
+        if (accelerationStructure != null && !accelerationStructureValid) {
+            accelerationStructure.update(sceneObjects);
+            accelerationStructureValid = true;
+        }
+        
+        return accelerationStructure;
+    }
+    
+    /**
+     * Set size of the square tiles in which images are rendered.  Camera
+     * rays through each tile are only tested against objects whose bounds
+     * intersect the region of space visible through the tile.
+     * 
+     * @param tileSize width and height of tiles
+     */
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
+    
+    /**
+     * Store rendered tiles in the given cache, and reuse tiles found there
+     * instead of tracing them.  Passing null disables the cache.  The
+     * cache is not used while primary hits are retained, as retained hits
+     * cannot be recovered from cached tiles.
+     * 
+     * @param tileCache cache to use
+     * @param tileSize width and height of tiles
+     */
+    public void setTileCache(TileCache tileCache, int tileSize) {
+        this.tileCache = tileCache;
+        this.tileSize = tileSize;
+    }
+    
     /**
      * Retrieve light sources in scene.
      * 
@@ -159,27 +460,250 @@ public class Scene {
     public Colour traceRay(Ray ray) {
 
         // Check for recursion depth violation:
-        if (recursionDepth++ > maxRecursionDepth){
+        if (recursionDepth > maxRecursionDepth){
             System.err.println("Warning: max recursion depth exceeded.");
             return backgroundColour;
         }
+        
+        recursionDepth += 1;
+        
+        if (recursionDepth > 1 && primaryHitCache != null && !relighting)
+            primaryHitCache.recordSecondaryRay();
                     
         // Determine closest intersecting object in scene:
+        SceneObject nearestObject;
+        if (recursionDepth == 1 && primaryCandidates != null)
+            nearestObject = findNearestObject(ray, primaryCandidates);
+        else
+            nearestObject = findNearestObject(ray, sceneObjects);
+
+        Colour colour;
+        if (nearestObject == null)
+            colour = backgroundColour;
+        else
+            colour = shadeCollision(ray, nearestObject);
+        
+        recursionDepth -= 1;
+        
+        return colour;
+    }
+    
+    /**
+     * Shade the most recent collision of ray with the given object.
+     * 
+     * @param ray
+     * @param object
+     * @return colour at collision point
+     */
+    Colour shadeCollision(Ray ray, SceneObject object) {
+        boolean wasPrimaryShading = primaryShading;
+        primaryShading = recursionDepth == 1;
+        
+        if (primaryShading)
+            recordFirstHit(ray, object);
+        
+        Colour colour = object.getCollisionColour();
+        
+        primaryShading = wasPrimaryShading;
+        
+        return colour;
+    }
+    
+    /**
+     * Shade the first collision of a camera ray, whose details have
+     * already been determined.
+     * 
+     * @param ray camera ray
+     * @param object object hit by ray
+     * @return colour at collision point
+     */
+    Colour shadeFirstHit(Ray ray, SceneObject object) {
+        recursionDepth = 1;
+        Colour colour = shadeCollision(ray, object);
+        recursionDepth = 0;
+        
+        return colour;
+    }
+    
+    /**
+     * Record details of the first collision of a camera ray for the
+     * requested AOVs and the primary hit cache.
+     * 
+     * @param ray camera ray
+     * @param object object hit
+     */
+    void recordFirstHit(Ray ray, SceneObject object) {
+        if (aovRecorder != null)
+            aovRecorder.recordFirstHit(ray, object);
+        
+        if (primaryHitCache != null && !relighting)
+            primaryHitCache.recordHit(object);
+    }
+    
+    /**
+     * Determine whether light contributions should currently be reported
+     * using recordLightContribution().
+     * 
+     * @return true if the LIGHTS AOV has been requested and the first hit
+     * of a camera ray is being shaded.
+     */
+    public boolean isRecordingLightContributions() {
+        return primaryShading && aovRecorder != null && aovRecorder.lights;
+    }
+    
+    /**
+     * Record contribution of a light to the direct illumination of the
+     * first hit of the current camera ray.
+     * 
+     * @param light
+     * @param colour contribution
+     */
+    public void recordLightContribution(LightSource light, Colour colour) {
+        aovRecorder.recordLight(light, colour.r, colour.g, colour.b);
+    }
+
+    /**
+     * Determine the closest object in the scene intersected by a ray.
+     * Details of the collision are recorded by the returned object.
+     * 
+     * @param ray
+     * @return nearest object, or null if the ray hits nothing.
+     */
+    public SceneObject findNearestObject(Ray ray) {
+        return findNearestObject(ray, sceneObjects);
+    }
+    
+    /**
+     * Determine the closest of the given objects intersected by a ray.
+     * 
+     * @param ray
+     * @param objects objects to test
+     * @return nearest object, or null if the ray hits none of them.
+     */
+    SceneObject findNearestObject(Ray ray, List<SceneObject> objects) {
+        if (objects == sceneObjects && accelerationStructure != null)
+            return getAccelerationStructure().findNearest(ray, new double[1]);
+        
         double nearestObjectDist = Double.POSITIVE_INFINITY;
         SceneObject nearestObject = null;
-        for (SceneObject object : sceneObjects) {
+        for (SceneObject object : objects) {
             double dist = object.getFirstCollision(ray);
             if (dist < nearestObjectDist) {
                 nearestObject = object;
                 nearestObjectDist = dist;
             }
         }
+        
+        return nearestObject;
+    }
+
+    /**
+     * Determine whether a ray collides with any object in the scene closer
+     * than the given distance.
+     * 
+     * @param ray
+     * @param maxDistance distance beyond which collisions are ignored
+     * @return true if ray is blocked
+     */
+    public boolean isOccluded(Ray ray, double maxDistance) {
+        if (accelerationStructure != null)
+            return getAccelerationStructure().isOccluded(ray, maxDistance);
+        
+        for (SceneObject object : sceneObjects) {
+            if (object.getFirstCollision(ray) < maxDistance)
+                return true;
+        }
+        
+        return false;
+    }
 
-        if (nearestObject == null)
-            return backgroundColour;
-        else {
-            return nearestObject.getCollisionColour();
+    /**
+     * Determine fraction of light of each colour passing along a shadow
+     * ray.  The ray is followed through any transparent objects in its
+     * path, each of which filters the light once however many of its
+     * surfaces are crossed, until it either reaches the light or an
+     * opaque object.  Scenes without transparent objects reduce to a
+     * single occlusion test.
+     * 
+     * @param ray shadow ray, with unit direction
+     * @param maxDistance distance to the light
+     * @return transmittance, or null if the ray is blocked
+     */
+    public Colour getTransmittance(Ray ray, double maxDistance) {
+        if (!hasTransparentObjects())
+            return isOccluded(ray, maxDistance) ? null : Colour.white;
+        
+        Colour transmittance = Colour.white;
+        List<SceneObject> crossed = new ArrayList<>();
+        double[] distance = new double[1];
+        for (int i=0; i<MAX_SHADOW_CROSSINGS; i++) {
+            SceneObject object = findNearestObject(ray, distance);
+            if (object == null || distance[0] >= maxDistance)
+                return transmittance;
+            
+            Colour filter = object.getTransmittance();
+            if (filter == null)
+                return null;
+            
+            if (!crossed.contains(object)) {
+                crossed.add(object);
+                transmittance = transmittance.filter(filter);
+                if (transmittance.r <= 0.0 && transmittance.g <= 0.0
+                        && transmittance.b <= 0.0)
+                    return null;
+            }
+            
+            // Resume search just beyond the surface crossed:
+            ray = new Ray(ray.origin.add(distance[0] + SHADOW_STEP, ray.direction),
+                    ray.direction);
+            maxDistance -= distance[0] + SHADOW_STEP;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Find nearest object hit by ray, along with the distance to the hit.
+     * 
+     * @param ray
+     * @param distance array in which to return distance to hit
+     * @return nearest object, or null if the ray hits nothing
+     */
+    private SceneObject findNearestObject(Ray ray, double[] distance) {
+        if (accelerationStructure != null)
+            return getAccelerationStructure().findNearest(ray, distance);
+        
+        distance[0] = Double.POSITIVE_INFINITY;
+        SceneObject nearestObject = null;
+        for (SceneObject object : sceneObjects) {
+            double dist = object.getFirstCollision(ray);
+            if (dist < distance[0]) {
+                nearestObject = object;
+                distance[0] = dist;
+            }
+        }
+        
+        return nearestObject;
+    }
+    
+    /**
+     * Determine whether any object in the scene is transparent.
+     * 
+     * @return true if shadow rays may pass through objects
+     */
+    private boolean hasTransparentObjects() {
+        if (!transparentObjectsValid) {
+            transparentObjects = false;
+            for (SceneObject object : sceneObjects) {
+                if (object.isTransparent()) {
+                    transparentObjects = true;
+                    break;
+                }
+            }
+            transparentObjectsValid = true;
         }
+        
+        return transparentObjects;
     }
 
     /**
@@ -192,34 +716,557 @@ public class Scene {
      * @return BufferedImage containing rendering.
      */
     public BufferedImage render(int width, int height, int maxRecursionDepth) {
-        BufferedImage image = new BufferedImage(width, height,
-                BufferedImage.TYPE_INT_BGR);
+        return renderFrame(width, height, maxRecursionDepth,
+                EnumSet.noneOf(AOV.class)).getImage();
+    }
+    
+    /**
+     * Render scene to a floating point frame buffer, which also contains
+     * the normal, depth and albedo of the surfaces first hit by the camera
+     * rays.  Use this rather than render() when the result is to be
+     * post-processed.
+     *
+     * @param width Width of resulting image.
+     * @param height Height of resulting image.
+     * @param maxRecursionDepth
+     *
+     * @return FrameBuffer containing rendering.
+     */
+    public FrameBuffer renderFrame(int width, int height, int maxRecursionDepth) {
+        return renderFrame(width, height, maxRecursionDepth,
+                EnumSet.of(AOV.NORMAL, AOV.DEPTH, AOV.ALBEDO));
+    }
+    
+    /**
+     * Render scene to a floating point frame buffer, recording the given
+     * set of AOVs alongside the image in the same pass.
+     *
+     * @param width Width of resulting image.
+     * @param height Height of resulting image.
+     * @param maxRecursionDepth
+     * @param aovs AOVs to record
+     *
+     * @return FrameBuffer containing rendering.
+     */
+    public FrameBuffer renderFrame(int width, int height, int maxRecursionDepth,
+            Set<AOV> aovs) {
+        FrameBuffer frame = new FrameBuffer(width, height, aovs, lightSources.size());
 
         this.maxRecursionDepth = maxRecursionDepth;
         
-        Random random = new Random();
+        if (aovs.isEmpty())
+            aovRecorder = null;
+        else
+            aovRecorder = new AOVRecorder(aovs, this);
+        
+        if (retainPrimaryHits)
+            primaryHitCache = new PrimaryHitCache(camera, width, height);
+        
+        renderTiles(frame, aovs);
+        
+        aovRecorder = null;
+        
+        if (retainPrimaryHits) {
+            lastFrame = frame;
+            lastAOVs = aovs;
+            dirtyBounds.clear();
+            dirtyAll = false;
+        }
+        
+        return frame;
+    }
+    
+    /**
+     * Fill frame buffer tile by tile.  If a tile cache is in use, tiles
+     * are taken from the cache where present and traced tiles are added
+     * to it.
+     * 
+     * @param frame Frame buffer to render to.
+     * @param aovs AOVs being recorded.
+     * @throws IllegalStateException if a tile cache is in use and the
+     * content hash of the scene changed during rendering
+     */
+    private void renderTiles(FrameBuffer frame, Set<AOV> aovs) {
+        String sceneHash = null;
+        if (tileCache != null && !retainPrimaryHits)
+            sceneHash = ContentHash.of(this, frame.width, frame.height,
+                    maxRecursionDepth, aovs);
+        
+        List<Vector3D[]> objectBounds = new ArrayList<>();
+        if (accelerationStructure == null) {
+            for (SceneObject object : sceneObjects)
+                objectBounds.add(object.getBounds());
+        }
+        
+        for (int y0 = 0; y0 < frame.height; y0 += tileSize) {
+            for (int x0 = 0; x0 < frame.width; x0 += tileSize) {
+                int w = Math.min(tileSize, frame.width - x0);
+                int h = Math.min(tileSize, frame.height - y0);
+                
+                if (sceneHash != null
+                        && tileCache.load(sceneHash, frame, x0, y0, w, h))
+                    continue;
+                
+                if (accelerationStructure == null)
+                    primaryCandidates = getPrimaryCandidates(objectBounds,
+                            frame.width, frame.height, x0, y0, w, h);
+                
+                for (int x = x0; x < x0+w; x++) {
+                    for (int y = y0; y < y0+h; y++)
+                        renderPixel(frame, x, y);
+                }
+                
+                primaryCandidates = null;
+                
+                if (sceneHash != null)
+                    tileCache.store(sceneHash, frame, x0, y0, w, h);
+            }
+        }
+        
+        // State filled in while rendering must not be hashed, or the
+        // tiles just stored could never be found again:
+        if (sceneHash != null && !sceneHash.equals(ContentHash.of(this,
+                frame.width, frame.height, maxRecursionDepth, aovs)))
+            throw new IllegalStateException("Scene content hash changed "
+                    + "during rendering: a field holding derived state "
+                    + "is missing its @NotContent annotation.");
+    }
+    
+    /**
+     * Determine which objects may be hit by camera rays through the given
+     * tile, by testing object bounds against the tile's frustum.
+     * Unbounded objects are always included.
+     * 
+     * @param objectBounds scene-frame bounds of each object
+     * @param width Width of image.
+     * @param height Height of image.
+     * @param x0 left edge of tile
+     * @param y0 top edge of tile
+     * @param w width of tile
+     * @param h height of tile
+     * @return candidate objects
+     */
+    List<SceneObject> getPrimaryCandidates(List<Vector3D[]> objectBounds,
+            int width, int height, int x0, int y0, int w, int h) {
+        if (camera.hasAperture())
+            return sceneObjects;
+        
+        // Camera ray samples may lie anywhere within each pixel:
+        Vector3D[] planes = camera.getFrustumPlanes(width, height,
+                x0, y0, x0+w, y0+h);
+        
+        List<SceneObject> candidates = new ArrayList<>();
+        for (int i = 0; i < sceneObjects.size(); i++) {
+            Vector3D[] bounds = objectBounds.get(i);
+            if (bounds == null || intersectsFrustum(bounds, planes))
+                candidates.add(sceneObjects.get(i));
+        }
+        
+        return candidates;
+    }
+    
+    /**
+     * Determine whether a box intersects the frustum bounded by planes
+     * through the camera location.  Conservative: may return true for
+     * boxes which lie just outside the frustum.
+     * 
+     * @param bounds box bounds
+     * @param planes inward-facing plane normals
+     * @return false if box lies entirely outside frustum.
+     */
+    private boolean intersectsFrustum(Vector3D[] bounds, Vector3D[] planes) {
+        double[] min = bounds[0].subtract(camera.location).toArray();
+        double[] max = bounds[1].subtract(camera.location).toArray();
+        
+        for (Vector3D plane : planes) {
+            double[] n = plane.toArray();
+            
+            // Corner of box furthest along the plane normal:
+            double d = 0.0;
+            for (int a = 0; a < 3; a++)
+                d += n[a]*(n[a] > 0 ? max[a] : min[a]);
+            
+            if (d < -1e-9*plane.getNorm())
+                return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Update the most recent render following changes to scene objects,
+     * re-tracing only those pixels which may be affected.  Requires
+     * primary hits to have been retained (see setRetainPrimaryHits()).
+     * 
+     * A pixel is re-traced if it lies within the screen-space projection
+     * of the old or new bounds of a changed object, if a shadow ray from
+     * the first hit of any of its samples towards any light passes
+     * through those bounds, or if any of its samples traced secondary
+     * rays (reflection, refraction).  Changes to the camera, lights or
+     * render settings, changes to unbounded objects and path-traced
+     * renders cause the whole frame to be re-rendered.  The result is
+     * therefore identical to that of a full render.
+     * 
+     * @return BufferedImage containing rendering.
+     */
+    public BufferedImage rerender() {
+        return rerenderFrame().getImage();
+    }
+    
+    /**
+     * Update the most recent render following changes to scene objects,
+     * recording the same AOVs as the original render.
+     * 
+     * @return FrameBuffer containing rendering.
+     * @see #rerender() 
+     */
+    public FrameBuffer rerenderFrame() {
+        if (lastFrame == null || primaryHitCache == null)
+            throw new IllegalStateException(
+                    "No primary hits retained: call setRetainPrimaryHits() "
+                            + "before rendering.");
+        
+        int width = lastFrame.width;
+        int height = lastFrame.height;
+        
+        if (dirtyAll || pathTracer != null || camera.hasAperture()
+                || primaryHitCache.camera != camera)
+            return renderFrame(width, height, maxRecursionDepth, lastAOVs);
+        
+        boolean[] dirty = findDirtyPixels(width, height);
+        
+        FrameBuffer frame = lastFrame.copy();
+        
+        if (lastAOVs.isEmpty())
+            aovRecorder = null;
+        else
+            aovRecorder = new AOVRecorder(lastAOVs, this);
         
         for (int x = 0; x < width; x++) {
             for (int y = 0; y < height; y++) {
+                if (dirty[y*width + x])
+                    renderPixel(frame, x, y);
+            }
+        }
+        
+        aovRecorder = null;
+        
+        lastFrame = frame;
+        dirtyBounds.clear();
+        
+        return frame;
+    }
+    
+    /**
+     * Identify pixels of the most recent render which may be affected by
+     * changes within the dirty bounds.
+     * 
+     * @param width
+     * @param height
+     * @return array indicating which pixels must be re-traced
+     */
+    boolean[] findDirtyPixels(int width, int height) {
+        boolean[] dirty = new boolean[width*height];
+        
+        // Pixels which may see changed objects directly:
+        for (Vector3D[] bounds : dirtyBounds) {
+            int xMin = width, xMax = -1, yMin = height, yMax = -1;
+            for (int corner = 0; corner < 8; corner++) {
+                Vector3D vertex = new Vector3D(
+                        bounds[(corner & 1)].getX(),
+                        bounds[(corner & 2) >> 1].getY(),
+                        bounds[(corner & 4) >> 2].getZ());
                 
-                //System.out.format("x:%d y%d\n", x,y);
+                if (vertex.subtract(camera.location).dotProduct(camera.direction) <= 0) {
+                    // Bounds extend behind the camera
+                    xMin = 0; xMax = width-1;
+                    yMin = 0; yMax = height-1;
+                    break;
+                }
                 
-                Ray ray = camera.getRay(width, height, x, y);
+                int[] coord = camera.getPixel(width, height, vertex);
+                xMin = Math.min(xMin, coord[0]);
+                xMax = Math.max(xMax, coord[0]);
+                yMin = Math.min(yMin, coord[1]);
+                yMax = Math.max(yMax, coord[1]);
+            }
+            
+            // Allow for rounding and sub-pixel sample offsets:
+            xMin = Math.max(0, xMin-2);
+            xMax = Math.min(width-1, xMax+2);
+            yMin = Math.max(0, yMin-2);
+            yMax = Math.min(height-1, yMax+2);
+            
+            for (int y = yMin; y <= yMax; y++) {
+                for (int x = xMin; x <= xMax; x++)
+                    dirty[y*width + x] = true;
+            }
+        }
+        
+        // Pixels whose shadows or reflections may have changed:
+        for (int i = 0; i < width*height; i++) {
+            if (dirty[i])
+                continue;
+            
+            if (primaryHitCache.secondary[i]) {
+                dirty[i] = true;
+                continue;
+            }
+            
+            for (SceneObject.Collision collision : primaryHitCache.collisions[i]) {
+                if (collision != null && isShadowDirty(collision.normalRay.origin)) {
+                    dirty[i] = true;
+                    break;
+                }
+            }
+        }
+        
+        return dirty;
+    }
+    
+    /**
+     * Determine whether the segment between the given point and any part
+     * of any light source passes through the dirty bounds.  Shadow rays
+     * end at the light, so objects beyond it cannot affect the point.
+     * 
+     * @param point
+     * @return true if the illumination of point may have changed.
+     */
+    private boolean isShadowDirty(Vector3D point) {
+        double[] p = point.toArray();
+        
+        for (LightSource light : lightSources) {
+            double[] d = light.location.subtract(point).toArray();
+            
+            // Segments to an area light lie within its bounding radius
+            // of the segment to its centre:
+            double pad = 0.0;
+            if (light instanceof AreaLight)
+                pad = ((AreaLight)light).getBoundingRadius();
+            
+            for (Vector3D[] bounds : dirtyBounds) {
+                double[] min = bounds[0].toArray();
+                double[] max = bounds[1].toArray();
                 
-                // Reset recursion depth:
-                recursionDepth = 0;
+                double tNear = 0.0, tFar = 1.0;
+                for (int a = 0; a < 3 && tNear <= tFar; a++) {
+                    double lo = min[a] - pad - p[a];
+                    double hi = max[a] + pad - p[a];
+                    if (d[a] == 0.0) {
+                        if (lo > 0.0 || hi < 0.0)
+                            tNear = Double.POSITIVE_INFINITY;
+                    } else {
+                        double t0 = lo/d[a], t1 = hi/d[a];
+                        tNear = Math.max(tNear, Math.min(t0, t1));
+                        tFar = Math.min(tFar, Math.max(t0, t1));
+                    }
+                }
                 
-                //debugThisRay = random.nextDouble()<debugFrac;
+                if (tNear <= tFar)
+                    return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Recompute the most recent render using the retained first hits of
+     * the camera rays.  Only shading, shadow rays and secondary rays are
+     * traced, so this is much faster than a full render.  Valid as long
+     * as the camera and the scene geometry are unchanged; light sources,
+     * pigments and finishes may differ from those used for the original
+     * render.
+     * 
+     * @return BufferedImage containing rendering.
+     */
+    public BufferedImage relight() {
+        return relightFrame(EnumSet.noneOf(AOV.class)).getImage();
+    }
+    
+    /**
+     * Relight the most recent render, recording the given set of AOVs.
+     * 
+     * @param aovs AOVs to record
+     * @return FrameBuffer containing rendering.
+     * @see #relight()
+     */
+    public FrameBuffer relightFrame(Set<AOV> aovs) {
+        if (primaryHitCache == null)
+            throw new IllegalStateException(
+                    "No primary hits retained: call setRetainPrimaryHits() "
+                            + "before rendering.");
+        
+        if (primaryHitCache.camera != camera)
+            throw new IllegalStateException(
+                    "Camera has changed since primary hits were recorded.");
+        
+        int width = primaryHitCache.width;
+        int height = primaryHitCache.height;
+        FrameBuffer frame = new FrameBuffer(width, height, aovs, lightSources.size());
+        
+        if (aovs.isEmpty())
+            aovRecorder = null;
+        else
+            aovRecorder = new AOVRecorder(aovs, this);
+        
+        relighting = true;
+        
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++)
+                relightPixel(frame, x, y);
+        }
+        
+        relighting = false;
+        aovRecorder = null;
+        
+        return frame;
+    }
+    
+    /**
+     * Obtain camera ray for the current pixel sample.  Sampler dimensions
+     * are consumed in a fixed order (film, then lens) so that every pixel
+     * sample sees the same assignment.
+     * 
+     * @param width Width of image.
+     * @param height Height of image.
+     * @param x X-coordinate of pixel.
+     * @param y Y-coordinate of pixel.
+     * @return camera ray
+     */
+    Ray getCameraRay(int width, int height, int x, int y) {
+        double px = x, py = y;
+        if (samplesPerPixel > 1) {
+            double[] film = sampler.get2D();
+            px += film[0];
+            py += film[1];
+        }
+        
+        double[] lens = {0.0, 0.0};
+        if (camera.hasAperture())
+            lens = sampler.get2D();
+        
+        return camera.getRay(width, height, px, py, lens[0], lens[1]);
+    }
+    
+    /**
+     * Shade the retained first hits of the samples for a single pixel.
+     * 
+     * @param frame Frame buffer to render to.
+     * @param x X-coordinate of pixel.
+     * @param y Y-coordinate of pixel.
+     */
+    void relightPixel(FrameBuffer frame, int x, int y) {
+        
+        int i = y*frame.width + x;
+        SceneObject[] objects = primaryHitCache.objects[i];
+        SceneObject.Collision[] collisions = primaryHitCache.collisions[i];
+        
+        if (aovRecorder != null)
+            aovRecorder.startPixel();
+        
+        double r = 0.0, g = 0.0, b = 0.0;
+        int n = objects.length;
+        for (int s = 0; s < n; s++) {
+            sampler.startPixelSample(x, y, s);
+            
+            // The camera ray itself is not needed, but generating it
+            // consumes the same sampler dimensions as renderPixel(), so
+            // that shading sees the same sample values as the original
+            // render.  Do not remove.
+            getCameraRay(frame.width, frame.height, x, y);
+            
+            Colour sampleColour;
+            if (objects[s] == null)
+                sampleColour = backgroundColour;
+            else {
+                objects[s].restoreCollision(collisions[s]);
+                Ray ray = collisions[s].incidentRay;
                 
-                // Trace ray through scene:
-                Colour pixelColour = traceRay(ray);
-              
-                image.setRGB(x, y, pixelColour.getInt());
+                if (pathTracer != null)
+                    sampleColour = pathTracer.tracePath(this, ray, objects[s]);
+                else
+                    sampleColour = shadeFirstHit(ray, objects[s]);
+            }
+            
+            r += sampleColour.r;
+            g += sampleColour.g;
+            b += sampleColour.b;
+        }
+        
+        frame.setColour(x, y, new Colour(r/n, g/n, b/n));
+        
+        if (aovRecorder != null)
+            aovRecorder.finishPixel(frame, x, y, n);
+    }
+    
+    /**
+     * Trace all samples for a single pixel and record the averaged
+     * results in the frame buffer.
+     * 
+     * @param frame Frame buffer to render to.
+     * @param x X-coordinate of pixel.
+     * @param y Y-coordinate of pixel.
+     */
+    void renderPixel(FrameBuffer frame, int x, int y) {
+        
+        int width = frame.width;
+        int height = frame.height;
+        
+        if (aovRecorder != null)
+            aovRecorder.startPixel();
+        
+        double r = 0.0, g = 0.0, b = 0.0;
+        double lumSum = 0.0, lumSumSq = 0.0;
+        int n = 0;
+        while (n < samplesPerPixel) {
+            sampler.startPixelSample(x, y, n);
+            
+            Ray ray = getCameraRay(width, height, x, y);
+            
+            if (primaryHitCache != null)
+                primaryHitCache.startSample();
+            
+            // Reset recursion depth:
+            recursionDepth = 0;
+            
+            //debugThisRay = sampler.get1D()<debugFrac;
+            
+            // Trace ray through scene:
+            Colour sampleColour;
+            if (pathTracer != null)
+                sampleColour = pathTracer.tracePath(this, ray);
+            else
+                sampleColour = traceRay(ray);
+            
+            r += sampleColour.r;
+            g += sampleColour.g;
+            b += sampleColour.b;
+            n += 1;
+            
+            // Stop once the pixel estimate has converged:
+            if (varianceTarget > 0.0) {
+                double lum = 0.2126*sampleColour.r + 0.7152*sampleColour.g
+                        + 0.0722*sampleColour.b;
+                lumSum += lum;
+                lumSumSq += lum*lum;
                 
+                if (n >= minSamplesPerPixel) {
+                    double mean = lumSum/n;
+                    double sampleVar = (lumSumSq - n*mean*mean)/(n - 1);
+                    if (sampleVar/n < varianceTarget)
+                        break;
+                }
             }
         }
         
-        return image;
+        frame.setColour(x, y, new Colour(r/n, g/n, b/n));
+        
+        if (aovRecorder != null)
+            aovRecorder.finishPixel(frame, x, y, n);
+        
+        if (primaryHitCache != null)
+            primaryHitCache.finishPixel(x, y);
     }
     
     /**
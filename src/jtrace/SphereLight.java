@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace;
+
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+/**
+ * Spherical area light.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class SphereLight extends AreaLight {
+    
+    double radius;
+    
+    public SphereLight(Vector3D location, double radius, double scale) {
+        super(location, scale);
+        this.radius = radius;
+    }
+    
+    public SphereLight(Vector3D location, double radius, double scale,
+            Colour colour, boolean invSqFalloff) {
+        super(location, scale, colour, invSqFalloff);
+        this.radius = radius;
+    }
+    
+    public double getRadius() {
+        return radius;
+    }
+
+    @Override
+    public double getBoundingRadius() {
+        return radius;
+    }
+
+    /**
+     * Samples are distributed over the disk forming the silhouette of
+     * the sphere as seen from the illuminated point, using the concentric
+     * mapping from the unit square to preserve stratification.
+     */
+    @Override
+    public Vector3D getSamplePoint(Vector3D point, double u, double v) {
+        
+        // Basis for plane perpendicular to direction from point to light:
+        Vector3D w = location.subtract(point);
+        if (w.getNormSq() == 0.0)
+            return location;
+        w = w.normalize();
+        
+        Vector3D a;
+        if (Math.abs(w.getX()) < 0.9)
+            a = Vector3D.PLUS_I.crossProduct(w).normalize();
+        else
+            a = Vector3D.PLUS_J.crossProduct(w).normalize();
+        Vector3D b = w.crossProduct(a);
+        
+        // Concentric mapping of (u,v) onto the unit disk:
+        double su = 2.0*u - 1.0;
+        double sv = 2.0*v - 1.0;
+        double r, theta;
+        if (su == 0.0 && sv == 0.0) {
+            r = 0.0;
+            theta = 0.0;
+        } else if (Math.abs(su) > Math.abs(sv)) {
+            r = su;
+            theta = 0.25*Math.PI*sv/su;
+        } else {
+            r = sv;
+            theta = 0.5*Math.PI - 0.25*Math.PI*su/sv;
+        }
+        
+        return new Vector3D(1.0, location,
+                radius*r*Math.cos(theta), a,
+                radius*r*Math.sin(theta), b);
+    }
+}
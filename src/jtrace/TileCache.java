@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On-disk cache of rendered tiles, shared between runs.  Tiles are keyed
+ * by a hash of the scene content and render settings together with the
+ * tile rectangle, so a tile is only reused for an identical rendering.
+ * The total size of the cache directory is bounded: least recently used
+ * tiles are deleted once the bound is exceeded.
+ * 
+ * Tiles are written to a temporary file and then renamed, so several
+ * processes may safely share a cache directory.  Unreadable tiles are
+ * treated as missing.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class TileCache {
+    
+    static final int MAGIC = 0x6a74696c;
+    
+    /**
+     * Age after which a temporary file is assumed to have been left by a
+     * failed or crashed writer, in milliseconds.
+     */
+    static final long STALE_TEMP_AGE = 60*60*1000;
+    
+    File directory;
+    long maxBytes;
+    long totalBytes;
+    
+    int hits, misses;
+    
+    /**
+     * Create tile cache using the given directory, which is created if
+     * it does not exist.
+     * 
+     * @param directory cache directory
+     * @param maxBytes maximum total size of cached tiles
+     * @throws IOException if the directory cannot be created
+     */
+    public TileCache(File directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        
+        Files.createDirectories(directory.toPath());
+        totalBytes = 0;
+        for (File file : listTiles())
+            totalBytes += file.length();
+    }
+    
+    /**
+     * @return number of tiles found in cache since creation.
+     */
+    public int getHits() {
+        return hits;
+    }
+    
+    /**
+     * @return number of tiles missing from cache since creation.
+     */
+    public int getMisses() {
+        return misses;
+    }
+    
+    private File[] listTiles() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".tile"));
+        return files == null ? new File[0] : files;
+    }
+    
+    private File[] listTempFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".tmp"));
+        return files == null ? new File[0] : files;
+    }
+    
+    private File getFile(String sceneHash, int x0, int y0, int w, int h) {
+        return new File(directory, String.format("%s-%d-%d-%d-%d.tile",
+                sceneHash, x0, y0, w, h));
+    }
+    
+    /**
+     * Copy tile from cache into frame buffer.
+     * 
+     * @param sceneHash hash of scene content and settings
+     * @param frame frame buffer to fill
+     * @param x0 left edge of tile
+     * @param y0 top edge of tile
+     * @param w width of tile
+     * @param h height of tile
+     * @return true if tile was found
+     */
+    boolean load(String sceneHash, FrameBuffer frame, int x0, int y0, int w, int h) {
+        File file = getFile(sceneHash, x0, y0, w, h);
+        if (!file.exists()) {
+            misses += 1;
+            return false;
+        }
+        
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            
+            if (in.readInt() != MAGIC || in.readInt() != w || in.readInt() != h
+                    || in.readInt() != getLayout(frame))
+                throw new IOException("Tile layout mismatch");
+            
+            for (double[] buffer : getBuffers(frame))
+                readRegion(in, buffer, buffer.length/(frame.width*frame.height),
+                        frame.width, x0, y0, w, h);
+            
+            if (frame.objectId != null) {
+                for (int y = y0; y < y0+h; y++) {
+                    for (int x = x0; x < x0+w; x++)
+                        frame.objectId[y*frame.width + x] = in.readInt();
+                }
+            }
+            
+        } catch (IOException ex) {
+            System.err.println("Warning: ignoring unreadable tile "
+                    + file + ": " + ex.getMessage());
+            misses += 1;
+            return false;
+        }
+        
+        file.setLastModified(System.currentTimeMillis());
+        hits += 1;
+        return true;
+    }
+    
+    /**
+     * Copy tile from frame buffer into cache.
+     * 
+     * @param sceneHash hash of scene content and settings
+     * @param frame frame buffer containing tile
+     * @param x0 left edge of tile
+     * @param y0 top edge of tile
+     * @param w width of tile
+     * @param h height of tile
+     */
+    void store(String sceneHash, FrameBuffer frame, int x0, int y0, int w, int h) {
+        File file = getFile(sceneHash, x0, y0, w, h);
+        long oldSize = file.length();
+        
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("tile", ".tmp", directory);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(w);
+                out.writeInt(h);
+                out.writeInt(getLayout(frame));
+                
+                for (double[] buffer : getBuffers(frame))
+                    writeRegion(out, buffer, buffer.length/(frame.width*frame.height),
+                            frame.width, x0, y0, w, h);
+                
+                if (frame.objectId != null) {
+                    for (int y = y0; y < y0+h; y++) {
+                        for (int x = x0; x < x0+w; x++)
+                            out.writeInt(frame.objectId[y*frame.width + x]);
+                    }
+                }
+            }
+            
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+            
+        } catch (IOException ex) {
+            System.err.println("Warning: failed to cache tile "
+                    + file + ": " + ex.getMessage());
+            return;
+        } finally {
+            if (tmp != null)
+                tmp.delete();
+        }
+        
+        // A tile stored by another process may have been replaced:
+        totalBytes += file.length() - oldSize;
+        if (totalBytes > maxBytes)
+            evict();
+    }
+    
+    /**
+     * Delete least recently used tiles until the cache size is within
+     * its bound.  Temporary files left behind by failed writes are
+     * deleted first.
+     */
+    private void evict() {
+        long staleTime = System.currentTimeMillis() - STALE_TEMP_AGE;
+        for (File file : listTempFiles()) {
+            if (file.lastModified() < staleTime)
+                file.delete();
+        }
+        
+        File[] files = listTiles();
+        long[] lastUsed = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        totalBytes = 0;
+        for (int i = 0; i < files.length; i++) {
+            lastUsed[i] = files[i].lastModified();
+            order[i] = i;
+            totalBytes += files[i].length();
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> lastUsed[i]));
+        
+        for (int i = 0; i < files.length && totalBytes > maxBytes; i++) {
+            File file = files[order[i]];
+            long size = file.length();
+            if (file.delete())
+                totalBytes -= size;
+        }
+    }
+    
+    /**
+     * @return bit mask identifying the AOV buffers present in frame.
+     */
+    private static int getLayout(FrameBuffer frame) {
+        int layout = 0;
+        if (frame.normal != null)
+            layout |= 1;
+        if (frame.depth != null)
+            layout |= 2;
+        if (frame.objectId != null)
+            layout |= 4;
+        if (frame.albedo != null)
+            layout |= 8;
+        if (frame.lights != null)
+            layout |= 16 | (frame.lights.length << 8);
+        
+        return layout;
+    }
+    
+    /**
+     * @return floating point buffers present in frame.
+     */
+    private static double[][] getBuffers(FrameBuffer frame) {
+        int n = frame.lights == null ? 0 : frame.lights.length;
+        double[][] buffers = new double[4 + n][];
+        int count = 0;
+        
+        buffers[count++] = frame.colour;
+        if (frame.normal != null)
+            buffers[count++] = frame.normal;
+        if (frame.depth != null)
+            buffers[count++] = frame.depth;
+        if (frame.albedo != null)
+            buffers[count++] = frame.albedo;
+        for (int l = 0; l < n; l++)
+            buffers[count++] = frame.lights[l];
+        
+        return Arrays.copyOf(buffers, count);
+    }
+    
+    private static void readRegion(DataInputStream in, double[] buffer,
+            int channels, int width, int x0, int y0, int w, int h) throws IOException {
+        for (int y = y0; y < y0+h; y++) {
+            for (int i = channels*(y*width + x0); i < channels*(y*width + x0 + w); i++)
+                buffer[i] = in.readDouble();
+        }
+    }
+    
+    private static void writeRegion(DataOutputStream out, double[] buffer,
+            int channels, int width, int x0, int y0, int w, int h) throws IOException {
+        for (int y = y0; y < y0+h; y++) {
+            for (int i = channels*(y*width + x0); i < channels*(y*width + x0 + w); i++)
+                out.writeDouble(buffer[i]);
+        }
+    }
+}
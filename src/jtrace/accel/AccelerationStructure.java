@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.accel;
+
+import java.util.List;
+import jtrace.Ray;
+import jtrace.object.SceneObject;
+
+/**
+ * Abstract class for structures which accelerate the search for objects
+ * intersected by a ray.
+ * 
+ * Collision details are recorded by intersected objects exactly as if
+ * every object had been tested in turn, so the object returned by
+ * findNearest() can be shaded directly.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public abstract class AccelerationStructure {
+    
+    long lastUpdateNanos;
+    boolean lastUpdateRebuilt;
+    
+    /**
+     * (Re)build structure over the given objects.
+     * 
+     * @param objects objects to include
+     */
+    public abstract void build(List<SceneObject> objects);
+    
+    /**
+     * Adapt structure to changes in the bounds of the objects it was last
+     * built over, without changing its topology.  Structures which cannot
+     * do this, or which judge the adapted structure to be too inefficient,
+     * return false.
+     * 
+     * @param objects objects to include
+     * @return true if the structure was successfully refitted
+     */
+    protected boolean refit(List<SceneObject> objects) {
+        return false;
+    }
+    
+    /**
+     * Bring structure up to date following changes to the given objects,
+     * refitting it if possible and rebuilding it otherwise.  Must be
+     * called whenever the objects or their transformations change.
+     * 
+     * @param objects objects to include
+     */
+    public void update(List<SceneObject> objects) {
+        long startTime = System.nanoTime();
+        
+        lastUpdateRebuilt = !refit(objects);
+        if (lastUpdateRebuilt)
+            build(objects);
+        
+        lastUpdateNanos = System.nanoTime() - startTime;
+    }
+    
+    /**
+     * @return time taken by the most recent call to update(), in
+     * milliseconds.
+     */
+    public double getLastUpdateTime() {
+        return lastUpdateNanos*1e-6;
+    }
+    
+    /**
+     * @return true if the most recent call to update() rebuilt the
+     * structure rather than refitting it.
+     */
+    public boolean wasLastUpdateRebuild() {
+        return lastUpdateRebuilt;
+    }
+    
+    /**
+     * Determine the closest object intersected by a ray.
+     * 
+     * @param ray ray to trace
+     * @param distance array whose first element receives the distance to
+     * the intersection
+     * @return nearest object, or null if the ray hits nothing.
+     */
+    public abstract SceneObject findNearest(Ray ray, double[] distance);
+    
+    /**
+     * Determine whether a ray intersects any object closer than the given
+     * distance.
+     * 
+     * @param ray ray to trace
+     * @param maxDistance distance beyond which hits are ignored
+     * @return true if any object is hit
+     */
+    public abstract boolean isOccluded(Ray ray, double maxDistance);
+    
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.accel;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import jtrace.Ray;
+import jtrace.object.SceneObject;
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+/**
+ * Bounding volume hierarchy over the scene-frame bounds of objects.
+ * Object bounds are gathered in parallel into a flat array and the
+ * hierarchy itself is a PrimitiveBVH, built with a parallel binned SAH.
+ * Unbounded objects are kept outside the hierarchy and tested against
+ * every ray.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class BVH extends AccelerationStructure {
+    
+    PrimitiveBVH hierarchy;
+    
+    /**
+     * Bounded objects, indexed by primitive number.
+     */
+    SceneObject[] bounded;
+    
+    SceneObject[] unbounded;
+    
+    /**
+     * Objects hierarchy was built over, and its SAH cost when built.
+     */
+    SceneObject[] builtObjects;
+    double builtCost;
+    
+    double rebuildThreshold;
+    
+    /**
+     * Create empty hierarchy.  Call build() to populate.
+     */
+    public BVH() {
+        bounded = new SceneObject[0];
+        unbounded = new SceneObject[0];
+        rebuildThreshold = 1.5;
+    }
+    
+    /**
+     * Create hierarchy over the given objects.
+     * 
+     * @param objects 
+     */
+    public BVH(List<SceneObject> objects) {
+        this();
+        build(objects);
+    }
+    
+    /**
+     * Set the factor by which the SAH cost of a refitted hierarchy may
+     * exceed the cost of the hierarchy when it was built before update()
+     * rebuilds it from scratch.
+     * 
+     * @param threshold ratio of costs (default 1.5)
+     */
+    public void setRebuildThreshold(double threshold) {
+        this.rebuildThreshold = threshold;
+    }
+    
+    /**
+     * Compute scene-frame bounds of objects in parallel.
+     * 
+     * @return array holding minimum x, y, z then maximum x, y, z of each
+     * object, or null if any object is unbounded.
+     */
+    private static double[] computeBounds(SceneObject[] objects) {
+        double[] res = new double[6*objects.length];
+        boolean allBounded = IntStream.range(0, objects.length).parallel()
+                .allMatch(i -> {
+                    Vector3D[] b = objects[i].getBounds();
+                    if (b == null)
+                        return false;
+                    res[6*i] = b[0].getX();
+                    res[6*i + 1] = b[0].getY();
+                    res[6*i + 2] = b[0].getZ();
+                    res[6*i + 3] = b[1].getX();
+                    res[6*i + 4] = b[1].getY();
+                    res[6*i + 5] = b[1].getZ();
+                    return true;
+                });
+        
+        return allBounded ? res : null;
+    }
+
+    @Override
+    public void build(List<SceneObject> objects) {
+        List<SceneObject> boundedList = new ArrayList<>();
+        List<SceneObject> unboundedList = new ArrayList<>();
+        
+        for (SceneObject object : objects) {
+            if (object.getBoundsObjectFrame() == null)
+                unboundedList.add(object);
+            else
+                boundedList.add(object);
+        }
+        
+        bounded = boundedList.toArray(new SceneObject[0]);
+        unbounded = unboundedList.toArray(new SceneObject[0]);
+        hierarchy = new PrimitiveBVH(computeBounds(bounded), bounded.length);
+        
+        builtObjects = objects.toArray(new SceneObject[0]);
+        builtCost = getCost();
+    }
+    
+    /**
+     * Recompute node bounds bottom-up from the current object bounds,
+     * keeping the structure of the hierarchy.  Fails if the set of objects
+     * has changed, if objects have become bounded or unbounded, or if the
+     * SAH cost has grown beyond the rebuild threshold.
+     */
+    @Override
+    protected boolean refit(List<SceneObject> objects) {
+        if (builtObjects == null || objects.size() != builtObjects.length)
+            return false;
+        
+        for (int i = 0; i < builtObjects.length; i++) {
+            if (objects.get(i) != builtObjects[i])
+                return false;
+        }
+        
+        for (SceneObject object : unbounded) {
+            if (object.getBounds() != null)
+                return false;
+        }
+        
+        double[] bounds = computeBounds(bounded);
+        if (bounds == null)
+            return false;
+        
+        hierarchy.refit(bounds);
+        
+        return getCost() <= rebuildThreshold*builtCost;
+    }
+    
+    /**
+     * Compute the surface area heuristic (SAH) cost of the hierarchy: the
+     * expected number of node traversals and object tests made by a
+     * random ray hitting the root bounds, assuming equal costs for each.
+     * 
+     * @return SAH cost
+     */
+    public double getCost() {
+        if (bounded.length == 0)
+            return 0.0;
+        
+        return hierarchy.getCost();
+    }
+    
+    /**
+     * @return underlying hierarchy over bounded objects.
+     */
+    public PrimitiveBVH getHierarchy() {
+        return hierarchy;
+    }
+    
+    private static double invert(double d) {
+        return 1.0/(d == 0.0 ? Double.MIN_NORMAL : d);
+    }
+
+    @Override
+    public SceneObject findNearest(Ray ray, double[] distance) {
+        double nearestDist = Double.POSITIVE_INFINITY;
+        SceneObject nearest = null;
+        
+        for (SceneObject object : unbounded) {
+            double dist = object.getFirstCollision(ray);
+            if (dist < nearestDist) {
+                nearest = object;
+                nearestDist = dist;
+            }
+        }
+        
+        if (bounded.length > 0) {
+            double ox = ray.origin.getX(), oy = ray.origin.getY(), oz = ray.origin.getZ();
+            double ix = invert(ray.direction.getX());
+            double iy = invert(ray.direction.getY());
+            double iz = invert(ray.direction.getZ());
+            
+            DoubleBuffer nodeBounds = hierarchy.nodeBounds;
+            IntBuffer nodeFirst = hierarchy.nodeFirst, nodeSize = hierarchy.nodeSize;
+            IntBuffer primitives = hierarchy.primitives;
+            
+            int[] stack = new int[hierarchy.depth + 1];
+            int top = 0;
+            if (PrimitiveBVH.intersectNode(nodeBounds, 0, ox, oy, oz,
+                    ix, iy, iz, nearestDist) < Double.POSITIVE_INFINITY)
+                stack[top++] = 0;
+            
+            while (top > 0) {
+                int node = stack[--top];
+                
+                int first = nodeFirst.get(node), size = nodeSize.get(node);
+                if (size > 0) {
+                    for (int i = first; i < first + size; i++) {
+                        SceneObject object = bounded[primitives.get(i)];
+                        double dist = object.getFirstCollision(ray);
+                        if (dist < nearestDist) {
+                            nearest = object;
+                            nearestDist = dist;
+                        }
+                    }
+                    continue;
+                }
+                
+                int left = first;
+                double tLeft = PrimitiveBVH.intersectNode(nodeBounds, left,
+                        ox, oy, oz, ix, iy, iz, nearestDist);
+                double tRight = PrimitiveBVH.intersectNode(nodeBounds, left + 1,
+                        ox, oy, oz, ix, iy, iz, nearestDist);
+                
+                // Push further child first so that nearer child is visited first:
+                if (tLeft <= tRight) {
+                    if (tRight < Double.POSITIVE_INFINITY)
+                        stack[top++] = left + 1;
+                    if (tLeft < Double.POSITIVE_INFINITY)
+                        stack[top++] = left;
+                } else {
+                    if (tLeft < Double.POSITIVE_INFINITY)
+                        stack[top++] = left;
+                    stack[top++] = left + 1;
+                }
+            }
+        }
+        
+        distance[0] = nearestDist;
+        return nearest;
+    }
+
+    @Override
+    public boolean isOccluded(Ray ray, double maxDistance) {
+        for (SceneObject object : unbounded) {
+            if (object.getFirstCollision(ray) < maxDistance)
+                return true;
+        }
+        
+        if (bounded.length == 0)
+            return false;
+        
+        double ox = ray.origin.getX(), oy = ray.origin.getY(), oz = ray.origin.getZ();
+        double ix = invert(ray.direction.getX());
+        double iy = invert(ray.direction.getY());
+        double iz = invert(ray.direction.getZ());
+        
+        DoubleBuffer nodeBounds = hierarchy.nodeBounds;
+        IntBuffer nodeFirst = hierarchy.nodeFirst, nodeSize = hierarchy.nodeSize;
+        IntBuffer primitives = hierarchy.primitives;
+        
+        int[] stack = new int[hierarchy.depth + 1];
+        int top = 0;
+        stack[top++] = 0;
+        
+        while (top > 0) {
+            int node = stack[--top];
+            
+            if (PrimitiveBVH.intersectNode(nodeBounds, node, ox, oy, oz,
+                    ix, iy, iz, maxDistance) == Double.POSITIVE_INFINITY)
+                continue;
+            
+            int first = nodeFirst.get(node), size = nodeSize.get(node);
+            if (size > 0) {
+                for (int i = first; i < first + size; i++) {
+                    if (bounded[primitives.get(i)].getFirstCollision(ray) < maxDistance)
+                        return true;
+                }
+            } else {
+                stack[top++] = first + 1;
+                stack[top++] = first;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * @return bounds of all bounded objects as {min, max}, or null if
+     * there are none.
+     */
+    public Vector3D[] getBounds() {
+        if (bounded.length == 0)
+            return null;
+        
+        DoubleBuffer b = hierarchy.nodeBounds;
+        return new Vector3D[] {new Vector3D(b.get(0), b.get(1), b.get(2)),
+            new Vector3D(b.get(3), b.get(4), b.get(5))};
+    }
+    
+    /**
+     * @return true if the structure contains unbounded objects.
+     */
+    public boolean hasUnbounded() {
+        return unbounded.length > 0;
+    }
+}
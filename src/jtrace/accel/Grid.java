@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.accel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import jtrace.NotContent;
+import jtrace.Ray;
+import jtrace.object.SceneObject;
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+/**
+ * Uniform grid over the scene-frame bounds of objects, traversed using a
+ * 3D digital differential analyser (DDA).  Suited to scenes of many
+ * similarly sized objects such as particle clouds.  Unbounded objects are
+ * kept outside the grid and tested against every ray.
+ * 
+ * Cells are stored either densely, or in a hash table holding only the
+ * occupied cells.  The latter allows finer grids in unevenly populated
+ * scenes at a memory cost proportional to the number of occupied cells.
+ * The grid resolution is chosen automatically from the number of objects
+ * and the shape of their bounds.
+ * 
+ * Objects spanning several cells are tested at most once per ray: each
+ * object has a mailbox recording the last ray it was tested against.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class Grid extends AccelerationStructure {
+    
+    /**
+     * Target number of cells per object for dense and hashed grids.
+     */
+    static final double DENSE_CELLS_PER_OBJECT = 2.0;
+    static final double HASHED_CELLS_PER_OBJECT = 16.0;
+    
+    /**
+     * Maximum resolution along each axis for dense and hashed grids.
+     */
+    static final int DENSE_MAX_RESOLUTION = 256;
+    static final int HASHED_MAX_RESOLUTION = 2048;
+    
+    boolean hashed;
+    
+    SceneObject[] bounded, unbounded;
+    
+    /**
+     * Grid origin, cell dimensions and number of cells along each axis.
+     */
+    double[] min, cellSize;
+    int[] resolution;
+    
+    /**
+     * Objects in each cell slot are cellObjects[cellStart[slot]] to
+     * cellObjects[cellStart[slot+1]-1].  For dense grids the slot is the
+     * cell index; for hashed grids it is the cell's slot in the hash table,
+     * whose keys are cell indices plus one, with zero marking empty slots.
+     */
+    int[] cellStart, cellObjects;
+    long[] slotKeys;
+    
+    /**
+     * Mailboxes of each thread tracing rays through the grid.
+     */
+    @NotContent ThreadLocal<Mailbox> mailboxes;
+    
+    /**
+     * Create empty grid with dense cell storage.  Call build() to populate.
+     */
+    public Grid() {
+        this(false);
+    }
+    
+    /**
+     * Create empty grid.  Call build() to populate.
+     * 
+     * @param hashed if true, only occupied cells are stored
+     */
+    public Grid(boolean hashed) {
+        this.hashed = hashed;
+        bounded = new SceneObject[0];
+        unbounded = new SceneObject[0];
+    }
+    
+    /**
+     * Record of the ray each object was last tested against.
+     */
+    static class Mailbox {
+        int[] lastRay;
+        int ray;
+        
+        Mailbox(int nObjects) {
+            lastRay = new int[nObjects];
+        }
+        
+        /**
+         * Begin new ray.
+         */
+        void nextRay() {
+            if (++ray == 0) {
+                Arrays.fill(lastRay, 0);
+                ray = 1;
+            }
+        }
+        
+        /**
+         * @return true if object has not yet been tested against the
+         * current ray, in which case it is marked as tested.
+         */
+        boolean check(int object) {
+            if (lastRay[object] == ray)
+                return false;
+            
+            lastRay[object] = ray;
+            return true;
+        }
+    }
+    
+    private Mailbox getMailbox() {
+        Mailbox mailbox = mailboxes.get();
+        mailbox.nextRay();
+        return mailbox;
+    }
+
+    @Override
+    public void build(List<SceneObject> objects) {
+        List<SceneObject> boundedList = new ArrayList<>();
+        List<double[]> boundsList = new ArrayList<>();
+        List<SceneObject> unboundedList = new ArrayList<>();
+        
+        for (SceneObject object : objects) {
+            Vector3D[] b = object.getBounds();
+            if (b == null)
+                unboundedList.add(object);
+            else {
+                boundedList.add(object);
+                boundsList.add(new double[] {b[0].getX(), b[0].getY(), b[0].getZ(),
+                    b[1].getX(), b[1].getY(), b[1].getZ()});
+            }
+        }
+        
+        bounded = boundedList.toArray(new SceneObject[0]);
+        unbounded = unboundedList.toArray(new SceneObject[0]);
+        
+        final int nObjects = bounded.length;
+        mailboxes = ThreadLocal.withInitial(() -> new Mailbox(nObjects));
+        
+        chooseResolution(boundsList);
+        
+        if (hashed) {
+            // Size hash table to hold twice the number of references,
+            // which bounds the number of occupied cells:
+            long references = 0;
+            for (double[] b : boundsList) {
+                int[] range = cellRange(b);
+                references += (long)(range[3] - range[0] + 1)
+                        *(range[4] - range[1] + 1)*(range[5] - range[2] + 1);
+            }
+            int capacity = Integer.highestOneBit((int)Math.min(1 << 30,
+                    Math.max(2, 2*references)) - 1) << 1;
+            slotKeys = new long[capacity];
+        } else {
+            slotKeys = null;
+        }
+        int nSlots = hashed ? slotKeys.length
+                : resolution[0]*resolution[1]*resolution[2];
+        
+        // Count references in each slot, then fill slots in order:
+        cellStart = new int[nSlots + 1];
+        for (double[] b : boundsList)
+            forEachCell(b, slot -> cellStart[slot + 1] += 1);
+        
+        for (int slot = 0; slot < nSlots; slot++)
+            cellStart[slot + 1] += cellStart[slot];
+        
+        cellObjects = new int[cellStart[nSlots]];
+        int[] fill = Arrays.copyOf(cellStart, nSlots);
+        for (int i = 0; i < nObjects; i++) {
+            final int object = i;
+            forEachCell(boundsList.get(i), slot -> cellObjects[fill[slot]++] = object);
+        }
+    }
+    
+    /**
+     * Choose grid bounds and resolution from the number of objects and
+     * their combined bounds.  Axes along which the bounds are flat are
+     * padded so that every cell has finite size.
+     */
+    private void chooseResolution(List<double[]> boundsList) {
+        min = new double[3];
+        cellSize = new double[3];
+        resolution = new int[] {1, 1, 1};
+        
+        if (boundsList.isEmpty())
+            return;
+        
+        double[] max = new double[3];
+        for (int a = 0; a < 3; a++) {
+            min[a] = Double.POSITIVE_INFINITY;
+            max[a] = Double.NEGATIVE_INFINITY;
+        }
+        for (double[] b : boundsList) {
+            for (int a = 0; a < 3; a++) {
+                min[a] = Math.min(min[a], b[a]);
+                max[a] = Math.max(max[a], b[3 + a]);
+            }
+        }
+        
+        double maxExtent = 0.0;
+        for (int a = 0; a < 3; a++)
+            maxExtent = Math.max(maxExtent, max[a] - min[a]);
+        if (maxExtent == 0.0)
+            maxExtent = 1.0;
+        
+        double cellsPerObject = hashed ? HASHED_CELLS_PER_OBJECT : DENSE_CELLS_PER_OBJECT;
+        int maxResolution = hashed ? HASHED_MAX_RESOLUTION : DENSE_MAX_RESOLUTION;
+        double cellsPerUnit = Math.cbrt(cellsPerObject*boundsList.size())/maxExtent;
+        
+        for (int a = 0; a < 3; a++) {
+            double extent = Math.max(max[a] - min[a], 1e-9*maxExtent);
+            resolution[a] = (int)Math.max(1, Math.min(maxResolution,
+                    Math.round(extent*cellsPerUnit)));
+            cellSize[a] = extent/resolution[a];
+        }
+    }
+    
+    /**
+     * Action applied to a cell slot.
+     */
+    private interface SlotAction {
+        void apply(int slot);
+    }
+    
+    /**
+     * @return indices of first and last cells along each axis overlapped
+     * by the given bounds.
+     */
+    private int[] cellRange(double[] b) {
+        int[] range = new int[6];
+        for (int a = 0; a < 3; a++) {
+            range[a] = cellCoord(b[a], a);
+            range[3 + a] = cellCoord(b[3 + a], a);
+        }
+        return range;
+    }
+    
+    private int cellCoord(double x, int axis) {
+        int c = (int)Math.floor((x - min[axis])/cellSize[axis]);
+        return Math.max(0, Math.min(resolution[axis] - 1, c));
+    }
+    
+    /**
+     * Apply action to slot of each cell overlapped by the given bounds,
+     * adding cells to the hash table as necessary.
+     */
+    private void forEachCell(double[] b, SlotAction action) {
+        int[] range = cellRange(b);
+        for (int z = range[2]; z <= range[5]; z++) {
+            for (int y = range[1]; y <= range[4]; y++) {
+                for (int x = range[0]; x <= range[3]; x++) {
+                    long cell = cellIndex(x, y, z);
+                    action.apply(hashed ? findSlot(cell, true) : (int)cell);
+                }
+            }
+        }
+    }
+    
+    private long cellIndex(int x, int y, int z) {
+        return ((long)z*resolution[1] + y)*resolution[0] + x;
+    }
+    
+    /**
+     * Locate slot of cell in hash table using linear probing.
+     * 
+     * @param cell cell index
+     * @param insert if true, claim an empty slot for a missing cell
+     * @return slot index, or -1 if cell is missing and insert is false.
+     */
+    private int findSlot(long cell, boolean insert) {
+        int mask = slotKeys.length - 1;
+        long key = cell + 1;
+        int slot = (int)((key*0x9E3779B97F4A7C15L) >>> 33) & mask;
+        
+        while (slotKeys[slot] != key) {
+            if (slotKeys[slot] == 0) {
+                if (!insert)
+                    return -1;
+                slotKeys[slot] = key;
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        
+        return slot;
+    }
+    
+    /**
+     * Visitor receiving objects along a ray.
+     */
+    private interface CellVisitor {
+        /**
+         * Visit cell.
+         * 
+         * @param slot cell slot
+         * @param cellExit distance along ray at which it leaves the cell
+         * @return true to stop traversal
+         */
+        boolean visit(int slot, double cellExit);
+    }
+    
+    /**
+     * Walk the cells pierced by a ray in order of increasing distance.
+     * 
+     * @param ray ray to trace
+     * @param visitor receives each occupied cell
+     */
+    private void traverse(Ray ray, CellVisitor visitor) {
+        if (bounded.length == 0)
+            return;
+        
+        double[] o = ray.origin.toArray();
+        double[] d = ray.direction.toArray();
+        
+        // Clip ray against grid bounds:
+        double tEnter = 0.0, tExit = Double.POSITIVE_INFINITY;
+        for (int a = 0; a < 3; a++) {
+            double lo = min[a], hi = min[a] + cellSize[a]*resolution[a];
+            if (d[a] == 0.0) {
+                if (o[a] < lo || o[a] > hi)
+                    return;
+                continue;
+            }
+            double t0 = (lo - o[a])/d[a], t1 = (hi - o[a])/d[a];
+            tEnter = Math.max(tEnter, Math.min(t0, t1));
+            tExit = Math.min(tExit, Math.max(t0, t1));
+        }
+        if (tEnter > tExit)
+            return;
+        
+        int[] cell = new int[3], step = new int[3];
+        double[] tNext = new double[3], tDelta = new double[3];
+        for (int a = 0; a < 3; a++) {
+            cell[a] = cellCoord(o[a] + tEnter*d[a], a);
+            if (d[a] > 0.0) {
+                step[a] = 1;
+                tNext[a] = (min[a] + (cell[a] + 1)*cellSize[a] - o[a])/d[a];
+                tDelta[a] = cellSize[a]/d[a];
+            } else if (d[a] < 0.0) {
+                step[a] = -1;
+                tNext[a] = (min[a] + cell[a]*cellSize[a] - o[a])/d[a];
+                tDelta[a] = -cellSize[a]/d[a];
+            } else {
+                step[a] = 0;
+                tNext[a] = Double.POSITIVE_INFINITY;
+                tDelta[a] = Double.POSITIVE_INFINITY;
+            }
+        }
+        
+        while (true) {
+            int axis = tNext[0] < tNext[1]
+                    ? (tNext[0] < tNext[2] ? 0 : 2)
+                    : (tNext[1] < tNext[2] ? 1 : 2);
+            double cellExit = tNext[axis];
+            
+            long index = cellIndex(cell[0], cell[1], cell[2]);
+            int slot = hashed ? findSlot(index, false) : (int)index;
+            if (slot >= 0 && cellStart[slot] < cellStart[slot + 1]
+                    && visitor.visit(slot, cellExit))
+                return;
+            
+            if (cellExit > tExit)
+                return;
+            
+            cell[axis] += step[axis];
+            if (cell[axis] < 0 || cell[axis] >= resolution[axis])
+                return;
+            tNext[axis] += tDelta[axis];
+        }
+    }
+
+    @Override
+    public SceneObject findNearest(Ray ray, double[] distance) {
+        double nearestDist = Double.POSITIVE_INFINITY;
+        SceneObject nearest = null;
+        
+        for (SceneObject object : unbounded) {
+            double dist = object.getFirstCollision(ray);
+            if (dist < nearestDist) {
+                nearest = object;
+                nearestDist = dist;
+            }
+        }
+        
+        Mailbox mailbox = getMailbox();
+        double[] nearestDistRef = {nearestDist};
+        SceneObject[] nearestRef = {nearest};
+        
+        // Objects in a cell may be hit beyond it, so traversal only stops
+        // once the nearest hit so far lies within the current cell:
+        traverse(ray, (slot, cellExit) -> {
+            for (int i = cellStart[slot]; i < cellStart[slot + 1]; i++) {
+                int object = cellObjects[i];
+                if (!mailbox.check(object))
+                    continue;
+                
+                double dist = bounded[object].getFirstCollision(ray);
+                if (dist < nearestDistRef[0]) {
+                    nearestRef[0] = bounded[object];
+                    nearestDistRef[0] = dist;
+                }
+            }
+            return nearestDistRef[0] <= cellExit;
+        });
+        
+        distance[0] = nearestDistRef[0];
+        return nearestRef[0];
+    }
+
+    @Override
+    public boolean isOccluded(Ray ray, double maxDistance) {
+        for (SceneObject object : unbounded) {
+            if (object.getFirstCollision(ray) < maxDistance)
+                return true;
+        }
+        
+        Mailbox mailbox = getMailbox();
+        boolean[] occluded = {false};
+        
+        traverse(ray, (slot, cellExit) -> {
+            for (int i = cellStart[slot]; i < cellStart[slot + 1]; i++) {
+                int object = cellObjects[i];
+                if (mailbox.check(object)
+                        && bounded[object].getFirstCollision(ray) < maxDistance) {
+                    occluded[0] = true;
+                    return true;
+                }
+            }
+            
+            // Later cells lie entirely beyond maxDistance:
+            return cellExit >= maxDistance;
+        });
+        
+        return occluded[0];
+    }
+    
+    /**
+     * @return number of cells along each axis.
+     */
+    public int[] getResolution() {
+        return resolution.clone();
+    }
+    
+    /**
+     * @return number of cells holding at least one object.
+     */
+    public int getOccupiedCellCount() {
+        int count = 0;
+        for (int slot = 0; slot + 1 < cellStart.length; slot++) {
+            if (cellStart[slot] < cellStart[slot + 1])
+                count++;
+        }
+        return count;
+    }
+}
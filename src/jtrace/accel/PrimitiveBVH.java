@@ -0,0 +1,751 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.accel;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import jtrace.io.GeometryStore;
+
+/**
+ * Bounding volume hierarchy over a set of primitives (for instance the
+ * triangles of a mesh) identified by index, stored in flat arrays.
+ * Children of interior nodes are stored next to each other, and always
+ * after their parent.  The layout depends only on the primitive bounds,
+ * not on how the build was scheduled across threads.
+ * 
+ * The hierarchy is built top-down using the binned surface area
+ * heuristic (SAH).  Primitive bounds and centroids are held in flat
+ * arrays.  Subtrees are built in parallel using fork-join tasks, and the
+ * binning and partitioning of large nodes near the root is itself split
+ * into parallel chunks, so that the serial fraction of the build stays
+ * small.  The build runs in the fork-join pool of the calling thread if
+ * there is one, and in the common pool otherwise.
+ * 
+ * Built hierarchies are held in NIO buffers wrapping heap arrays.  They
+ * can be copied into a GeometryStore with store() and recreated from it,
+ * in which case they live off-heap and may be mapped from a file.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class PrimitiveBVH {
+    
+    public static final int MAX_LEAF_SIZE = 4;
+    
+    /**
+     * Maximum number of bins per axis used to evaluate candidate splits.
+     * Nodes with fewer primitives use one bin per primitive.
+     */
+    static final int N_BINS = 16;
+    
+    /**
+     * Nodes with fewer primitives than this are built serially.
+     */
+    static final int SERIAL_THRESHOLD = 4096;
+    
+    /**
+     * Nodes with more primitives than this are binned and partitioned in
+     * parallel chunks of this size.
+     */
+    static final int CHUNK_SIZE = 65536;
+    
+    /**
+     * Size marking node slots not used by the build.
+     */
+    static final int UNUSED = -1;
+    
+    /**
+     * Bounds of each node: minimum x, y, z then maximum x, y, z.
+     */
+    DoubleBuffer nodeBounds;
+    
+    /**
+     * For leaves, index into primitives of the first primitive in the
+     * leaf.  For interior nodes, index of left child; the right child
+     * follows it.
+     */
+    IntBuffer nodeFirst;
+    
+    /**
+     * Number of primitives in each leaf, or zero for interior nodes.
+     */
+    IntBuffer nodeSize;
+    
+    /**
+     * Primitive indices, ordered so that each leaf references a
+     * contiguous range.
+     */
+    IntBuffer primitives;
+    
+    int nNodes, depth;
+    
+    /**
+     * Maximum number of primitives in a leaf.
+     */
+    final int maxLeafSize;
+    
+    /**
+     * Build hierarchy over primitives with the given bounds, with at most
+     * MAX_LEAF_SIZE primitives per leaf.
+     * 
+     * @param primBounds bounds of each primitive, in the same layout as
+     * node bounds.  The array is used as working storage by the build,
+     * which leaves it reordered.
+     * @param nPrims number of primitives
+     */
+    public PrimitiveBVH(double[] primBounds, int nPrims) {
+        this(primBounds, nPrims, MAX_LEAF_SIZE);
+    }
+    
+    /**
+     * Build hierarchy over primitives with the given bounds.
+     * 
+     * @param primBounds bounds of each primitive, in the same layout as
+     * node bounds.  The array is used as working storage by the build,
+     * which leaves it reordered.
+     * @param nPrims number of primitives
+     * @param maxLeafSize maximum number of primitives in a leaf
+     */
+    public PrimitiveBVH(double[] primBounds, int nPrims, int maxLeafSize) {
+        this.maxLeafSize = maxLeafSize;
+        
+        double[] rootBounds = new double[6];
+        empty(rootBounds, 0);
+        for (int i = 0; i < nPrims; i++)
+            union(rootBounds, 0, primBounds, i);
+        
+        Builder builder = new Builder(primBounds, nPrims);
+        double[] rootCentroids = new double[6];
+        empty(rootCentroids, 0);
+        for (int i = 0; i < nPrims; i++)
+            addPoint(rootCentroids, 0, builder.centroids, i);
+        
+        if (nPrims > 0) {
+            BuildTask root = new BuildTask(builder, 0, 1, 0, nPrims,
+                    rootBounds, rootCentroids, 1, new Bins());
+            if (ForkJoinTask.inForkJoinPool())
+                root.invoke();
+            else
+                ForkJoinPool.commonPool().invoke(root);
+        } else {
+            builder.depth.set(1);
+        }
+        
+        nNodes = builder.compact();
+        depth = builder.depth.get();
+        
+        // Release space reserved for nodes which were not needed:
+        nodeBounds = DoubleBuffer.wrap(Arrays.copyOf(builder.nodeBounds, 6*nNodes));
+        nodeFirst = IntBuffer.wrap(Arrays.copyOf(builder.nodeFirst, nNodes));
+        nodeSize = IntBuffer.wrap(Arrays.copyOf(builder.nodeSize, nNodes));
+        primitives = IntBuffer.wrap(builder.primitives);
+    }
+    
+    /**
+     * Recreate hierarchy previously written to a store with store().  The
+     * hierarchy uses the store's buffers directly.
+     * 
+     * @param store geometry store
+     * @param name name under which hierarchy was stored
+     */
+    public PrimitiveBVH(GeometryStore store, String name) {
+        IntBuffer info = store.getInts(name + ".info");
+        nNodes = info.get(0);
+        depth = info.get(1);
+        maxLeafSize = info.get(2);
+        
+        nodeBounds = store.getDoubles(name + ".nodeBounds");
+        nodeFirst = store.getInts(name + ".nodeFirst");
+        nodeSize = store.getInts(name + ".nodeSize");
+        primitives = store.getInts(name + ".primitives");
+    }
+    
+    /**
+     * Copy hierarchy into store.
+     * 
+     * @param store geometry store
+     * @param name name under which to store hierarchy
+     */
+    public void store(GeometryStore store, String name) {
+        store.putInts(name + ".info", IntBuffer.wrap(new int[] {nNodes, depth, maxLeafSize}));
+        store.putDoubles(name + ".nodeBounds", nodeBounds);
+        store.putInts(name + ".nodeFirst", nodeFirst);
+        store.putInts(name + ".nodeSize", nodeSize);
+        store.putInts(name + ".primitives", primitives);
+    }
+    
+    /**
+     * Primitive counts and bounds accumulated in each bin along each axis.
+     * Bins for axis a are stored at indices a*nBins to (a+1)*nBins-1.
+     */
+    static class Bins {
+        final int[] counts = new int[3*N_BINS];
+        final double[] bounds = new double[6*3*N_BINS];
+        int nBins;
+        
+        void clear(int nBins) {
+            this.nBins = nBins;
+            for (int i = 0; i < 3*nBins; i++) {
+                counts[i] = 0;
+                empty(bounds, i);
+            }
+        }
+        
+        void add(Bins other) {
+            for (int i = 0; i < 3*nBins; i++) {
+                counts[i] += other.counts[i];
+                union(bounds, i, other.bounds, i);
+            }
+        }
+    }
+    
+    static void empty(double[] b, int i) {
+        for (int a = 0; a < 3; a++) {
+            b[6*i + a] = Double.POSITIVE_INFINITY;
+            b[6*i + 3 + a] = Double.NEGATIVE_INFINITY;
+        }
+    }
+    
+    static void union(double[] dest, int i, double[] src, int j) {
+        for (int a = 0; a < 3; a++) {
+            dest[6*i + a] = Math.min(dest[6*i + a], src[6*j + a]);
+            dest[6*i + 3 + a] = Math.max(dest[6*i + 3 + a], src[6*j + 3 + a]);
+        }
+    }
+    
+    /**
+     * Extend bounds b[i] to include point j of the array pts.
+     */
+    static void addPoint(double[] b, int i, double[] pts, int j) {
+        for (int a = 0; a < 3; a++) {
+            b[6*i + a] = Math.min(b[6*i + a], pts[3*j + a]);
+            b[6*i + 3 + a] = Math.max(b[6*i + 3 + a], pts[3*j + a]);
+        }
+    }
+    
+    static double surfaceArea(double[] b, int i) {
+        double dx = b[6*i + 3] - b[6*i];
+        double dy = b[6*i + 4] - b[6*i + 1];
+        double dz = b[6*i + 5] - b[6*i + 2];
+        
+        return dx < 0.0 ? 0.0 : 2.0*(dx*dy + dy*dz + dz*dx);
+    }
+    
+    /**
+     * State shared by the tasks building a hierarchy.  Bounds and
+     * centroids are permuted along with the primitive indices so that
+     * each node's primitives are scanned sequentially.
+     */
+    class Builder {
+        final double[] nodeBounds;
+        final int[] nodeFirst, nodeSize, primitives;
+        
+        final double[] bounds, centroids;
+        final int[] scratch;
+        final double[] scratchBounds, scratchCentroids;
+        final AtomicInteger depth;
+        
+        Builder(double[] primBounds, int nPrims) {
+            primitives = new int[nPrims];
+            for (int i = 0; i < nPrims; i++)
+                primitives[i] = i;
+            
+            int maxNodes = Math.max(1, 2*nPrims - 1);
+            nodeBounds = new double[6*maxNodes];
+            nodeFirst = new int[maxNodes];
+            nodeSize = new int[maxNodes];
+            Arrays.fill(nodeSize, UNUSED);
+            nodeSize[0] = 0;
+            empty(nodeBounds, 0);
+            
+            bounds = primBounds;
+            centroids = new double[3*nPrims];
+            for (int i = 0; i < nPrims; i++) {
+                for (int a = 0; a < 3; a++)
+                    centroids[3*i + a] = 0.5*(bounds[6*i + a] + bounds[6*i + 3 + a]);
+            }
+            
+            // Scratch arrays are only used by parallel partitioning:
+            boolean parallel = nPrims > CHUNK_SIZE;
+            scratch = parallel ? new int[nPrims] : null;
+            scratchBounds = parallel ? new double[6*nPrims] : null;
+            scratchCentroids = parallel ? new double[3*nPrims] : null;
+            
+            depth = new AtomicInteger(0);
+        }
+        
+        /**
+         * Remove the slots reserved for nodes which were not needed,
+         * keeping the order of the remaining nodes.
+         * 
+         * @return number of nodes
+         */
+        int compact() {
+            int[] index = new int[nodeSize.length];
+            int count = 0;
+            for (int i = 0; i < nodeSize.length; i++) {
+                index[i] = count;
+                if (nodeSize[i] != UNUSED)
+                    count++;
+            }
+            
+            for (int i = 0; i < nodeSize.length; i++) {
+                if (nodeSize[i] == UNUSED)
+                    continue;
+                
+                int dest = index[i];
+                System.arraycopy(nodeBounds, 6*i, nodeBounds, 6*dest, 6);
+                nodeFirst[dest] = nodeSize[i] > 0 ? nodeFirst[i] : index[nodeFirst[i]];
+                nodeSize[dest] = nodeSize[i];
+            }
+            
+            return count;
+        }
+        
+        /**
+         * Bin a range of primitives along all three axes.
+         * 
+         * @param bins cleared bins to accumulate into
+         */
+        void bin(int start, int end, double[] cMin, double[] scale, Bins bins) {
+            if (end - start > CHUNK_SIZE) {
+                int mid = (start + end) >>> 1;
+                Bins leftBins = new Bins();
+                leftBins.clear(bins.nBins);
+                ForkJoinTask<?> left = ForkJoinTask.adapt(
+                        () -> bin(start, mid, cMin, scale, leftBins)).fork();
+                bin(mid, end, cMin, scale, bins);
+                left.join();
+                bins.add(leftBins);
+                return;
+            }
+            
+            int nBins = bins.nBins;
+            int[] counts = bins.counts;
+            double[] binBounds = bins.bounds;
+            for (int a = 0; a < 3; a++) {
+                double min = cMin[a], s = scale[a];
+                for (int i = start; i < end; i++) {
+                    int b = a*nBins + binIndex(centroids[3*i + a], min, s, nBins);
+                    counts[b] += 1;
+                    union(binBounds, b, bounds, i);
+                }
+            }
+        }
+        
+        /**
+         * Reorder range of primitives so that those whose centroids fall
+         * in bins below splitBin along axis come first, accumulating the
+         * centroid bounds of each part.  Large ranges are partitioned in
+         * parallel chunks through the scratch arrays.
+         * 
+         * @param centroidBounds cleared array to hold the centroid bounds
+         * of the lower part, then the upper part
+         * @return index of first primitive in upper part
+         */
+        int partition(int start, int end, int axis, int splitBin,
+                double cMin, double scale, int nBins, double[] centroidBounds) {
+            
+            if (end - start <= CHUNK_SIZE) {
+                int i = start, j = end - 1;
+                while (i <= j) {
+                    if (binIndex(centroids[3*i + axis], cMin, scale, nBins) < splitBin) {
+                        addPoint(centroidBounds, 0, centroids, i);
+                        i++;
+                    } else {
+                        swap(i, j);
+                        addPoint(centroidBounds, 1, centroids, j);
+                        j--;
+                    }
+                }
+                return i;
+            }
+            
+            // Count primitives below split in each chunk:
+            int nChunks = (end - start + CHUNK_SIZE - 1)/CHUNK_SIZE;
+            int[] lowerCounts = new int[nChunks];
+            ForkJoinTask.invokeAll(chunkTasks(nChunks, c -> {
+                int count = 0;
+                for (int i = start + c*CHUNK_SIZE; i < Math.min(end, start + (c+1)*CHUNK_SIZE); i++) {
+                    if (binIndex(centroids[3*i + axis], cMin, scale, nBins) < splitBin)
+                        count++;
+                }
+                lowerCounts[c] = count;
+            }));
+            
+            int[] lowerOffsets = new int[nChunks], upperOffsets = new int[nChunks];
+            int nLower = 0;
+            for (int c = 0; c < nChunks; c++) {
+                lowerOffsets[c] = start + nLower;
+                nLower += lowerCounts[c];
+            }
+            int nUpper = 0;
+            for (int c = 0; c < nChunks; c++) {
+                upperOffsets[c] = start + nLower + nUpper;
+                nUpper += Math.min(end, start + (c+1)*CHUNK_SIZE)
+                        - (start + c*CHUNK_SIZE) - lowerCounts[c];
+            }
+            
+            // Scatter into scratch arrays, then copy back:
+            double[][] chunkCentroids = new double[nChunks][12];
+            ForkJoinTask.invokeAll(chunkTasks(nChunks, c -> {
+                int lower = lowerOffsets[c], upper = upperOffsets[c];
+                empty(chunkCentroids[c], 0);
+                empty(chunkCentroids[c], 1);
+                for (int i = start + c*CHUNK_SIZE; i < Math.min(end, start + (c+1)*CHUNK_SIZE); i++) {
+                    int dest;
+                    if (binIndex(centroids[3*i + axis], cMin, scale, nBins) < splitBin) {
+                        dest = lower++;
+                        addPoint(chunkCentroids[c], 0, centroids, i);
+                    } else {
+                        dest = upper++;
+                        addPoint(chunkCentroids[c], 1, centroids, i);
+                    }
+                    scratch[dest] = primitives[i];
+                    System.arraycopy(bounds, 6*i, scratchBounds, 6*dest, 6);
+                    System.arraycopy(centroids, 3*i, scratchCentroids, 3*dest, 3);
+                }
+            }));
+            ForkJoinTask.invokeAll(chunkTasks(nChunks, c -> {
+                int from = start + c*CHUNK_SIZE;
+                int len = Math.min(end, from + CHUNK_SIZE) - from;
+                System.arraycopy(scratch, from, primitives, from, len);
+                System.arraycopy(scratchBounds, 6*from, bounds, 6*from, 6*len);
+                System.arraycopy(scratchCentroids, 3*from, centroids, 3*from, 3*len);
+            }));
+            
+            for (int c = 0; c < nChunks; c++) {
+                union(centroidBounds, 0, chunkCentroids[c], 0);
+                union(centroidBounds, 1, chunkCentroids[c], 1);
+            }
+            
+            return start + nLower;
+        }
+        
+        /**
+         * Exchange primitives at two positions, along with their bounds
+         * and centroids.
+         */
+        void swap(int i, int j) {
+            int tmp = primitives[i];
+            primitives[i] = primitives[j];
+            primitives[j] = tmp;
+            
+            for (int a = 0; a < 6; a++) {
+                double t = bounds[6*i + a];
+                bounds[6*i + a] = bounds[6*j + a];
+                bounds[6*j + a] = t;
+            }
+            for (int a = 0; a < 3; a++) {
+                double t = centroids[3*i + a];
+                centroids[3*i + a] = centroids[3*j + a];
+                centroids[3*j + a] = t;
+            }
+        }
+    }
+    
+    /**
+     * Action applied to a numbered chunk of a range.
+     */
+    interface ChunkAction {
+        void apply(int chunk);
+    }
+    
+    static List<RecursiveAction> chunkTasks(int nChunks, ChunkAction action) {
+        List<RecursiveAction> tasks = new ArrayList<>();
+        for (int c = 0; c < nChunks; c++) {
+            final int chunk = c;
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    action.apply(chunk);
+                }
+            });
+        }
+        return tasks;
+    }
+    
+    static int binIndex(double c, double cMin, double scale, int nBins) {
+        int b = (int)((c - cMin)*scale);
+        return b < 0 ? 0 : (b >= nBins ? nBins - 1 : b);
+    }
+    
+    /**
+     * Task building the subtree rooted at a node.  Subtrees built
+     * serially share the bins of the task that started them.
+     * 
+     * A subtree over n primitives has at most 2n-2 descendants, so each
+     * task is given that many node slots starting at firstSlot, and
+     * divides them between its children in the same way.  Node numbers
+     * therefore do not depend on the order in which tasks run.  Slots
+     * left over because leaves hold several primitives are removed by
+     * Builder.compact().
+     */
+    @SuppressWarnings("serial")
+    class BuildTask extends RecursiveAction {
+        final Builder builder;
+        final int node, firstSlot, start, end, level;
+        final double[] bounds, centroidBounds;
+        final Bins bins;
+        
+        BuildTask(Builder builder, int node, int firstSlot, int start, int end,
+                double[] bounds, double[] centroidBounds, int level, Bins bins) {
+            this.builder = builder;
+            this.node = node;
+            this.firstSlot = firstSlot;
+            this.start = start;
+            this.end = end;
+            this.bounds = bounds;
+            this.centroidBounds = centroidBounds;
+            this.level = level;
+            this.bins = bins;
+        }
+
+        @Override
+        protected void compute() {
+            System.arraycopy(bounds, 0, builder.nodeBounds, 6*node, 6);
+            builder.depth.accumulateAndGet(level, Math::max);
+            
+            int n = end - start;
+            if (n <= maxLeafSize) {
+                builder.nodeFirst[node] = start;
+                builder.nodeSize[node] = n;
+                return;
+            }
+            
+            int nBins = Math.min(N_BINS, n);
+            double[] cMin = new double[3], scale = new double[3];
+            for (int a = 0; a < 3; a++) {
+                cMin[a] = centroidBounds[a];
+                double extent = centroidBounds[3 + a] - centroidBounds[a];
+                scale[a] = extent > 0.0 ? nBins*(1.0 - 1e-12)/extent : 0.0;
+            }
+            
+            bins.clear(nBins);
+            builder.bin(start, end, cMin, scale, bins);
+            
+            // Evaluate SAH cost of splitting after each bin on each axis:
+            int bestAxis = -1, bestBin = -1;
+            double bestCost = Double.POSITIVE_INFINITY;
+            double[] acc = new double[6];
+            double[] leftArea = new double[N_BINS];
+            int[] leftCount = new int[N_BINS];
+            for (int a = 0; a < 3; a++) {
+                if (scale[a] == 0.0)
+                    continue;
+                
+                empty(acc, 0);
+                int count = 0;
+                for (int b = 0; b < nBins - 1; b++) {
+                    union(acc, 0, bins.bounds, a*nBins + b);
+                    count += bins.counts[a*nBins + b];
+                    leftArea[b] = surfaceArea(acc, 0);
+                    leftCount[b] = count;
+                }
+                
+                empty(acc, 0);
+                count = 0;
+                for (int b = nBins - 1; b > 0; b--) {
+                    union(acc, 0, bins.bounds, a*nBins + b);
+                    count += bins.counts[a*nBins + b];
+                    if (count == 0 || leftCount[b-1] == 0)
+                        continue;
+                    double cost = leftArea[b-1]*leftCount[b-1] + surfaceArea(acc, 0)*count;
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestAxis = a;
+                        bestBin = b;
+                    }
+                }
+            }
+            
+            int mid;
+            double[] leftBounds = new double[6], rightBounds = new double[6];
+            double[] childCentroids = new double[12];
+            
+            if (bestAxis < 0) {
+                // All centroids coincide: split range in half.
+                mid = (start + end) >>> 1;
+                System.arraycopy(bounds, 0, leftBounds, 0, 6);
+                System.arraycopy(bounds, 0, rightBounds, 0, 6);
+                System.arraycopy(centroidBounds, 0, childCentroids, 0, 6);
+                System.arraycopy(centroidBounds, 0, childCentroids, 6, 6);
+            } else {
+                empty(leftBounds, 0);
+                empty(rightBounds, 0);
+                for (int b = 0; b < nBins; b++)
+                    union(b < bestBin ? leftBounds : rightBounds, 0,
+                            bins.bounds, bestAxis*nBins + b);
+                
+                empty(childCentroids, 0);
+                empty(childCentroids, 1);
+                mid = builder.partition(start, end, bestAxis, bestBin,
+                        cMin[bestAxis], scale[bestAxis], nBins, childCentroids);
+            }
+            
+            int left = firstSlot;
+            builder.nodeFirst[node] = left;
+            builder.nodeSize[node] = 0;
+            
+            // Slots for descendants of each child follow the pair:
+            int leftSlot = left + 2;
+            int rightSlot = left + 2*(mid - start);
+            
+            double[] leftCentroids = Arrays.copyOfRange(childCentroids, 0, 6);
+            double[] rightCentroids = Arrays.copyOfRange(childCentroids, 6, 12);
+            
+            if (n > SERIAL_THRESHOLD) {
+                invokeAll(new BuildTask(builder, left, leftSlot, start, mid,
+                        leftBounds, leftCentroids, level + 1, new Bins()),
+                        new BuildTask(builder, left + 1, rightSlot, mid, end,
+                        rightBounds, rightCentroids, level + 1, new Bins()));
+            } else {
+                new BuildTask(builder, left, leftSlot, start, mid,
+                        leftBounds, leftCentroids, level + 1, bins).compute();
+                new BuildTask(builder, left + 1, rightSlot, mid, end,
+                        rightBounds, rightCentroids, level + 1, bins).compute();
+            }
+        }
+    }
+    
+    /**
+     * Recompute node bounds bottom-up from new primitive bounds, keeping
+     * the structure of the hierarchy.
+     * 
+     * @param primBounds new bounds of each primitive
+     */
+    public void refit(double[] primBounds) {
+        double[] b = new double[6];
+        for (int node = nNodes - 1; node >= 0; node--) {
+            empty(b, 0);
+            int first = nodeFirst.get(node), size = nodeSize.get(node);
+            if (size > 0) {
+                for (int i = first; i < first + size; i++)
+                    union(b, 0, primBounds, primitives.get(i));
+            } else {
+                for (int a = 0; a < 6; a++) {
+                    double left = nodeBounds.get(6*first + a);
+                    double right = nodeBounds.get(6*first + 6 + a);
+                    b[a] = a < 3 ? Math.min(left, right) : Math.max(left, right);
+                }
+            }
+            for (int a = 0; a < 6; a++)
+                nodeBounds.put(6*node + a, b[a]);
+        }
+    }
+    
+    /**
+     * Compute the surface area heuristic (SAH) cost of the hierarchy: the
+     * expected number of node traversals and primitive tests made by a
+     * random ray hitting the root bounds, assuming equal costs for each.
+     * 
+     * @return SAH cost
+     */
+    public double getCost() {
+        double rootArea = surfaceArea(nodeBounds, 0);
+        if (rootArea == 0.0)
+            return primitives.limit();
+        
+        double cost = 0.0;
+        for (int node = 0; node < nNodes; node++) {
+            double area = surfaceArea(nodeBounds, node);
+            cost += nodeSize.get(node) > 0 ? area*nodeSize.get(node) : area;
+        }
+        
+        return cost/rootArea;
+    }
+    
+    static double surfaceArea(DoubleBuffer b, int i) {
+        double dx = b.get(6*i + 3) - b.get(6*i);
+        double dy = b.get(6*i + 4) - b.get(6*i + 1);
+        double dz = b.get(6*i + 5) - b.get(6*i + 2);
+        
+        return dx < 0.0 ? 0.0 : 2.0*(dx*dy + dy*dz + dz*dx);
+    }
+    
+    public int getNodeCount() {
+        return nNodes;
+    }
+    
+    public int getDepth() {
+        return depth;
+    }
+    
+    public DoubleBuffer getNodeBounds() {
+        return nodeBounds;
+    }
+    
+    public IntBuffer getNodeFirst() {
+        return nodeFirst;
+    }
+    
+    public IntBuffer getNodeSize() {
+        return nodeSize;
+    }
+    
+    public IntBuffer getPrimitives() {
+        return primitives;
+    }
+    
+    /**
+     * Compute distance along ray at which it enters the bounds of a node.
+     * 
+     * @param bounds node bounds
+     * @param node node index
+     * @param ox ray origin x
+     * @param oy ray origin y
+     * @param oz ray origin z
+     * @param ix inverse of ray direction x
+     * @param iy inverse of ray direction y
+     * @param iz inverse of ray direction z
+     * @param tMax maximum distance of interest
+     * @return entry distance, or infinity if the ray misses the bounds
+     * or only meets them beyond tMax.
+     */
+    public static double intersectNode(DoubleBuffer bounds, int node,
+            double ox, double oy, double oz,
+            double ix, double iy, double iz, double tMax) {
+        int b = 6*node;
+        
+        double t0 = (bounds.get(b) - ox)*ix, t1 = (bounds.get(b + 3) - ox)*ix;
+        double tNear = Math.min(t0, t1), tFar = Math.max(t0, t1);
+        
+        t0 = (bounds.get(b + 1) - oy)*iy;
+        t1 = (bounds.get(b + 4) - oy)*iy;
+        tNear = Math.max(tNear, Math.min(t0, t1));
+        tFar = Math.min(tFar, Math.max(t0, t1));
+        
+        t0 = (bounds.get(b + 2) - oz)*iz;
+        t1 = (bounds.get(b + 5) - oz)*iz;
+        tNear = Math.max(tNear, Math.min(t0, t1));
+        tFar = Math.min(tFar, Math.max(t0, t1));
+        
+        // Pad far distance so that flat (zero thickness) bounds are hit:
+        tFar *= 1.0 + 4e-16;
+        
+        if (tNear > tFar || tFar < 0.0 || tNear > tMax)
+            return Double.POSITIVE_INFINITY;
+        
+        return Math.max(tNear, 0.0);
+    }
+}
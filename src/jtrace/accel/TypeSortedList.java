@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.accel;
+
+import java.util.ArrayList;
+import java.util.List;
+import jtrace.Ray;
+import jtrace.object.Cube;
+import jtrace.object.Plane;
+import jtrace.object.SceneObject;
+import jtrace.object.Sphere;
+
+/**
+ * Flat list of objects grouped by concrete type.  Spheres, planes and
+ * cubes are held in arrays of their own type and each array is tested by
+ * a separate loop, so that the intersection call in each loop only ever
+ * sees one class and can be inlined by the JIT.  A list in which object
+ * types are mixed makes the shared call site megamorphic instead.  Other
+ * objects are tested by a general loop.
+ * 
+ * Every object is tested against every ray, so this suits scenes with
+ * tens rather than thousands of objects, for which a hierarchy costs
+ * more than it saves.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class TypeSortedList extends AccelerationStructure {
+    
+    Sphere[] spheres;
+    Plane[] planes;
+    Cube[] cubes;
+    SceneObject[] others;
+    
+    /**
+     * Objects the list was built over, in scene order.
+     */
+    SceneObject[] builtObjects;
+    
+    /**
+     * Create empty list.  Call build() to populate.
+     */
+    public TypeSortedList() {
+        spheres = new Sphere[0];
+        planes = new Plane[0];
+        cubes = new Cube[0];
+        others = new SceneObject[0];
+        builtObjects = new SceneObject[0];
+    }
+    
+    /**
+     * Create list over the given objects.
+     * 
+     * @param objects 
+     */
+    public TypeSortedList(List<SceneObject> objects) {
+        this();
+        build(objects);
+    }
+
+    @Override
+    public void build(List<SceneObject> objects) {
+        List<Sphere> sphereList = new ArrayList<>();
+        List<Plane> planeList = new ArrayList<>();
+        List<Cube> cubeList = new ArrayList<>();
+        List<SceneObject> otherList = new ArrayList<>();
+        
+        // Group by exact class only, as subclasses may override the
+        // intersection methods:
+        for (SceneObject object : objects) {
+            if (object.getClass() == Sphere.class)
+                sphereList.add((Sphere)object);
+            else if (object.getClass() == Plane.class)
+                planeList.add((Plane)object);
+            else if (object.getClass() == Cube.class)
+                cubeList.add((Cube)object);
+            else
+                otherList.add(object);
+        }
+        
+        spheres = sphereList.toArray(new Sphere[0]);
+        planes = planeList.toArray(new Plane[0]);
+        cubes = cubeList.toArray(new Cube[0]);
+        others = otherList.toArray(new SceneObject[0]);
+        builtObjects = objects.toArray(new SceneObject[0]);
+    }
+    
+    /**
+     * Transformations do not affect the grouping, so the list only needs
+     * rebuilding when objects are added or removed.
+     */
+    @Override
+    protected boolean refit(List<SceneObject> objects) {
+        if (objects.size() != builtObjects.length)
+            return false;
+        
+        for (int i = 0; i < builtObjects.length; i++) {
+            if (objects.get(i) != builtObjects[i])
+                return false;
+        }
+        
+        return true;
+    }
+
+    @Override
+    public SceneObject findNearest(Ray ray, double[] distance) {
+        double nearestDist = Double.POSITIVE_INFINITY;
+        SceneObject nearest = null;
+        
+        for (Sphere sphere : spheres) {
+            double dist = sphere.getFirstCollision(ray);
+            if (dist < nearestDist) {
+                nearest = sphere;
+                nearestDist = dist;
+            }
+        }
+        
+        for (Plane plane : planes) {
+            double dist = plane.getFirstCollision(ray);
+            if (dist < nearestDist) {
+                nearest = plane;
+                nearestDist = dist;
+            }
+        }
+        
+        for (Cube cube : cubes) {
+            double dist = cube.getFirstCollision(ray);
+            if (dist < nearestDist) {
+                nearest = cube;
+                nearestDist = dist;
+            }
+        }
+        
+        for (SceneObject object : others) {
+            double dist = object.getFirstCollision(ray);
+            if (dist < nearestDist) {
+                nearest = object;
+                nearestDist = dist;
+            }
+        }
+        
+        distance[0] = nearestDist;
+        return nearest;
+    }
+
+    @Override
+    public boolean isOccluded(Ray ray, double maxDistance) {
+        for (Sphere sphere : spheres) {
+            if (sphere.getFirstCollision(ray) < maxDistance)
+                return true;
+        }
+        
+        for (Plane plane : planes) {
+            if (plane.getFirstCollision(ray) < maxDistance)
+                return true;
+        }
+        
+        for (Cube cube : cubes) {
+            if (cube.getFirstCollision(ray) < maxDistance)
+                return true;
+        }
+        
+        for (SceneObject object : others) {
+            if (object.getFirstCollision(ray) < maxDistance)
+                return true;
+        }
+        
+        return false;
+    }
+    
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.io;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Off-heap store for the bulk numeric data of geometry and acceleration
+ * structures: vertex positions, indices, node bounds and so on.  Each
+ * named block is held in a direct buffer outside the Java heap, so that
+ * it adds nothing to garbage collection work.
+ * 
+ * A store can be saved to a file and later mapped back into memory with
+ * map().  Mapping reads only the small block directory; block contents
+ * are paged in by the operating system on first use, without parsing or
+ * copying.
+ * 
+ * The file consists of the magic string "JTGEOM01", the number of
+ * blocks, and for each block its name, element type, byte offset and
+ * element count, followed by the block data.  Block data is aligned to
+ * 8 bytes.  All values are little-endian.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class GeometryStore {
+    
+    static final byte[] MAGIC = "JTGEOM01".getBytes(StandardCharsets.US_ASCII);
+    
+    static final byte TYPE_INT = 0, TYPE_FLOAT = 1, TYPE_DOUBLE = 2, TYPE_BYTE = 3;
+    
+    /**
+     * Named block of data.
+     */
+    private static class Block {
+        final byte type;
+        final ByteBuffer data;
+        
+        Block(byte type, ByteBuffer data) {
+            this.type = type;
+            this.data = data;
+        }
+        
+        int elementSize() {
+            return GeometryStore.elementSize(type);
+        }
+    }
+    
+    static int elementSize(byte type) {
+        switch (type) {
+            case TYPE_DOUBLE:
+                return 8;
+            case TYPE_BYTE:
+                return 1;
+            default:
+                return 4;
+        }
+    }
+    
+    private final Map<String, Block> blocks;
+    
+    /**
+     * Create empty store.
+     */
+    public GeometryStore() {
+        blocks = new LinkedHashMap<>();
+    }
+    
+    /**
+     * Allocate off-heap block.
+     */
+    private ByteBuffer allocate(String name, byte type, int count, int elementSize) {
+        ByteBuffer data = ByteBuffer.allocateDirect(count*elementSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        blocks.put(name, new Block(type, data));
+        return data;
+    }
+    
+    /**
+     * Copy remaining elements of buffer into a new block, replacing any
+     * existing block of the same name.
+     * 
+     * @param name block name
+     * @param data source data
+     * @return off-heap copy of data
+     */
+    public IntBuffer putInts(String name, IntBuffer data) {
+        IntBuffer block = allocate(name, TYPE_INT, data.remaining(), 4).asIntBuffer();
+        block.put(data.duplicate()).flip();
+        return block;
+    }
+    
+    /**
+     * Copy remaining elements of buffer into a new block, replacing any
+     * existing block of the same name.
+     * 
+     * @param name block name
+     * @param data source data
+     * @return off-heap copy of data
+     */
+    public FloatBuffer putFloats(String name, FloatBuffer data) {
+        FloatBuffer block = allocate(name, TYPE_FLOAT, data.remaining(), 4).asFloatBuffer();
+        block.put(data.duplicate()).flip();
+        return block;
+    }
+    
+    /**
+     * Copy remaining elements of buffer into a new block, replacing any
+     * existing block of the same name.
+     * 
+     * @param name block name
+     * @param data source data
+     * @return off-heap copy of data
+     */
+    public DoubleBuffer putDoubles(String name, DoubleBuffer data) {
+        DoubleBuffer block = allocate(name, TYPE_DOUBLE, data.remaining(), 8).asDoubleBuffer();
+        block.put(data.duplicate()).flip();
+        return block;
+    }
+    
+    /**
+     * Copy remaining bytes of buffer into a new block, replacing any
+     * existing block of the same name.
+     * 
+     * @param name block name
+     * @param data source data
+     * @return off-heap copy of data
+     */
+    public ByteBuffer putBytes(String name, ByteBuffer data) {
+        ByteBuffer block = allocate(name, TYPE_BYTE, data.remaining(), 1);
+        block.put(data.duplicate()).flip();
+        return block;
+    }
+    
+    /**
+     * @param name block name
+     * @return true if store has a block of that name.
+     */
+    public boolean contains(String name) {
+        return blocks.containsKey(name);
+    }
+    
+    /**
+     * @return names of blocks, in the order they were added.
+     */
+    public List<String> getNames() {
+        return new ArrayList<>(blocks.keySet());
+    }
+    
+    private ByteBuffer getBlock(String name, byte type) {
+        Block block = blocks.get(name);
+        if (block == null)
+            throw new IllegalArgumentException("No geometry block named " + name);
+        if (block.type != type)
+            throw new IllegalArgumentException("Geometry block " + name
+                    + " has the wrong element type");
+        
+        return block.data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    /**
+     * @param name block name
+     * @return view of byte block
+     */
+    public ByteBuffer getBytes(String name) {
+        return getBlock(name, TYPE_BYTE);
+    }
+    
+    /**
+     * @param name block name
+     * @return view of int block
+     */
+    public IntBuffer getInts(String name) {
+        return getBlock(name, TYPE_INT).asIntBuffer();
+    }
+    
+    /**
+     * @param name block name
+     * @return view of float block
+     */
+    public FloatBuffer getFloats(String name) {
+        return getBlock(name, TYPE_FLOAT).asFloatBuffer();
+    }
+    
+    /**
+     * @param name block name
+     * @return view of double block
+     */
+    public DoubleBuffer getDoubles(String name) {
+        return getBlock(name, TYPE_DOUBLE).asDoubleBuffer();
+    }
+    
+    /**
+     * @param name block name
+     * @return view of double block, or null if the store has no block of
+     * that name.
+     */
+    public DoubleBuffer getDoublesIfPresent(String name) {
+        return contains(name) ? getDoubles(name) : null;
+    }
+    
+    /**
+     * @param name block name
+     * @return view of float block, or null if the store has no block of
+     * that name.
+     */
+    public FloatBuffer getFloatsIfPresent(String name) {
+        return contains(name) ? getFloats(name) : null;
+    }
+    
+    /**
+     * @param name block name
+     * @return view of int block, or null if the store has no block of
+     * that name.
+     */
+    public IntBuffer getIntsIfPresent(String name) {
+        return contains(name) ? getInts(name) : null;
+    }
+    
+    /**
+     * Write store to file.
+     * 
+     * @param path destination
+     * @throws IOException 
+     */
+    public void save(Path path) throws IOException {
+        List<byte[]> names = new ArrayList<>();
+        int headerSize = MAGIC.length + 4;
+        for (String name : blocks.keySet()) {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            names.add(nameBytes);
+            headerSize += 2 + nameBytes.length + 1 + 8 + 8;
+        }
+        
+        ByteBuffer header = ByteBuffer.allocate(headerSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC);
+        header.putInt(blocks.size());
+        
+        long offset = align(headerSize);
+        int i = 0;
+        for (Block block : blocks.values()) {
+            byte[] name = names.get(i++);
+            header.putShort((short)name.length);
+            header.put(name);
+            header.put(block.type);
+            header.putLong(offset);
+            header.putLong(block.data.capacity()/block.elementSize());
+            offset = align(offset + block.data.capacity());
+        }
+        header.flip();
+        
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header, 0);
+            
+            offset = align(headerSize);
+            for (Block block : blocks.values()) {
+                writeFully(channel, block.data.duplicate().clear(), offset);
+                offset = align(offset + block.data.capacity());
+            }
+        }
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer bytes,
+            long position) throws IOException {
+        while (bytes.hasRemaining())
+            position += channel.write(bytes, position);
+    }
+    
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+    
+    /**
+     * @param path file to check
+     * @return true if file begins with the geometry store magic string.
+     * @throws IOException if the file cannot be read
+     */
+    public static boolean isStore(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            channel.read(magic);
+            return !magic.hasRemaining() && Arrays.equals(magic.array(), MAGIC);
+        }
+    }
+    
+    /**
+     * Map store previously written using save().  Blocks are mapped
+     * read-only, directly from the file.
+     * 
+     * @param path store file
+     * @return mapped store
+     * @throws IOException if the file cannot be read or is not a
+     * geometry store
+     */
+    public static GeometryStore map(Path path) throws IOException {
+        GeometryStore store = new GeometryStore();
+        
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(size, Integer.MAX_VALUE)).order(ByteOrder.LITTLE_ENDIAN);
+            
+            try {
+                byte[] magic = new byte[MAGIC.length];
+                header.get(magic);
+                if (!Arrays.equals(magic, MAGIC))
+                    throw new IOException(path + " is not a geometry store");
+                
+                int nBlocks = header.getInt();
+                for (int i = 0; i < nBlocks; i++) {
+                    byte[] name = new byte[header.getShort()];
+                    header.get(name);
+                    byte type = header.get();
+                    long offset = header.getLong();
+                    long count = header.getLong();
+                    
+                    long bytes = count*elementSize(type);
+                    if (type < TYPE_INT || type > TYPE_BYTE || offset < 0
+                            || offset + bytes > size || bytes > Integer.MAX_VALUE)
+                        throw new IOException(path + " has a corrupt block directory");
+                    
+                    ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY,
+                            offset, bytes).order(ByteOrder.LITTLE_ENDIAN);
+                    store.blocks.put(new String(name, StandardCharsets.UTF_8),
+                            new Block(type, data));
+                }
+            } catch (BufferUnderflowException ex) {
+                throw new IOException(path + " has a truncated block directory");
+            }
+        }
+        
+        return store;
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import jtrace.object.TriangleMesh;
+
+/**
+ * Streaming loader for Wavefront OBJ files.  The file is read through
+ * a buffered NIO channel and parsed directly from the byte buffer, so
+ * no objects are created per line and memory use is dominated by the
+ * resulting mesh arrays.
+ * 
+ * Vertex positions (v), normals (vn), texture coordinates (vt) and faces
+ * (f) are read; polygonal faces are split into triangle fans.  All other
+ * statements (groups, materials, etc.) are ignored, and all faces are
+ * combined into a single mesh.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ObjLoader {
+    
+    static final int BUFFER_SIZE = 1 << 20;
+    
+    static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    
+    /**
+     * Growable array of floats.
+     */
+    private static class FloatList {
+        float[] data = new float[1024];
+        int size;
+        
+        void add(double x) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, 2*size);
+            data[size++] = (float)x;
+        }
+        
+        float[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+    
+    /**
+     * Growable array of ints.
+     */
+    private static class IntList {
+        int[] data = new int[1024];
+        int size;
+        
+        void add(int x) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, 2*size);
+            data[size++] = x;
+        }
+        
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+    
+    FloatList positions, normals, uvs;
+    IntList triangles, triangleNormals, triangleUVs;
+    boolean anyNormals, anyUVs;
+    
+    /**
+     * Indices of the vertices of the current face.
+     */
+    int[] faceP, faceT, faceN;
+    
+    byte[] buf;
+    int pos, lineNumber;
+    
+    private ObjLoader() {
+        positions = new FloatList();
+        normals = new FloatList();
+        uvs = new FloatList();
+        triangles = new IntList();
+        triangleNormals = new IntList();
+        triangleUVs = new IntList();
+        
+        faceP = new int[16];
+        faceT = new int[16];
+        faceN = new int[16];
+        
+        lineNumber = 0;
+    }
+    
+    /**
+     * Load mesh from OBJ file.
+     * 
+     * @param path file to read
+     * @return triangle mesh
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    public static TriangleMesh load(Path path) throws IOException {
+        ObjLoader loader = new ObjLoader();
+        
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            loader.read(channel);
+        }
+        
+        return loader.getMesh();
+    }
+    
+    /**
+     * Read and parse all lines from channel.
+     * 
+     * @param channel
+     * @throws IOException 
+     */
+    private void read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buf = buffer.array();
+        
+        boolean eof = false;
+        while (!eof) {
+            eof = channel.read(buffer) < 0;
+            
+            // Parse all complete lines in buffer:
+            int end = buffer.position();
+            int lastLineEnd = end;
+            if (!eof) {
+                while (lastLineEnd > 0 && buf[lastLineEnd - 1] != '\n')
+                    lastLineEnd--;
+            }
+            
+            pos = 0;
+            while (pos < lastLineEnd)
+                parseLine(lastLineEnd);
+            
+            // Keep partial line for next read:
+            if (lastLineEnd == 0 && end == buf.length) {
+                buffer = ByteBuffer.wrap(Arrays.copyOf(buf, 2*buf.length));
+                buffer.position(end);
+                buf = buffer.array();
+            } else {
+                System.arraycopy(buf, lastLineEnd, buf, 0, end - lastLineEnd);
+                buffer.position(end - lastLineEnd);
+            }
+        }
+    }
+    
+    /**
+     * Parse line beginning at pos, leaving pos at the start of the next
+     * line.
+     * 
+     * @param end end of valid data in buffer
+     * @throws IOException if line is malformed
+     */
+    private void parseLine(int end) throws IOException {
+        lineNumber += 1;
+        
+        int lineEnd = pos;
+        while (lineEnd < end && buf[lineEnd] != '\n')
+            lineEnd++;
+        
+        skipSpace(lineEnd);
+        
+        if (pos + 1 < lineEnd && buf[pos] == 'v' && isSpace(buf[pos + 1])) {
+            pos += 1;
+            positions.add(parseNumber(lineEnd));
+            positions.add(parseNumber(lineEnd));
+            positions.add(parseNumber(lineEnd));
+        } else if (pos + 2 < lineEnd && buf[pos] == 'v' && buf[pos + 1] == 'n'
+                && isSpace(buf[pos + 2])) {
+            pos += 2;
+            normals.add(parseNumber(lineEnd));
+            normals.add(parseNumber(lineEnd));
+            normals.add(parseNumber(lineEnd));
+        } else if (pos + 2 < lineEnd && buf[pos] == 'v' && buf[pos + 1] == 't'
+                && isSpace(buf[pos + 2])) {
+            pos += 2;
+            uvs.add(parseNumber(lineEnd));
+            skipSpace(lineEnd);
+            uvs.add(pos < lineEnd ? parseNumber(lineEnd) : 0.0);
+        } else if (pos + 1 < lineEnd && buf[pos] == 'f' && isSpace(buf[pos + 1])) {
+            pos += 1;
+            parseFace(lineEnd);
+        }
+        
+        pos = lineEnd + 1;
+    }
+    
+    /**
+     * Parse vertex references of a face and add its triangles.
+     * 
+     * @param lineEnd
+     * @throws IOException 
+     */
+    private void parseFace(int lineEnd) throws IOException {
+        int n = 0;
+        
+        skipSpace(lineEnd);
+        while (pos < lineEnd) {
+            if (n == faceP.length) {
+                faceP = Arrays.copyOf(faceP, 2*n);
+                faceT = Arrays.copyOf(faceT, 2*n);
+                faceN = Arrays.copyOf(faceN, 2*n);
+            }
+            
+            faceP[n] = resolveIndex(parseInt(lineEnd), positions.size/3);
+            faceT[n] = -1;
+            faceN[n] = -1;
+            
+            if (pos < lineEnd && buf[pos] == '/') {
+                pos++;
+                if (pos < lineEnd && buf[pos] != '/' && !isSpace(buf[pos]))
+                    faceT[n] = resolveIndex(parseInt(lineEnd), uvs.size/2);
+                if (pos < lineEnd && buf[pos] == '/') {
+                    pos++;
+                    faceN[n] = resolveIndex(parseInt(lineEnd), normals.size/3);
+                }
+            }
+            
+            n += 1;
+            skipSpace(lineEnd);
+        }
+        
+        if (n < 3)
+            throw error("Face has fewer than three vertices");
+        
+        for (int i = 1; i < n - 1; i++) {
+            addVertex(0);
+            addVertex(i);
+            addVertex(i + 1);
+        }
+    }
+    
+    private void addVertex(int i) {
+        triangles.add(faceP[i]);
+        triangleUVs.add(faceT[i]);
+        triangleNormals.add(faceN[i]);
+        anyUVs = anyUVs || faceT[i] >= 0;
+        anyNormals = anyNormals || faceN[i] >= 0;
+    }
+    
+    /**
+     * Convert OBJ index (one-based, or negative relative to the end of the
+     * list) to a zero-based index.
+     */
+    private int resolveIndex(int index, int count) throws IOException {
+        int res = index < 0 ? count + index : index - 1;
+        if (res < 0 || res >= count)
+            throw error("Index " + index + " out of range");
+        
+        return res;
+    }
+    
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+    
+    private void skipSpace(int lineEnd) {
+        while (pos < lineEnd && isSpace(buf[pos]))
+            pos++;
+    }
+    
+    private int parseInt(int lineEnd) throws IOException {
+        boolean negative = false;
+        if (pos < lineEnd && (buf[pos] == '-' || buf[pos] == '+'))
+            negative = buf[pos++] == '-';
+        
+        int start = pos;
+        int value = 0;
+        while (pos < lineEnd && buf[pos] >= '0' && buf[pos] <= '9')
+            value = 10*value + (buf[pos++] - '0');
+        
+        if (pos == start)
+            throw error("Expected integer");
+        
+        return negative ? -value : value;
+    }
+    
+    /**
+     * Parse decimal floating point number, preceded by optional spaces.
+     */
+    private double parseNumber(int lineEnd) throws IOException {
+        skipSpace(lineEnd);
+        
+        boolean negative = false;
+        if (pos < lineEnd && (buf[pos] == '-' || buf[pos] == '+'))
+            negative = buf[pos++] == '-';
+        
+        long mantissa = 0;
+        int exponent = 0;
+        int nDigits = 0;
+        
+        while (pos < lineEnd && buf[pos] >= '0' && buf[pos] <= '9') {
+            if (mantissa < 100000000000000000L)
+                mantissa = 10*mantissa + (buf[pos] - '0');
+            else
+                exponent += 1;
+            pos++;
+            nDigits++;
+        }
+        
+        if (pos < lineEnd && buf[pos] == '.') {
+            pos++;
+            while (pos < lineEnd && buf[pos] >= '0' && buf[pos] <= '9') {
+                if (mantissa < 100000000000000000L) {
+                    mantissa = 10*mantissa + (buf[pos] - '0');
+                    exponent -= 1;
+                }
+                pos++;
+                nDigits++;
+            }
+        }
+        
+        if (nDigits == 0)
+            throw error("Expected number");
+        
+        if (pos < lineEnd && (buf[pos] == 'e' || buf[pos] == 'E')) {
+            pos++;
+            exponent += parseInt(lineEnd);
+        }
+        
+        double value = mantissa;
+        if (exponent < 0)
+            value /= -exponent < POWERS_OF_TEN.length
+                    ? POWERS_OF_TEN[-exponent] : Math.pow(10, -exponent);
+        else if (exponent > 0)
+            value *= exponent < POWERS_OF_TEN.length
+                    ? POWERS_OF_TEN[exponent] : Math.pow(10, exponent);
+        
+        return negative ? -value : value;
+    }
+    
+    private IOException error(String message) {
+        return new IOException("OBJ line " + lineNumber + ": " + message);
+    }
+    
+    /**
+     * @return mesh containing all triangles read.
+     */
+    private TriangleMesh getMesh() {
+        return new TriangleMesh(positions.toArray(),
+                anyNormals ? normals.toArray() : null,
+                anyUVs ? uvs.toArray() : null,
+                triangles.toArray(),
+                anyNormals ? triangleNormals.toArray() : null,
+                anyUVs ? triangleUVs.toArray() : null);
+    }
+}
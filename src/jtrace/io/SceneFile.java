@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.io;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import jtrace.Camera;
+import jtrace.Colour;
+import jtrace.LightSource;
+import jtrace.RectangleLight;
+import jtrace.Scene;
+import jtrace.SphereLight;
+import jtrace.accel.BVH;
+import jtrace.accel.Grid;
+import jtrace.accel.TypeSortedList;
+import jtrace.object.Cube;
+import jtrace.object.Plane;
+import jtrace.object.SceneObject;
+import jtrace.object.Sphere;
+import jtrace.object.TriangleMesh;
+import jtrace.object.transformation.Rotation;
+import jtrace.object.transformation.Scale;
+import jtrace.object.transformation.Translation;
+import jtrace.texture.AmbientFinish;
+import jtrace.texture.CheckeredPigment;
+import jtrace.texture.DiffuseFinish;
+import jtrace.texture.Finish;
+import jtrace.texture.FlatTexture;
+import jtrace.texture.ImagePigment;
+import jtrace.texture.MirrorFinish;
+import jtrace.texture.Pigment;
+import jtrace.texture.SolidPigment;
+import jtrace.texture.SpecularFinish;
+import jtrace.texture.Texture;
+import jtrace.texture.TransparentFinish;
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+/**
+ * Reader for declarative scene description files, and compiler from
+ * these to a binary form which loads without parsing or building.
+ * 
+ * Scene files are line-based.  Everything following a # is a comment,
+ * and file names are given in double quotes, relative to the directory
+ * of the scene file.  The statements are:
+ * 
+ * <pre>
+ * camera x y z  px py pz  ux uy uz  fovUp fovRight
+ * focus aperture distance
+ * background r g b
+ * samples n
+ * accel bvh|grid|hashedgrid|sorted|none
+ * light x y z scale [r g b]
+ * spherelight x y z radius scale [r g b]
+ * rectlight x y z  ux uy uz  vx vy vz scale [r g b]
+ * 
+ * texture name
+ *     pigment solid r g b
+ *     pigment checkered r g b  r g b period
+ *     pigment image "file" scaleU scaleV
+ *     finish ambient|diffuse|mirror strength
+ *     finish specular strength tightness
+ *     finish transparent ior
+ * end
+ * 
+ * sphere|cube|plane|mesh "file.obj"
+ *     texture name
+ *     scale s | scale sx sy sz
+ *     rotate ax ay az degrees
+ *     translate x y z
+ * end
+ * </pre>
+ * 
+ * Textures must be declared before use, and object transformations are
+ * applied in the order given.
+ * 
+ * The compiled form is a GeometryStore holding the scene source together
+ * with each mesh and its bounding volume hierarchy, and the decoded pixels
+ * of each image.  Loading a compiled scene maps the file and rebuilds only
+ * the small objects described directly by the source.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class SceneFile {
+    
+    static final String SOURCE_BLOCK = "scene.source";
+    
+    /**
+     * Directory against which file names are resolved.
+     */
+    final Path baseDir;
+    
+    /**
+     * Store holding prebuilt meshes and images, or null when these are
+     * loaded from their source files.
+     */
+    final GeometryStore input;
+    
+    /**
+     * Store to which loaded meshes and images are written, or null.
+     */
+    final GeometryStore output;
+    
+    final Scene scene;
+    Camera camera;
+    final Map<String, Texture> textures;
+    int nMeshes, nImages;
+    
+    int lineNumber;
+    
+    /**
+     * Texture or object whose block is being read.
+     */
+    String textureName;
+    Pigment pigment;
+    List<Finish> finishes;
+    SceneObject object;
+    
+    private SceneFile(Path baseDir, GeometryStore input, GeometryStore output) {
+        this.baseDir = baseDir;
+        this.input = input;
+        this.output = output;
+        
+        scene = new Scene();
+        textures = new HashMap<>();
+        finishes = new ArrayList<>();
+    }
+    
+    /**
+     * Load scene from either a scene description or a compiled scene.
+     * 
+     * @param path file to read
+     * @return scene
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    public static Scene load(Path path) throws IOException {
+        Path baseDir = path.toAbsolutePath().getParent();
+        
+        if (GeometryStore.isStore(path)) {
+            GeometryStore store = GeometryStore.map(path);
+            if (!store.contains(SOURCE_BLOCK))
+                throw new IOException(path + " is not a compiled scene");
+            
+            SceneFile file = new SceneFile(baseDir, store, null);
+            file.parse(StandardCharsets.UTF_8.decode(store.getBytes(SOURCE_BLOCK)).toString());
+            return file.scene;
+        }
+        
+        SceneFile file = new SceneFile(baseDir, null, null);
+        file.parse(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+        return file.scene;
+    }
+    
+    /**
+     * Compile scene description, writing it together with its prebuilt
+     * meshes and decoded images to a file which can be passed to load().
+     * 
+     * @param source scene description
+     * @param dest compiled scene
+     * @throws IOException if the description cannot be read or is
+     * malformed, or the compiled scene cannot be written
+     */
+    public static void compile(Path source, Path dest) throws IOException {
+        byte[] text = Files.readAllBytes(source);
+        
+        GeometryStore store = new GeometryStore();
+        SceneFile file = new SceneFile(source.toAbsolutePath().getParent(), null, store);
+        file.parse(new String(text, StandardCharsets.UTF_8));
+        
+        store.putBytes(SOURCE_BLOCK, ByteBuffer.wrap(text));
+        store.save(dest);
+    }
+    
+    /**
+     * Parse scene description.
+     * 
+     * @param text
+     * @throws IOException if description is malformed
+     */
+    private void parse(String text) throws IOException {
+        lineNumber = 0;
+        for (String line : text.split("\n", -1)) {
+            lineNumber += 1;
+            
+            List<String> tokens = tokenize(line);
+            if (tokens.isEmpty())
+                continue;
+            
+            if (textureName != null)
+                parseTextureLine(tokens);
+            else if (object != null)
+                parseObjectLine(tokens);
+            else
+                parseSceneLine(tokens);
+        }
+        
+        if (textureName != null || object != null)
+            throw error("Missing end of block");
+    }
+    
+    /**
+     * Split line into whitespace-separated tokens, removing comments.  The
+     * quotes are removed from quoted tokens.
+     */
+    private List<String> tokenize(String line) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        
+        int pos = 0;
+        while (pos < line.length()) {
+            char c = line.charAt(pos);
+            if (Character.isWhitespace(c)) {
+                pos++;
+            } else if (c == '#') {
+                break;
+            } else if (c == '"') {
+                int close = line.indexOf('"', pos + 1);
+                if (close < 0)
+                    throw error("Unterminated string");
+                tokens.add(line.substring(pos + 1, close));
+                pos = close + 1;
+            } else {
+                int start = pos;
+                while (pos < line.length() && !Character.isWhitespace(line.charAt(pos))
+                        && line.charAt(pos) != '#')
+                    pos++;
+                tokens.add(line.substring(start, pos));
+            }
+        }
+        
+        return tokens;
+    }
+    
+    private void parseSceneLine(List<String> tokens) throws IOException {
+        switch (tokens.get(0)) {
+            case "camera":
+                expect(tokens, 12);
+                camera = new Camera(vector(tokens, 1), vector(tokens, 4),
+                        vector(tokens, 7), number(tokens, 10), number(tokens, 11));
+                scene.setCamera(camera);
+                break;
+                
+            case "focus":
+                expect(tokens, 3);
+                if (camera == null)
+                    throw error("Focus given before camera");
+                camera.setFocus(number(tokens, 1), number(tokens, 2));
+                break;
+                
+            case "background":
+                expect(tokens, 4);
+                scene.setBackground(colour(tokens, 1));
+                break;
+                
+            case "samples":
+                expect(tokens, 2);
+                scene.setSamplesPerPixel((int)number(tokens, 1));
+                break;
+                
+            case "accel":
+                expect(tokens, 2);
+                switch (tokens.get(1)) {
+                    case "bvh":
+                        scene.setAccelerationStructure(new BVH());
+                        break;
+                    case "grid":
+                        scene.setAccelerationStructure(new Grid());
+                        break;
+                    case "hashedgrid":
+                        scene.setAccelerationStructure(new Grid(true));
+                        break;
+                    case "sorted":
+                        scene.setAccelerationStructure(new TypeSortedList());
+                        break;
+                    case "none":
+                        scene.setAccelerationStructure(null);
+                        break;
+                    default:
+                        throw error("Unknown acceleration structure " + tokens.get(1));
+                }
+                break;
+                
+            case "light":
+                if (tokens.size() == 5)
+                    scene.addLightSource(new LightSource(vector(tokens, 1),
+                            number(tokens, 4)));
+                else {
+                    expect(tokens, 8);
+                    scene.addLightSource(new LightSource(vector(tokens, 1),
+                            number(tokens, 4), colour(tokens, 5), true));
+                }
+                break;
+                
+            case "spherelight":
+                if (tokens.size() == 6)
+                    scene.addLightSource(new SphereLight(vector(tokens, 1),
+                            number(tokens, 4), number(tokens, 5)));
+                else {
+                    expect(tokens, 9);
+                    scene.addLightSource(new SphereLight(vector(tokens, 1),
+                            number(tokens, 4), number(tokens, 5),
+                            colour(tokens, 6), true));
+                }
+                break;
+                
+            case "rectlight":
+                if (tokens.size() == 11)
+                    scene.addLightSource(new RectangleLight(vector(tokens, 1),
+                            vector(tokens, 4), vector(tokens, 7), number(tokens, 10)));
+                else {
+                    expect(tokens, 14);
+                    scene.addLightSource(new RectangleLight(vector(tokens, 1),
+                            vector(tokens, 4), vector(tokens, 7), number(tokens, 10),
+                            colour(tokens, 11), true));
+                }
+                break;
+                
+            case "texture":
+                expect(tokens, 2);
+                textureName = tokens.get(1);
+                pigment = null;
+                finishes.clear();
+                break;
+                
+            case "sphere":
+                expect(tokens, 1);
+                object = new Sphere();
+                break;
+                
+            case "cube":
+                expect(tokens, 1);
+                object = new Cube();
+                break;
+                
+            case "plane":
+                expect(tokens, 1);
+                object = new Plane();
+                break;
+                
+            case "mesh":
+                expect(tokens, 2);
+                object = loadMesh(tokens.get(1));
+                break;
+                
+            default:
+                throw error("Unknown statement " + tokens.get(0));
+        }
+    }
+    
+    private void parseTextureLine(List<String> tokens) throws IOException {
+        switch (tokens.get(0)) {
+            case "pigment":
+                if (tokens.size() < 2)
+                    throw error("Missing pigment type");
+                switch (tokens.get(1)) {
+                    case "solid":
+                        expect(tokens, 5);
+                        pigment = new SolidPigment(colour(tokens, 2));
+                        break;
+                    case "checkered":
+                        expect(tokens, 9);
+                        pigment = new CheckeredPigment(colour(tokens, 2),
+                                colour(tokens, 5), number(tokens, 8));
+                        break;
+                    case "image":
+                        expect(tokens, 5);
+                        pigment = new ImagePigment(loadImage(tokens.get(2)),
+                                number(tokens, 3), number(tokens, 4));
+                        break;
+                    default:
+                        throw error("Unknown pigment " + tokens.get(1));
+                }
+                break;
+                
+            case "finish":
+                if (tokens.size() < 2)
+                    throw error("Missing finish type");
+                switch (tokens.get(1)) {
+                    case "ambient":
+                        expect(tokens, 3);
+                        finishes.add(new AmbientFinish(number(tokens, 2)));
+                        break;
+                    case "diffuse":
+                        expect(tokens, 3);
+                        finishes.add(new DiffuseFinish(number(tokens, 2)));
+                        break;
+                    case "mirror":
+                        expect(tokens, 3);
+                        finishes.add(new MirrorFinish(number(tokens, 2)));
+                        break;
+                    case "specular":
+                        expect(tokens, 4);
+                        finishes.add(new SpecularFinish(number(tokens, 2),
+                                number(tokens, 3)));
+                        break;
+                    case "transparent":
+                        expect(tokens, 3);
+                        finishes.add(new TransparentFinish(number(tokens, 2)));
+                        break;
+                    default:
+                        throw error("Unknown finish " + tokens.get(1));
+                }
+                break;
+                
+            case "end":
+                expect(tokens, 1);
+                if (pigment == null)
+                    throw error("Texture " + textureName + " has no pigment");
+                FlatTexture texture = new FlatTexture(pigment);
+                for (Finish finish : finishes)
+                    texture.addFinish(finish);
+                textures.put(textureName, texture);
+                textureName = null;
+                break;
+                
+            default:
+                throw error("Unknown texture statement " + tokens.get(0));
+        }
+    }
+    
+    private void parseObjectLine(List<String> tokens) throws IOException {
+        switch (tokens.get(0)) {
+            case "texture":
+                expect(tokens, 2);
+                Texture texture = textures.get(tokens.get(1));
+                if (texture == null)
+                    throw error("Undefined texture " + tokens.get(1));
+                object.addTexture(texture);
+                break;
+                
+            case "scale":
+                if (tokens.size() == 2)
+                    object.addTransformation(new Scale(number(tokens, 1)));
+                else {
+                    expect(tokens, 4);
+                    object.addTransformation(new Scale(vector(tokens, 1)));
+                }
+                break;
+                
+            case "rotate":
+                expect(tokens, 5);
+                object.addTransformation(new Rotation(vector(tokens, 1),
+                        Math.toRadians(number(tokens, 4))));
+                break;
+                
+            case "translate":
+                expect(tokens, 4);
+                object.addTransformation(new Translation(vector(tokens, 1)));
+                break;
+                
+            case "end":
+                expect(tokens, 1);
+                scene.addObject(object);
+                object = null;
+                break;
+                
+            default:
+                throw error("Unknown object statement " + tokens.get(0));
+        }
+    }
+    
+    /**
+     * Obtain next mesh, either from the input store or by loading the
+     * named OBJ file.
+     */
+    private TriangleMesh loadMesh(String fileName) throws IOException {
+        String name = "mesh" + (nMeshes++);
+        
+        if (input != null)
+            return new TriangleMesh(input, name);
+        
+        TriangleMesh mesh = ObjLoader.load(baseDir.resolve(fileName));
+        if (output != null)
+            mesh.store(output, name);
+        
+        return mesh;
+    }
+    
+    /**
+     * Obtain next image, either from the input store or by decoding the
+     * named image file.
+     */
+    private BufferedImage loadImage(String fileName) throws IOException {
+        String name = "image" + (nImages++);
+        
+        if (input != null) {
+            IntBuffer size = input.getInts(name + ".size");
+            BufferedImage image = new BufferedImage(size.get(0), size.get(1),
+                    BufferedImage.TYPE_INT_ARGB);
+            input.getInts(name + ".pixels").get(
+                    ((DataBufferInt)image.getRaster().getDataBuffer()).getData());
+            return image;
+        }
+        
+        BufferedImage image = ImageIO.read(baseDir.resolve(fileName).toFile());
+        if (image == null)
+            throw error("Cannot decode image " + fileName);
+        
+        if (output != null) {
+            int width = image.getWidth(), height = image.getHeight();
+            output.putInts(name + ".size", IntBuffer.wrap(new int[] {width, height}));
+            output.putInts(name + ".pixels", IntBuffer.wrap(
+                    image.getRGB(0, 0, width, height, null, 0, width)));
+        }
+        
+        return image;
+    }
+    
+    private void expect(List<String> tokens, int count) throws IOException {
+        if (tokens.size() != count)
+            throw error("Expected " + (count - 1) + " arguments to "
+                    + tokens.get(0) + ", found " + (tokens.size() - 1));
+    }
+    
+    private double number(List<String> tokens, int index) throws IOException {
+        try {
+            return Double.parseDouble(tokens.get(index));
+        } catch (NumberFormatException ex) {
+            throw error("Expected number, found " + tokens.get(index));
+        }
+    }
+    
+    private Vector3D vector(List<String> tokens, int index) throws IOException {
+        return new Vector3D(number(tokens, index), number(tokens, index + 1),
+                number(tokens, index + 2));
+    }
+    
+    private Colour colour(List<String> tokens, int index) throws IOException {
+        return new Colour(number(tokens, index), number(tokens, index + 1),
+                number(tokens, index + 2));
+    }
+    
+    private IOException error(String message) {
+        return new IOException("Scene line " + lineNumber + ": " + message);
+    }
+}
@@ -20,6 +20,7 @@ package jtrace.object;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import jtrace.NotContent;
 import jtrace.Ray;
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 
@@ -35,6 +36,11 @@ public class Cube extends SceneObject {
      */
     Ray [] normals;
     
+    /**
+     * Face hit by most recent collision.
+     */
+    @NotContent private int hitFace;
+    
     /**
      * Create cube with unit side.
      */
@@ -62,41 +68,93 @@ public class Cube extends SceneObject {
     
     @Override
     public double getFirstCollisionObjectFrame(Ray ray) {
+        double alpha = intersect(ray.origin.getX(), ray.origin.getY(), ray.origin.getZ(),
+                ray.direction.getX(), ray.direction.getY(), ray.direction.getZ());
+        
+        if (alpha < Double.POSITIVE_INFINITY)
+            recordCollision(ray, alpha);
+        
+        return alpha;
+    }
+
+    @Override
+    public double getFirstCollisionObjectFrame(double ox, double oy, double oz,
+            double dx, double dy, double dz) {
+        double alpha = intersect(ox, oy, oz, dx, dy, dz);
+        
+        if (alpha < Double.POSITIVE_INFINITY)
+            recordCollision(new Ray(new Vector3D(ox, oy, oz), new Vector3D(dx, dy, dz)), alpha);
+        
+        return alpha;
+    }
+    
+    /**
+     * Find first intersection of ray with cube, recording the face hit.
+     * 
+     * @return distance along ray, or infinity if there is none.
+     */
+    private double intersect(double ox, double oy, double oz,
+            double dx, double dy, double dz) {
         
         // Cube edges and vertices are the intersections of 6 planes.
         // Need to find points of intersection with each of these planes.
         
         double alpha = Double.POSITIVE_INFINITY;
-        Ray collisionNormal = new Ray();
         for (int i=0; i<6; i++) {
-            double thisAlpha = normals[i].direction.dotProduct(normals[i].origin.subtract(ray.origin))
-                    /normals[i].direction.dotProduct(ray.direction);
-            
-            if (thisAlpha<=0)
-                continue;
-            
-            Vector3D collisionLocation = ray.origin.add(thisAlpha, ray.direction);
-            Vector3D delta = collisionLocation.subtract(normals[i].origin);
-            if (Math.abs(delta.getX())>0.5
-                    || Math.abs(delta.getY())>0.5
-                    || Math.abs(delta.getZ())>0.5) {
-                continue;
-            }
+            double p = i%2 == 0 ? 0.5 : -0.5;
+            double thisAlpha;
+            if (i < 2)
+                thisAlpha = intersectFace(p, ox, dx, oy, dy, oz, dz);
+            else if (i < 4)
+                thisAlpha = intersectFace(p, oy, dy, oz, dz, ox, dx);
+            else
+                thisAlpha = intersectFace(p, oz, dz, ox, dx, oy, dy);
             
             if (thisAlpha<alpha) {
                 alpha = thisAlpha;
-                collisionNormal.origin = collisionLocation;
-                collisionNormal.direction = normals[i].direction;
+                hitFace = i;
             }
         }
         
-        if (alpha<Double.POSITIVE_INFINITY) {
-            incidentRay = ray;
-            normalRay = collisionNormal;
-        }
+        return alpha;
+    }
+    
+    /**
+     * Find intersection of ray with the face lying in the plane where the
+     * coordinate a is equal to p.  As the face normals are axis aligned,
+     * this gives exactly the result of intersecting the face plane using
+     * Vector3D operations.
+     * 
+     * @param p coordinate of face along its normal
+     * @param oa ray origin along face normal
+     * @param da ray direction along face normal
+     * @param ob ray origin along second axis
+     * @param db ray direction along second axis
+     * @param oc ray origin along third axis
+     * @param dc ray direction along third axis
+     * @return distance along ray, or infinity if the face is missed
+     */
+    private static double intersectFace(double p, double oa, double da,
+            double ob, double db, double oc, double dc) {
+        double alpha = (p - oa)/da;
+        
+        if (alpha<=0
+                || Math.abs(oa + alpha*da - p)>0.5
+                || Math.abs(ob + alpha*db)>0.5
+                || Math.abs(oc + alpha*dc)>0.5)
+            return Double.POSITIVE_INFINITY;
         
         return alpha;
     }
+    
+    /**
+     * Record incident and normal rays.
+     */
+    private void recordCollision(Ray ray, double alpha) {
+        incidentRay = ray;
+        normalRay = new Ray(ray.origin.add(alpha, ray.direction),
+                normals[hitFace].direction);
+    }
 
     @Override
     public double getU() {
@@ -148,4 +206,10 @@ public class Cube extends SceneObject {
         return Arrays.asList(edges);
     }
     
+
+    @Override
+    public Vector3D[] getBoundsObjectFrame() {
+        return new Vector3D[] {new Vector3D(-0.5, -0.5, -0.5),
+            new Vector3D(0.5, 0.5, 0.5)};
+    }
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.object;
+
+import java.util.ArrayList;
+import java.util.List;
+import jtrace.Colour;
+import jtrace.NotContent;
+import jtrace.Ray;
+import jtrace.texture.Texture;
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+/**
+ * Placement of shared geometry in a scene.  The geometry is described by
+ * an ObjectGroup, which can be shared by any number of instances; each
+ * instance only stores its own transformations and (optionally)
+ * textures.  Instances without textures use those of the group objects.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class Instance extends SceneObject {
+    
+    private final ObjectGroup group;
+    
+    /**
+     * Group object hit by most recent collision, and the details of that
+     * collision in the group frame.
+     */
+    @NotContent private SceneObject hitObject;
+    @NotContent private Collision hitCollision;
+    
+    /**
+     * Collision details including the group object hit.
+     */
+    static class InstanceCollision extends Collision {
+        final SceneObject hitObject;
+        final Collision hitCollision;
+        
+        InstanceCollision(Ray incidentRay, Ray normalRay, double u, double v,
+                SceneObject hitObject, Collision hitCollision) {
+            super(incidentRay, normalRay, u, v);
+            this.hitObject = hitObject;
+            this.hitCollision = hitCollision;
+        }
+    }
+    
+    /**
+     * Create instance of the given group.
+     * 
+     * @param group 
+     */
+    public Instance(ObjectGroup group) {
+        super();
+        this.group = group;
+    }
+    
+    public ObjectGroup getGroup() {
+        return group;
+    }
+
+    @Override
+    public double getFirstCollisionObjectFrame(Ray ray) {
+        double[] distance = new double[1];
+        SceneObject object = group.findNearest(ray, distance);
+        if (object == null)
+            return Double.POSITIVE_INFINITY;
+        
+        hitObject = object;
+        hitCollision = object.saveCollision();
+        incidentRay = object.incidentRay;
+        normalRay = object.normalRay;
+        u = object.u;
+        v = object.v;
+        
+        return distance[0];
+    }
+
+    @Override
+    public Collision saveCollision() {
+        return new InstanceCollision(incidentRay, normalRay, u, v,
+                hitObject, hitCollision);
+    }
+
+    @Override
+    public void restoreCollision(Collision collision) {
+        super.restoreCollision(collision);
+        hitObject = ((InstanceCollision)collision).hitObject;
+        hitCollision = ((InstanceCollision)collision).hitCollision;
+    }
+    
+    /**
+     * Retrieve textures used to shade the most recent collision: those
+     * of the instance if it has any, otherwise those of the group object
+     * hit.  If no collision has occurred, the textures of every group
+     * object are returned.
+     * 
+     * @return list of textures
+     */
+    @Override
+    public List<Texture> getTextures() {
+        List<Texture> textures = super.getTextures();
+        if (!textures.isEmpty())
+            return textures;
+        
+        if (hitObject != null)
+            return hitObject.getTextures();
+        
+        List<Texture> all = new ArrayList<>();
+        for (SceneObject object : group.getObjects())
+            all.addAll(object.getTextures());
+        return all;
+    }
+
+    @Override
+    public boolean isTransparent() {
+        if (!super.getTextures().isEmpty())
+            return super.isTransparent();
+        
+        for (SceneObject object : group.getObjects()) {
+            if (object.isTransparent())
+                return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Instances without textures of their own take the transmittance of
+     * the group object hit, which may differ between collisions, so the
+     * filter is delegated to that object rather than cached here.
+     * 
+     * @return transmittance, or null if the object hit is opaque
+     */
+    @Override
+    public Colour getTransmittance() {
+        if (!super.getTextures().isEmpty())
+            return super.getTransmittance();
+        
+        hitObject.restoreCollision(hitCollision);
+        return hitObject.getTransmittance();
+    }
+
+    @Override
+    public double getU() {
+        hitObject.restoreCollision(hitCollision);
+        return hitObject.getU();
+    }
+
+    @Override
+    public double getV() {
+        hitObject.restoreCollision(hitCollision);
+        return hitObject.getV();
+    }
+
+    @Override
+    public List<Vector3D[]> getWireFrameObjectFrame() {
+        List<Vector3D[]> edges = new ArrayList<>();
+        for (SceneObject object : group.getObjects())
+            edges.addAll(object.getWireFrame());
+        
+        return edges;
+    }
+
+    @Override
+    public Vector3D[] getBoundsObjectFrame() {
+        return group.getBounds();
+    }
+}
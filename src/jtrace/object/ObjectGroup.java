@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.object;
+
+import java.util.ArrayList;
+import java.util.List;
+import jtrace.NotContent;
+import jtrace.Ray;
+import jtrace.accel.BVH;
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+/**
+ * Collection of objects forming a piece of geometry which can be placed
+ * in a scene any number of times using Instance objects.  The objects
+ * are stored once, together with a bounding volume hierarchy over them,
+ * however many instances are created.
+ * 
+ * Objects are positioned in the group's own frame using their own
+ * transformations.  The group must not be modified once instances of it
+ * have been added to a scene.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ObjectGroup {
+    
+    private final List<SceneObject> objects;
+    @NotContent private BVH bvh;
+    
+    /**
+     * Create empty group.
+     */
+    public ObjectGroup() {
+        objects = new ArrayList<>();
+    }
+    
+    /**
+     * Add object to group.
+     * 
+     * @param object
+     * @return this group
+     */
+    public ObjectGroup addObject(SceneObject object) {
+        objects.add(object);
+        bvh = null;
+        return this;
+    }
+    
+    /**
+     * @return objects in group
+     */
+    public List<SceneObject> getObjects() {
+        return objects;
+    }
+    
+    /**
+     * Retrieve hierarchy over group objects, building it if necessary.
+     * 
+     * @return bounding volume hierarchy
+     */
+    public synchronized BVH getBVH() {
+        if (bvh == null)
+            bvh = new BVH(objects);
+        
+        return bvh;
+    }
+    
+    /**
+     * Determine closest object in group intersected by ray.
+     * 
+     * @param ray ray in group frame
+     * @param distance array whose first element receives the distance to
+     * the intersection
+     * @return nearest object, or null if the ray misses the group.
+     */
+    SceneObject findNearest(Ray ray, double[] distance) {
+        return getBVH().findNearest(ray, distance);
+    }
+    
+    /**
+     * Obtain axis-aligned bounding box of group in its own frame.
+     * 
+     * @return array containing minimum and maximum corners, or null if the
+     * group contains unbounded objects.
+     */
+    public Vector3D[] getBounds() {
+        if (getBVH().hasUnbounded())
+            return null;
+        
+        return getBVH().getBounds();
+    }
+}
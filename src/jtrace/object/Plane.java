@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.List;
 import jtrace.Ray;
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import org.apache.commons.math3.util.MathArrays;
 
 /**
  * Basic plane object.
@@ -47,13 +48,53 @@ public class Plane extends SceneObject {
 
     @Override
     public double getFirstCollisionObjectFrame(Ray ray) {
+        double alpha = intersect(ray.origin.getX(), ray.origin.getY(), ray.origin.getZ(),
+                ray.direction.getX(), ray.direction.getY(), ray.direction.getZ());
         
-        double alpha = planeNormal.dotProduct(Vector3D.ZERO.subtract(ray.origin))
-                / planeNormal.dotProduct(ray.direction);
+        if (alpha<0)
+            return Double.POSITIVE_INFINITY;
+        
+        recordCollision(ray, alpha);
+        
+        return alpha;
+    }
+
+    @Override
+    public double getFirstCollisionObjectFrame(double ox, double oy, double oz,
+            double dx, double dy, double dz) {
+        double alpha = intersect(ox, oy, oz, dx, dy, dz);
         
         if (alpha<0)
             return Double.POSITIVE_INFINITY;
         
+        recordCollision(new Ray(new Vector3D(ox, oy, oz), new Vector3D(dx, dy, dz)), alpha);
+        
+        return alpha;
+    }
+    
+    /**
+     * Find intersection of ray with plane.  The arithmetic matches that of
+     * the equivalent Vector3D operations exactly.
+     * 
+     * @return distance along ray, which is negative if the plane lies
+     * behind the ray origin.
+     */
+    private double intersect(double ox, double oy, double oz,
+            double dx, double dy, double dz) {
+        return MathArrays.linearCombination(
+                planeNormal.getX(), 0.0 - ox,
+                planeNormal.getY(), 0.0 - oy,
+                planeNormal.getZ(), 0.0 - oz)
+                / MathArrays.linearCombination(
+                        planeNormal.getX(), dx,
+                        planeNormal.getY(), dy,
+                        planeNormal.getZ(), dz);
+    }
+    
+    /**
+     * Record incident and normal rays and texture coordinates.
+     */
+    private void recordCollision(Ray ray, double alpha) {
         incidentRay = ray;
         
         Vector3D collisionLocation = ray.origin.add(alpha, ray.direction);
@@ -63,8 +104,6 @@ public class Plane extends SceneObject {
         u = q.dotProduct(planeNorth);
         
         v = q.dotProduct(planeEast);
-        
-        return alpha;
     }
 
     @Override
@@ -98,4 +137,9 @@ public class Plane extends SceneObject {
         
         return edges;
     }
+
+    @Override
+    public Vector3D[] getBoundsObjectFrame() {
+        return null;
+    }
 }
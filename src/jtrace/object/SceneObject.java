@@ -18,11 +18,18 @@ package jtrace.object;
 
 import java.util.ArrayList;
 import java.util.List;
+import jtrace.AreaLight;
 import jtrace.Colour;
+import jtrace.LightSample;
 import jtrace.LightSource;
+import jtrace.LightTree;
+import jtrace.NotContent;
 import jtrace.Ray;
 import jtrace.Scene;
+import jtrace.object.transformation.Scale;
 import jtrace.object.transformation.Transformation;
+import jtrace.object.transformation.Translation;
+import jtrace.sampler.HaltonSampler;
 import jtrace.texture.Texture;
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 
@@ -39,13 +46,22 @@ public abstract class SceneObject {
     /**
      * Scene that object resides in
      */
-    private Scene scene;
+    @NotContent private Scene scene;
     
     /**
      * Coordinate transformations to apply to object.
      */
     private final List<Transformation> transformations;
     
+    /**
+     * Type (SCALE or TRANSLATE) and x, y and z components of each
+     * transformation, or null if any transformation is of another kind.
+     * Allows rays to be brought into the object frame without allocation.
+     */
+    @NotContent private double[] axisTransformations;
+    
+    static final double SCALE = 0.0, TRANSLATE = 1.0;
+    
     /**
      * Textures to apply to object.
      */
@@ -54,10 +70,10 @@ public abstract class SceneObject {
     /**
      * Details of last collision.
      */
-    protected Ray incidentRay;
-    protected Ray normalRay, normalRayRef, normalRayTrans;
-    protected Ray reflectedRay;
-    protected boolean internal;
+    @NotContent protected Ray incidentRay;
+    @NotContent protected Ray normalRay, normalRayRef, normalRayTrans;
+    @NotContent protected Ray reflectedRay;
+    @NotContent protected boolean internal;
     
     /**
      * The small value collision locations are moved out from their surfaces
@@ -68,16 +84,46 @@ public abstract class SceneObject {
     /**
      * UV coordinates of collision point for texture mapping.
      */
-    protected double u, v;
+    @NotContent protected double u, v;
     
     /**
      * Light sources visible from last collision point.
      */
-    private List<LightSource> visibleLights;
+    @NotContent private List<LightSource> visibleLights;
+    
+    /**
+     * Illumination due to each light source visible from last collision
+     * point.
+     */
+    @NotContent private List<LightSample> lightSamples;
+    
+    /**
+     * Transmittance seen by shadow rays, cached when the same at every
+     * point on the object.  Null if the object is opaque.
+     */
+    @NotContent private Colour transmittance;
+    @NotContent private boolean transmittanceCached;
+
+    /**
+     * Saved details of a collision, allowing an earlier collision to be
+     * shaded again without re-tracing the ray that produced it.
+     */
+    public static class Collision {
+        public final Ray incidentRay, normalRay;
+        public final double u, v;
+        
+        Collision(Ray incidentRay, Ray normalRay, double u, double v) {
+            this.incidentRay = incidentRay;
+            this.normalRay = normalRay;
+            this.u = u;
+            this.v = v;
+        }
+    }
 
     public SceneObject() {
         transformations = new ArrayList<>();
         textures = new ArrayList<>();
+        axisTransformations = new double[0];
     }
     
     public void setScene(Scene scene) {
@@ -90,10 +136,77 @@ public abstract class SceneObject {
     
     public void addTexture(Texture texture) {
         textures.add(texture);
+        transmittanceCached = false;
+        
+        if (scene != null)
+            scene.objectChanged(this, getBounds());
     }
     
     public void addTransformation(Transformation transformation) {
+        Vector3D[] oldBounds = scene != null ? getBounds() : null;
+        
         transformations.add(transformation);
+        updateAxisTransformations();
+        
+        if (scene != null)
+            scene.objectChanged(this, oldBounds);
+    }
+    
+    /**
+     * Replace one of the object's transformations, for instance to
+     * animate it.
+     * 
+     * @param index index of transformation in the order added
+     * @param transformation new transformation
+     */
+    public void setTransformation(int index, Transformation transformation) {
+        Vector3D[] oldBounds = scene != null ? getBounds() : null;
+        
+        transformations.set(index, transformation);
+        updateAxisTransformations();
+        
+        if (scene != null)
+            scene.objectChanged(this, oldBounds);
+    }
+    
+    /**
+     * Remove all of the object's transformations.
+     */
+    public void clearTransformations() {
+        Vector3D[] oldBounds = scene != null ? getBounds() : null;
+        
+        transformations.clear();
+        updateAxisTransformations();
+        
+        if (scene != null)
+            scene.objectChanged(this, oldBounds);
+    }
+    
+    /**
+     * Record components of transformations if these are all scales and
+     * translations.
+     */
+    private void updateAxisTransformations() {
+        double[] axis = new double[4*transformations.size()];
+        for (int i = 0; i < transformations.size(); i++) {
+            Transformation transformation = transformations.get(i);
+            Vector3D vec;
+            if (transformation instanceof Scale) {
+                axis[4*i] = SCALE;
+                vec = ((Scale)transformation).getScaleVec();
+            } else if (transformation instanceof Translation) {
+                axis[4*i] = TRANSLATE;
+                vec = ((Translation)transformation).getDelta();
+            } else {
+                axisTransformations = null;
+                return;
+            }
+            axis[4*i + 1] = vec.getX();
+            axis[4*i + 2] = vec.getY();
+            axis[4*i + 3] = vec.getZ();
+        }
+        
+        axisTransformations = axis;
     }
     
     public Vector3D objectToSceneVector(Vector3D sceneVec) {
@@ -112,16 +225,43 @@ public abstract class SceneObject {
         return sceneVec;
     }
     
+    public Vector3D objectToSceneDirection(Vector3D objectDir) {
+        Vector3D sceneDir = objectDir;
+        for (Transformation transformation : transformations)
+            sceneDir = transformation.applyToDirection(sceneDir);
+        return sceneDir;
+    }
+    
+    public Vector3D sceneToObjectDirection(Vector3D sceneDir) {
+        Vector3D objectDir = sceneDir;
+        for (int i=transformations.size()-1; i>=0; i--)
+            objectDir = transformations.get(i).applyInverseToDirection(objectDir);
+        return objectDir;
+    }
+    
+    /**
+     * Transform surface normal from object to scene frame.
+     * 
+     * @param objectNormal
+     * @return unit normal in scene frame
+     */
+    public Vector3D objectToSceneNormal(Vector3D objectNormal) {
+        Vector3D sceneNormal = objectNormal;
+        for (Transformation transformation : transformations)
+            sceneNormal = transformation.applyToNormal(sceneNormal);
+        return sceneNormal.normalize();
+    }
+    
     public Ray sceneToObjectRay(Ray sceneRay) {
         return new Ray(
                 sceneToObjectVector(sceneRay.origin),
-                sceneToObjectVector(sceneRay.direction));
+                sceneToObjectDirection(sceneRay.direction));
     }
     
     public Ray objectToSceneRay(Ray objectRay) {
         return new Ray(
                 objectToSceneVector(objectRay.origin),
-                objectToSceneVector(objectRay.direction));
+                objectToSceneDirection(objectRay.direction));
     }
     
     public Ray getIncidentRay() {
@@ -136,6 +276,28 @@ public abstract class SceneObject {
         return internal;
     }
     
+    /**
+     * Save details of the most recent collision.
+     * 
+     * @return collision details
+     */
+    public Collision saveCollision() {
+        return new Collision(incidentRay, normalRay, u, v);
+    }
+    
+    /**
+     * Make the given collision the most recent collision with this object,
+     * so that it is shaded by the next call to getCollisionColour().
+     * 
+     * @param collision details saved using saveCollision()
+     */
+    public void restoreCollision(Collision collision) {
+        incidentRay = collision.incidentRay;
+        normalRay = collision.normalRay;
+        u = collision.u;
+        v = collision.v;
+    }
+    
     /**
      * Retrieve ray normal to surface with the origin shifted by epsilon
      * so that the surface itself cannot be hit by a REFLECTED ray starting
@@ -206,11 +368,37 @@ public abstract class SceneObject {
      * @return distance from origin of ray to first intersection
      */
     public double getFirstCollision(Ray ray) {
-        double dist = getFirstCollisionObjectFrame(sceneToObjectRay(ray));
+        double dist;
+        if (axisTransformations != null) {
+            // Apply inverse scales and translations component-wise, in
+            // exactly the order and form used by sceneToObjectRay():
+            double ox = ray.origin.getX(), oy = ray.origin.getY(), oz = ray.origin.getZ();
+            double dx = ray.direction.getX(), dy = ray.direction.getY(), dz = ray.direction.getZ();
+            for (int i = axisTransformations.length - 4; i >= 0; i -= 4) {
+                double x = axisTransformations[i + 1], y = axisTransformations[i + 2],
+                        z = axisTransformations[i + 3];
+                if (axisTransformations[i] == SCALE) {
+                    ox = ox/x;
+                    oy = oy/y;
+                    oz = oz/z;
+                    dx = dx/x;
+                    dy = dy/y;
+                    dz = dz/z;
+                } else {
+                    ox = ox - x;
+                    oy = oy - y;
+                    oz = oz - z;
+                }
+            }
+            dist = getFirstCollisionObjectFrame(ox, oy, oz, dx, dy, dz);
+        } else
+            dist = getFirstCollisionObjectFrame(sceneToObjectRay(ray));
         
         if (dist > 0 && dist < Double.POSITIVE_INFINITY) {
             incidentRay = objectToSceneRay(incidentRay);
-            normalRay = objectToSceneRay(normalRay);
+            normalRay = new Ray(
+                    objectToSceneVector(normalRay.origin),
+                    objectToSceneNormal(normalRay.direction));
         }
         
         return dist;
@@ -218,6 +406,27 @@ public abstract class SceneObject {
     
     public abstract double getFirstCollisionObjectFrame(Ray ray);
     
+    /**
+     * Equivalent to getFirstCollisionObjectFrame(Ray), with the ray given
+     * by its components.  Simple objects override this to avoid allocating
+     * anything for rays which miss them.  Used in place of the Ray form
+     * whenever the object's transformations are only scales and
+     * translations.
+     * 
+     * @param ox x component of ray origin
+     * @param oy y component of ray origin
+     * @param oz z component of ray origin
+     * @param dx x component of ray direction
+     * @param dy y component of ray direction
+     * @param dz z component of ray direction
+     * @return distance from origin of ray to first intersection
+     */
+    public double getFirstCollisionObjectFrame(double ox, double oy, double oz,
+            double dx, double dy, double dz) {
+        return getFirstCollisionObjectFrame(new Ray(new Vector3D(ox, oy, oz),
+                new Vector3D(dx, dy, dz)));
+    }
+    
     /**
      * Mix values obtained from the layered textures to obtain the colour at
      * the point of collision.
@@ -226,19 +435,38 @@ public abstract class SceneObject {
      */
     public Colour getCollisionColour() {
         
-        // Clear calculated collision information (allows for caching):
+        clearCollisionCache();
+        
+        double[] rgb = new double[3];
+        for (Texture texture : getTextures()) {
+            texture.accumulateTextureColour(this, rgb);
+        }
+        return new Colour(rgb[0], rgb[1], rgb[2]);
+    }
+    
+    /**
+     * Clear information calculated from the previous collision (allows
+     * for caching) and determine whether the most recent collision
+     * occurred on the inside of the object's surface.  Must be called
+     * before the object is shaded.
+     */
+    public void clearCollisionCache() {
         visibleLights = null;
+        lightSamples = null;
         reflectedRay = null;
         normalRayRef = null;
         normalRayTrans = null;
         
         internal = incidentRay.direction.dotProduct(normalRay.direction)>0;
-        
-        Colour colour = new Colour(0,0,0);
-        for (Texture texture : textures) {
-            colour = texture.layerTextureColour(this, colour);
-        }
-        return colour;
+    }
+    
+    /**
+     * Retrieve textures applied to object.
+     * 
+     * @return list of textures
+     */
+    public List<Texture> getTextures() {
+        return textures;
     }
     
     /**
@@ -267,28 +495,221 @@ public abstract class SceneObject {
         if (visibleLights != null)
             return visibleLights;
         
-        visibleLights = new ArrayList<LightSource>();
-        Vector3D location = getNormalRayRef().origin;
+        visibleLights = new ArrayList<>();
+        for (LightSample sample : getLightSamples())
+            visibleLights.add(sample.light);
         
-        for (LightSource light : scene.getLightSources()) {
-            
-            Vector3D dirToLight = light.getLocation().subtract(location).normalize();
-            Ray rayToLight = new Ray(location, dirToLight);
-            
-            boolean occluded = false;
-            
-            for (SceneObject object : scene.getSceneObjects()) {
-                if (object.getFirstCollision(rayToLight)<Double.POSITIVE_INFINITY) {
-                    occluded = true;
+        return visibleLights;
+    }
+    
+    /**
+     * Retrieve direction, distance and intensity of each light source
+     * visible from the location of the last collision.  These are computed
+     * in a single sweep over the scene's lights and shared between all
+     * finishes applied at the collision point.
+     * 
+     * @return List of light samples.
+     */
+    public List<LightSample> getLightSamples() {
+        
+        // Return existing list if it's already been calculated:
+        if (lightSamples != null)
+            return lightSamples;
+        
+        lightSamples = new ArrayList<>();
+        
+        // Shadow rays may also collide with this object, overwriting the
+        // details of the collision being shaded:
+        Collision savedCollision = saveCollision();
+        Ray savedNormalRay = normalRay;
+        
+        int nSamples = scene.getLightSamplesPerHit();
+        if (nSamples > 0) {
+            LightTree lightTree = scene.getLightTree();
+            for (int i=0; i<nSamples; i++) {
+                LightTree.Choice choice = lightTree.sample(
+                        savedNormalRay.origin, scene.getSampler().get1D());
+                if (choice == null)
                     break;
-                }
+                addLightSample(choice.light, savedNormalRay.origin,
+                        1.0/(nSamples*choice.pdf), false);
             }
+        } else if (scene.getLightCutoff() > 0.0) {
+            for (LightSource light : scene.getLightTree().getLightsAbove(
+                    savedNormalRay.origin, scene.getLightCutoff()))
+                addLightSample(light, savedNormalRay.origin, 1.0, true);
+        } else {
+            for (LightSource light : scene.getLightSources())
+                addLightSample(light, savedNormalRay.origin, 1.0, true);
+        }
+        
+        restoreCollision(savedCollision);
+        
+        return lightSamples;
+    }
+    
+    /**
+     * Shadow-test light and record its illumination at the given collision
+     * point if it is visible and, where requested, not below the scene's
+     * intensity cut-off.  Lights chosen by stochastic selection must not
+     * be cut off, as their weight assumes that every choice contributes.
+     * 
+     * @param light light source
+     * @param location collision point
+     * @param weight weight to apply to light's contribution
+     * @param applyCutoff whether to discard lights below the cut-off
+     */
+    private void addLightSample(LightSource light, Vector3D location,
+            double weight, boolean applyCutoff) {
+        
+        Vector3D lightVec = light.getLocation().subtract(location);
+        double lightDistanceSq = lightVec.getNormSq();
+        
+        if (applyCutoff
+                && light.getIntensity(lightDistanceSq) < scene.getLightCutoff())
+            return;
+        
+        Vector3D dirToLight = lightVec.normalize();
+        
+        Colour filter;
+        if (light instanceof AreaLight) {
+            double[] rgb = new double[3];
+            double visibility = getVisibility((AreaLight)light, location, rgb);
+            if (visibility == 0.0)
+                return;
+            weight *= visibility;
+            filter = new Colour(rgb[0], rgb[1], rgb[2]);
+        } else {
+            Vector3D shadowOrigin = getNormalRayRef().origin;
+            filter = getShadowTransmittance(new Ray(shadowOrigin, dirToLight),
+                    light.getLocation().subtract(shadowOrigin).getNorm());
+            if (filter == null)
+                return;
+        }
+        
+        lightSamples.add(new LightSample(light, dirToLight, lightDistanceSq,
+                weight, filter));
+    }
+    
+    /**
+     * Estimate fraction of area light visible from the given collision
+     * point.  The first few shadow rays are traced towards well separated
+     * points on the light; if these all agree the point is taken to be
+     * fully lit or fully shadowed, otherwise further samples are traced.
+     * 
+     * @param light area light source
+     * @param location collision point
+     * @param filter array in which to return the mean transmittance of
+     * the shadow rays which reach the light
+     * @return fraction of light visible
+     */
+    private double getVisibility(AreaLight light, Vector3D location, double[] filter) {
+        
+        Vector3D shadowOrigin = getNormalRayRef().origin;
+        double[] shift = scene.getSampler().get2D();
+        
+        int nVisible = 0;
+        int n;
+        for (n=0; n<light.getMaxShadowSamples(); n++) {
+            if (n == light.getMinShadowSamples()
+                    && (nVisible == 0 || nVisible == n))
+                break;
             
-            if (!occluded)
-                visibleLights.add(light);
+            double u = HaltonSampler.radicalInverse(n, 2) + shift[0];
+            double v = HaltonSampler.radicalInverse(n, 3) + shift[1];
+            Vector3D dir = light.getSamplePoint(location,
+                    u - Math.floor(u), v - Math.floor(v))
+                    .subtract(shadowOrigin);
+            double distance = dir.getNorm();
+            Colour sampleFilter = distance == 0.0
+                    ? Colour.white
+                    : getShadowTransmittance(new Ray(shadowOrigin, dir.normalize()),
+                            distance);
+            if (sampleFilter != null) {
+                nVisible += 1;
+                filter[0] += sampleFilter.getR();
+                filter[1] += sampleFilter.getG();
+                filter[2] += sampleFilter.getB();
+            }
         }
         
-        return visibleLights;
+        if (nVisible > 0) {
+            for (int i=0; i<3; i++)
+                filter[i] /= nVisible;
+        }
+        
+        return nVisible/(double)n;
+    }
+    
+    /**
+     * Determine fraction of light passing along shadow ray.  Objects
+     * beyond the light do not cast shadows.
+     * 
+     * @param ray shadow ray
+     * @param distance distance to the light along the ray
+     * @return transmittance, or null if ray is blocked
+     */
+    private Colour getShadowTransmittance(Ray ray, double distance) {
+        return scene.getTransmittance(ray, distance);
+    }
+    
+    /**
+     * Determine whether any of the textures applied to the object lets
+     * light from the light sources through.
+     * 
+     * @return true if object is transparent
+     */
+    public boolean isTransparent() {
+        for (Texture texture : textures) {
+            if (texture.isTransparent())
+                return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Obtain filter applied to light passing through this object, at the
+     * point of the most recent collision.  Filters which are the same at
+     * every point on the object are computed once and cached, so that
+     * shadow rays need not re-evaluate the object's textures.
+     * 
+     * @return transmittance, or null if the object is opaque
+     */
+    public Colour getTransmittance() {
+        if (transmittanceCached)
+            return transmittance;
+        
+        Colour result = computeTransmittance();
+        
+        boolean uniform = true;
+        for (Texture texture : getTextures())
+            uniform = uniform && texture.isTransmittanceUniform();
+        if (uniform) {
+            transmittance = result;
+            transmittanceCached = true;
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Combine filters of the textures applied to the object at the point
+     * of the most recent collision, without caching.
+     * 
+     * @return transmittance, or null if the object is opaque
+     */
+    protected Colour computeTransmittance() {
+        Colour result = null;
+        for (Texture texture : getTextures()) {
+            Colour textureTransmittance = texture.getTransmittance(this);
+            if (textureTransmittance != null)
+                result = result == null
+                        ? textureTransmittance
+                        : result.add(textureTransmittance);
+        }
+        
+        return result;
     }
     
     /**
@@ -310,4 +731,43 @@ public abstract class SceneObject {
     }
     
     public abstract List<Vector3D[]> getWireFrameObjectFrame();
+    
+    /**
+     * Obtain axis-aligned bounding box of this object in the scene frame.
+     * 
+     * @return array containing minimum and maximum corners, or null if the
+     * object is unbounded.
+     */
+    public Vector3D[] getBounds() {
+        Vector3D[] objectBounds = getBoundsObjectFrame();
+        if (objectBounds == null)
+            return null;
+        
+        double[] min = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+            Double.POSITIVE_INFINITY};
+        double[] max = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+            Double.NEGATIVE_INFINITY};
+        
+        for (int corner = 0; corner < 8; corner++) {
+            Vector3D vertex = objectToSceneVector(new Vector3D(
+                    (corner & 1) == 0 ? objectBounds[0].getX() : objectBounds[1].getX(),
+                    (corner & 2) == 0 ? objectBounds[0].getY() : objectBounds[1].getY(),
+                    (corner & 4) == 0 ? objectBounds[0].getZ() : objectBounds[1].getZ()));
+            double[] v = vertex.toArray();
+            for (int i = 0; i < 3; i++) {
+                min[i] = Math.min(min[i], v[i]);
+                max[i] = Math.max(max[i], v[i]);
+            }
+        }
+        
+        return new Vector3D[] {new Vector3D(min), new Vector3D(max)};
+    }
+    
+    /**
+     * Obtain axis-aligned bounding box of this object in its own frame.
+     * 
+     * @return array containing minimum and maximum corners, or null if the
+     * object is unbounded.
+     */
+    public abstract Vector3D[] getBoundsObjectFrame();
 }
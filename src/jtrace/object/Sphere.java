@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.List;
 import jtrace.Ray;
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import org.apache.commons.math3.util.MathArrays;
 
 /**
  * Basic sphere object.
@@ -41,12 +42,38 @@ public class Sphere extends SceneObject {
 
     @Override
     public double getFirstCollisionObjectFrame(Ray ray) {
+        double alpha = intersect(ray.origin.getX(), ray.origin.getY(), ray.origin.getZ(),
+                ray.direction.getX(), ray.direction.getY(), ray.direction.getZ());
         
-        Vector3D displacement = ray.getOrigin();
+        if (alpha < Double.POSITIVE_INFINITY)
+            recordCollision(ray, alpha);
         
-        double a = ray.getDirection().getNormSq();
-        double b = 2.0*ray.getDirection().dotProduct(displacement);
-        double c = displacement.getNormSq() - 1.0;
+        return alpha;
+    }
+
+    @Override
+    public double getFirstCollisionObjectFrame(double ox, double oy, double oz,
+            double dx, double dy, double dz) {
+        double alpha = intersect(ox, oy, oz, dx, dy, dz);
+        
+        if (alpha < Double.POSITIVE_INFINITY)
+            recordCollision(new Ray(new Vector3D(ox, oy, oz), new Vector3D(dx, dy, dz)), alpha);
+        
+        return alpha;
+    }
+    
+    /**
+     * Find first intersection of ray with unit sphere.  The arithmetic
+     * matches that of the equivalent Vector3D operations exactly.
+     * 
+     * @return distance along ray, or infinity if there is none.
+     */
+    private double intersect(double ox, double oy, double oz,
+            double dx, double dy, double dz) {
+        
+        double a = dx*dx + dy*dy + dz*dz;
+        double b = 2.0*MathArrays.linearCombination(dx, ox, dy, oy, dz, oz);
+        double c = (ox*ox + oy*oy + oz*oz) - 1.0;
         
         // Check for miss:
         if (b*b < 4.0*a*c)
@@ -64,19 +91,20 @@ public class Sphere extends SceneObject {
             return Double.POSITIVE_INFINITY;
         
         // Find closest intersection in front of us
-        double alpha;
         if (alphaMinus < alphaPlus && alphaMinus>0)
-            alpha = alphaMinus;
+            return alphaMinus;
         else
-            alpha = alphaPlus;
-
-        // Record incident and normal rays
+            return alphaPlus;
+    }
+    
+    /**
+     * Record incident and normal rays.
+     */
+    private void recordCollision(Ray ray, double alpha) {
         incidentRay = ray;
         Vector3D collisionLocation = ray.direction.scalarMultiply(alpha).add(ray.origin);
         Vector3D normal = collisionLocation.normalize();
         normalRay = new Ray(collisionLocation, normal);
-        
-        return alpha;
     }
 
     @Override
@@ -120,4 +148,9 @@ public class Sphere extends SceneObject {
         return edgeList;
     }
     
+
+    @Override
+    public Vector3D[] getBoundsObjectFrame() {
+        return new Vector3D[] {new Vector3D(-1, -1, -1), new Vector3D(1, 1, 1)};
+    }
 }
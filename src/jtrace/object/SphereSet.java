@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.object;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import jtrace.Colour;
+import jtrace.NotContent;
+import jtrace.Ray;
+import jtrace.accel.PrimitiveBVH;
+import jtrace.io.GeometryStore;
+import jtrace.texture.Texture;
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+/**
+ * Large set of spheres stored compactly as a single object.  Centres,
+ * radii and material indices are held in flat primitive buffers, costing
+ * around 20 bytes per sphere plus the hierarchy used to intersect them,
+ * in place of the hundreds of bytes needed by an individual Sphere.
+ * 
+ * Spheres are reordered to match the leaves of their bounding volume
+ * hierarchy, so that each leaf covers a contiguous range of the arrays
+ * and is intersected by a tight, allocation-free loop.  Each sphere may
+ * select one of the set's materials; spheres without a material are
+ * shaded using the textures of the set itself.
+ * 
+ * Sets can be copied into a GeometryStore with store() and recreated from
+ * it, so that very large sets may be mapped from a file rather than
+ * occupying the Java heap.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class SphereSet extends SceneObject {
+    
+    /**
+     * Maximum number of spheres in each leaf of the hierarchy.
+     */
+    static final int LEAF_SIZE = 8;
+    
+    /**
+     * Sphere centres (x, y, z) and radii, in hierarchy order.
+     */
+    final FloatBuffer centres, radii;
+    
+    /**
+     * Index into materials of each sphere, or -1 for none.  May be null.
+     */
+    final IntBuffer materialIndices;
+    
+    final int nSpheres;
+    
+    private final List<Texture> materials;
+    
+    @NotContent PrimitiveBVH bvh;
+    
+    /**
+     * Sphere hit by most recent collision, or -1 if none.
+     */
+    @NotContent private int hitSphere;
+    
+    /**
+     * Collision details including the sphere hit.
+     */
+    static class SphereSetCollision extends Collision {
+        final int hitSphere;
+        
+        SphereSetCollision(Ray incidentRay, Ray normalRay, double u, double v,
+                int hitSphere) {
+            super(incidentRay, normalRay, u, v);
+            this.hitSphere = hitSphere;
+        }
+    }
+    
+    /**
+     * Create sphere set.  The spheres are stored in a different order to
+     * that of the given arrays.
+     * 
+     * @param centres sphere centres (x, y, z)
+     * @param radii sphere radii
+     * @param materialIndices index of each sphere's material (as returned
+     * by addMaterial()) or -1 for none.  May be null.
+     */
+    public SphereSet(float[] centres, float[] radii, int[] materialIndices) {
+        super();
+        
+        nSpheres = radii.length;
+        materials = new ArrayList<>();
+        hitSphere = -1;
+        
+        double[] bounds = new double[6*nSpheres];
+        for (int i = 0; i < nSpheres; i++) {
+            for (int a = 0; a < 3; a++) {
+                bounds[6*i + a] = (double)centres[3*i + a] - radii[i];
+                bounds[6*i + 3 + a] = (double)centres[3*i + a] + radii[i];
+            }
+        }
+        bvh = new PrimitiveBVH(bounds, nSpheres, LEAF_SIZE);
+        
+        // Store spheres in hierarchy order:
+        IntBuffer order = bvh.getPrimitives();
+        this.centres = FloatBuffer.allocate(3*nSpheres);
+        this.radii = FloatBuffer.allocate(nSpheres);
+        this.materialIndices = materialIndices == null ? null : IntBuffer.allocate(nSpheres);
+        for (int i = 0; i < nSpheres; i++) {
+            int j = order.get(i);
+            this.centres.put(3*i, centres[3*j]);
+            this.centres.put(3*i + 1, centres[3*j + 1]);
+            this.centres.put(3*i + 2, centres[3*j + 2]);
+            this.radii.put(i, radii[j]);
+            if (materialIndices != null)
+                this.materialIndices.put(i, materialIndices[j]);
+        }
+    }
+    
+    /**
+     * Recreate sphere set previously written to a store with store().  The
+     * set uses the store's buffers directly.  Materials are not stored and
+     * must be added again, in the same order.
+     * 
+     * @param store geometry store
+     * @param name name under which set was stored
+     */
+    public SphereSet(GeometryStore store, String name) {
+        super();
+        
+        centres = store.getFloats(name + ".centres");
+        radii = store.getFloats(name + ".radii");
+        materialIndices = store.getIntsIfPresent(name + ".materialIndices");
+        nSpheres = radii.limit();
+        materials = new ArrayList<>();
+        hitSphere = -1;
+        
+        bvh = new PrimitiveBVH(store, name + ".bvh");
+    }
+    
+    /**
+     * Copy spheres and hierarchy into store.  Materials, transformations
+     * and textures are not stored.
+     * 
+     * @param store geometry store
+     * @param name name under which to store set
+     */
+    public void store(GeometryStore store, String name) {
+        store.putFloats(name + ".centres", centres);
+        store.putFloats(name + ".radii", radii);
+        if (materialIndices != null)
+            store.putInts(name + ".materialIndices", materialIndices);
+        bvh.store(store, name + ".bvh");
+    }
+    
+    /**
+     * Add material which spheres may refer to by index.
+     * 
+     * @param material texture used to shade spheres
+     * @return index of material
+     */
+    public int addMaterial(Texture material) {
+        materials.add(material);
+        
+        if (getScene() != null)
+            getScene().objectChanged(this, getBounds());
+        
+        return materials.size() - 1;
+    }
+    
+    public int getSphereCount() {
+        return nSpheres;
+    }
+    
+    public PrimitiveBVH getBVH() {
+        return bvh;
+    }
+
+    @Override
+    public double getFirstCollisionObjectFrame(Ray ray) {
+        if (nSpheres == 0)
+            return Double.POSITIVE_INFINITY;
+        
+        double ox = ray.origin.getX(), oy = ray.origin.getY(), oz = ray.origin.getZ();
+        double dx = ray.direction.getX(), dy = ray.direction.getY(), dz = ray.direction.getZ();
+        double invA = 1.0/(dx*dx + dy*dy + dz*dz);
+        
+        double ix = 1.0/(dx == 0.0 ? Double.MIN_NORMAL : dx);
+        double iy = 1.0/(dy == 0.0 ? Double.MIN_NORMAL : dy);
+        double iz = 1.0/(dz == 0.0 ? Double.MIN_NORMAL : dz);
+        
+        DoubleBuffer nodeBounds = bvh.getNodeBounds();
+        IntBuffer nodeFirst = bvh.getNodeFirst();
+        IntBuffer nodeSize = bvh.getNodeSize();
+        
+        double tBest = Double.POSITIVE_INFINITY;
+        int hit = -1;
+        
+        int[] stack = new int[bvh.getDepth() + 1];
+        int top = 0;
+        if (PrimitiveBVH.intersectNode(nodeBounds, 0, ox, oy, oz,
+                ix, iy, iz, tBest) < Double.POSITIVE_INFINITY)
+            stack[top++] = 0;
+        
+        while (top > 0) {
+            int node = stack[--top];
+            
+            int first = nodeFirst.get(node), size = nodeSize.get(node);
+            if (size > 0) {
+                for (int i = first; i < first + size; i++) {
+                    // Solve |o + t*d - centre|^2 = r^2 for t:
+                    double cx = centres.get(3*i) - ox;
+                    double cy = centres.get(3*i + 1) - oy;
+                    double cz = centres.get(3*i + 2) - oz;
+                    double r = radii.get(i);
+                    
+                    double b = cx*dx + cy*dy + cz*dz;
+                    double c = cx*cx + cy*cy + cz*cz - r*r;
+                    double disc = b*b - c/invA;
+                    if (disc < 0.0)
+                        continue;
+                    
+                    double sqrtDisc = Math.sqrt(disc);
+                    double t = (b - sqrtDisc)*invA;
+                    if (!(t > 0.0))
+                        t = (b + sqrtDisc)*invA;
+                    
+                    if (t > 0.0 && t < tBest) {
+                        tBest = t;
+                        hit = i;
+                    }
+                }
+            } else {
+                int left = first;
+                double tLeft = PrimitiveBVH.intersectNode(nodeBounds, left,
+                        ox, oy, oz, ix, iy, iz, tBest);
+                double tRight = PrimitiveBVH.intersectNode(nodeBounds, left + 1,
+                        ox, oy, oz, ix, iy, iz, tBest);
+                
+                // Visit nearer child first:
+                if (tLeft <= tRight) {
+                    if (tRight < Double.POSITIVE_INFINITY)
+                        stack[top++] = left + 1;
+                    if (tLeft < Double.POSITIVE_INFINITY)
+                        stack[top++] = left;
+                } else {
+                    if (tLeft < Double.POSITIVE_INFINITY)
+                        stack[top++] = left;
+                    stack[top++] = left + 1;
+                }
+            }
+        }
+        
+        if (hit < 0)
+            return Double.POSITIVE_INFINITY;
+        
+        recordCollision(ray, tBest, hit);
+        
+        return tBest;
+    }
+    
+    /**
+     * Record incident ray, normal and texture coordinates of a collision.
+     * Texture coordinates are the longitude and colatitude of the point
+     * hit, scaled to [0,1].
+     * 
+     * @param ray incident ray
+     * @param t distance along ray
+     * @param sphere sphere hit
+     */
+    private void recordCollision(Ray ray, double t, int sphere) {
+        Vector3D location = ray.origin.add(t, ray.direction);
+        Vector3D normal = new Vector3D(
+                location.getX() - centres.get(3*sphere),
+                location.getY() - centres.get(3*sphere + 1),
+                location.getZ() - centres.get(3*sphere + 2)).normalize();
+        
+        u = 0.5 + Math.atan2(normal.getY(), normal.getX())/(2.0*Math.PI);
+        v = Math.acos(Math.max(-1.0, Math.min(1.0, normal.getZ())))/Math.PI;
+        
+        hitSphere = sphere;
+        incidentRay = ray;
+        normalRay = new Ray(location, normal);
+    }
+
+    @Override
+    public Collision saveCollision() {
+        return new SphereSetCollision(incidentRay, normalRay, u, v, hitSphere);
+    }
+
+    @Override
+    public void restoreCollision(Collision collision) {
+        super.restoreCollision(collision);
+        hitSphere = ((SphereSetCollision)collision).hitSphere;
+    }
+    
+    /**
+     * Retrieve textures used to shade the most recent collision: the
+     * material of the sphere hit if it has one, otherwise the textures of
+     * the set.  If no collision has occurred, the textures of the set
+     * are returned along with every material.
+     * 
+     * @return list of textures
+     */
+    @Override
+    public List<Texture> getTextures() {
+        if (hitSphere < 0) {
+            List<Texture> all = new ArrayList<>(super.getTextures());
+            all.addAll(materials);
+            return all;
+        }
+        
+        if (materialIndices != null && materialIndices.get(hitSphere) >= 0)
+            return Collections.singletonList(materials.get(materialIndices.get(hitSphere)));
+        
+        return super.getTextures();
+    }
+
+    @Override
+    public boolean isTransparent() {
+        if (super.isTransparent())
+            return true;
+        
+        for (Texture material : materials) {
+            if (material.isTransparent())
+                return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Transmittance depends on the material of the sphere hit, so is only
+     * cached when the set has no materials.
+     * 
+     * @return transmittance, or null if the sphere hit is opaque
+     */
+    @Override
+    public Colour getTransmittance() {
+        if (materials.isEmpty())
+            return super.getTransmittance();
+        
+        return computeTransmittance();
+    }
+
+    @Override
+    public double getU() {
+        return u;
+    }
+
+    @Override
+    public double getV() {
+        return v;
+    }
+
+    /**
+     * Spheres are too numerous to draw individually, so the wire frame
+     * is the bounding box of the set.
+     */
+    @Override
+    public List<Vector3D[]> getWireFrameObjectFrame() {
+        List<Vector3D[]> edges = new ArrayList<>();
+        Vector3D[] bounds = getBoundsObjectFrame();
+        if (bounds == null)
+            return edges;
+        
+        double[][] b = {bounds[0].toArray(), bounds[1].toArray()};
+        for (int corner = 0; corner < 8; corner++) {
+            for (int a = 0; a < 3; a++) {
+                if ((corner & (1 << a)) != 0)
+                    continue;
+                
+                int other = corner | (1 << a);
+                edges.add(new Vector3D[] {
+                    new Vector3D(b[corner & 1][0], b[(corner >> 1) & 1][1], b[(corner >> 2) & 1][2]),
+                    new Vector3D(b[other & 1][0], b[(other >> 1) & 1][1], b[(other >> 2) & 1][2])});
+            }
+        }
+        
+        return edges;
+    }
+
+    @Override
+    public Vector3D[] getBoundsObjectFrame() {
+        if (nSpheres == 0)
+            return null;
+        
+        DoubleBuffer b = bvh.getNodeBounds();
+        return new Vector3D[] {new Vector3D(b.get(0), b.get(1), b.get(2)),
+            new Vector3D(b.get(3), b.get(4), b.get(5))};
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.object;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import jtrace.NotContent;
+import jtrace.Ray;
+import jtrace.accel.PrimitiveBVH;
+import jtrace.io.GeometryStore;
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+/**
+ * Indexed triangle mesh.  Vertex positions, normals and texture
+ * coordinates are stored in flat buffers, and each triangle references
+ * three entries of each.  Triangles without normals are shaded using
+ * their geometric normal, and those without texture coordinates have
+ * u=v=0.  Rays are intersected using a per-mesh bounding volume
+ * hierarchy and the watertight ray-triangle test of Woop, Benthin and
+ * Wald (JCGT 2013), so rays cannot slip between adjacent triangles.
+ * 
+ * Meshes can be copied into a GeometryStore with store() and recreated
+ * from it, avoiding both reparsing and rebuilding the hierarchy.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class TriangleMesh extends SceneObject {
+    
+    /**
+     * Vertex positions (x, y, z), normals (x, y, z) and texture
+     * coordinates (u, v).
+     */
+    final FloatBuffer positions, normals, uvs;
+    
+    /**
+     * Position, normal and texture coordinate indices of the three
+     * vertices of each triangle.  Normal and texture coordinate indices
+     * may be null, and individual entries -1, where these are absent.
+     */
+    final IntBuffer triangles, triangleNormals, triangleUVs;
+    
+    final int nTriangles;
+    
+    @NotContent PrimitiveBVH bvh;
+    
+    /**
+     * Create mesh.
+     * 
+     * @param positions vertex positions
+     * @param normals vertex normals, or null
+     * @param uvs vertex texture coordinates, or null
+     * @param triangles position indices of triangle vertices
+     * @param triangleNormals normal indices of triangle vertices, or null
+     * @param triangleUVs texture coordinate indices of triangle vertices,
+     * or null
+     */
+    public TriangleMesh(float[] positions, float[] normals, float[] uvs,
+            int[] triangles, int[] triangleNormals, int[] triangleUVs) {
+        super();
+        
+        this.positions = FloatBuffer.wrap(positions);
+        this.normals = wrap(normals);
+        this.uvs = wrap(uvs);
+        this.triangles = IntBuffer.wrap(triangles);
+        this.triangleNormals = normals == null ? null : wrap(triangleNormals);
+        this.triangleUVs = uvs == null ? null : wrap(triangleUVs);
+        this.nTriangles = triangles.length/3;
+        
+        buildBVH();
+    }
+    
+    /**
+     * Recreate mesh previously written to a store with store().  The mesh
+     * uses the store's buffers directly.
+     * 
+     * @param store geometry store
+     * @param name name under which mesh was stored
+     */
+    public TriangleMesh(GeometryStore store, String name) {
+        super();
+        
+        positions = store.getFloats(name + ".positions");
+        normals = store.getFloatsIfPresent(name + ".normals");
+        uvs = store.getFloatsIfPresent(name + ".uvs");
+        triangles = store.getInts(name + ".triangles");
+        triangleNormals = normals == null ? null
+                : store.getIntsIfPresent(name + ".triangleNormals");
+        triangleUVs = uvs == null ? null
+                : store.getIntsIfPresent(name + ".triangleUVs");
+        nTriangles = triangles.limit()/3;
+        
+        bvh = new PrimitiveBVH(store, name + ".bvh");
+    }
+    
+    private static FloatBuffer wrap(float[] data) {
+        return data == null ? null : FloatBuffer.wrap(data);
+    }
+    
+    private static IntBuffer wrap(int[] data) {
+        return data == null ? null : IntBuffer.wrap(data);
+    }
+    
+    /**
+     * Copy mesh geometry and hierarchy into store.  Transformations and
+     * textures are not stored.
+     * 
+     * @param store geometry store
+     * @param name name under which to store mesh
+     */
+    public void store(GeometryStore store, String name) {
+        store.putFloats(name + ".positions", positions);
+        if (normals != null)
+            store.putFloats(name + ".normals", normals);
+        if (uvs != null)
+            store.putFloats(name + ".uvs", uvs);
+        store.putInts(name + ".triangles", triangles);
+        if (triangleNormals != null)
+            store.putInts(name + ".triangleNormals", triangleNormals);
+        if (triangleUVs != null)
+            store.putInts(name + ".triangleUVs", triangleUVs);
+        bvh.store(store, name + ".bvh");
+    }
+    
+    /**
+     * Build hierarchy over the triangles.
+     */
+    private void buildBVH() {
+        bvh = new PrimitiveBVH(getTriangleBounds(), nTriangles);
+    }
+    
+    /**
+     * @return bounds of each triangle, in the layout used by PrimitiveBVH.
+     */
+    double[] getTriangleBounds() {
+        double[] bounds = new double[6*nTriangles];
+        for (int t = 0; t < nTriangles; t++) {
+            for (int a = 0; a < 3; a++) {
+                double p0 = positions.get(3*triangles.get(3*t) + a);
+                double p1 = positions.get(3*triangles.get(3*t + 1) + a);
+                double p2 = positions.get(3*triangles.get(3*t + 2) + a);
+                bounds[6*t + a] = Math.min(p0, Math.min(p1, p2));
+                bounds[6*t + 3 + a] = Math.max(p0, Math.max(p1, p2));
+            }
+        }
+        
+        return bounds;
+    }
+    
+    public int getTriangleCount() {
+        return nTriangles;
+    }
+    
+    public PrimitiveBVH getBVH() {
+        return bvh;
+    }
+
+    @Override
+    public double getFirstCollisionObjectFrame(Ray ray) {
+        if (nTriangles == 0)
+            return Double.POSITIVE_INFINITY;
+        
+        double[] o = ray.origin.toArray();
+        double[] d = ray.direction.toArray();
+        
+        // Permute axes so that the largest direction component is z:
+        int kz = 0;
+        for (int a = 1; a < 3; a++) {
+            if (Math.abs(d[a]) > Math.abs(d[kz]))
+                kz = a;
+        }
+        int kx = (kz + 1)%3, ky = (kx + 1)%3;
+        if (d[kz] < 0.0) {
+            int tmp = kx;
+            kx = ky;
+            ky = tmp;
+        }
+        
+        // Shear constants:
+        double sx = d[kx]/d[kz], sy = d[ky]/d[kz], sz = 1.0/d[kz];
+        
+        double ix = 1.0/(d[0] == 0.0 ? Double.MIN_NORMAL : d[0]);
+        double iy = 1.0/(d[1] == 0.0 ? Double.MIN_NORMAL : d[1]);
+        double iz = 1.0/(d[2] == 0.0 ? Double.MIN_NORMAL : d[2]);
+        
+        DoubleBuffer nodeBounds = bvh.getNodeBounds();
+        IntBuffer nodeFirst = bvh.getNodeFirst();
+        IntBuffer nodeSize = bvh.getNodeSize();
+        IntBuffer prims = bvh.getPrimitives();
+        
+        double tBest = Double.POSITIVE_INFINITY;
+        int hitTriangle = -1;
+        double hitB0 = 0, hitB1 = 0, hitB2 = 0;
+        
+        int[] stack = new int[bvh.getDepth() + 1];
+        int top = 0;
+        if (PrimitiveBVH.intersectNode(nodeBounds, 0, o[0], o[1], o[2],
+                ix, iy, iz, tBest) < Double.POSITIVE_INFINITY)
+            stack[top++] = 0;
+        
+        while (top > 0) {
+            int node = stack[--top];
+            
+            int first = nodeFirst.get(node), size = nodeSize.get(node);
+            if (size > 0) {
+                for (int i = first; i < first + size; i++) {
+                    int t = prims.get(i);
+                    int a = 3*triangles.get(3*t), b = 3*triangles.get(3*t + 1),
+                            c = 3*triangles.get(3*t + 2);
+                    
+                    // Vertices relative to ray origin:
+                    double ax = positions.get(a + kx) - o[kx], ay = positions.get(a + ky) - o[ky],
+                            az = positions.get(a + kz) - o[kz];
+                    double bx = positions.get(b + kx) - o[kx], by = positions.get(b + ky) - o[ky],
+                            bz = positions.get(b + kz) - o[kz];
+                    double cx = positions.get(c + kx) - o[kx], cy = positions.get(c + ky) - o[ky],
+                            cz = positions.get(c + kz) - o[kz];
+                    
+                    // Shear and scale so that ray points along +z:
+                    ax -= sx*az;
+                    ay -= sy*az;
+                    bx -= sx*bz;
+                    by -= sy*bz;
+                    cx -= sx*cz;
+                    cy -= sy*cz;
+                    
+                    // Scaled barycentric coordinates:
+                    double u = cx*by - cy*bx;
+                    double v = ax*cy - ay*cx;
+                    double w = bx*ay - by*ax;
+                    
+                    if ((u < 0.0 || v < 0.0 || w < 0.0) && (u > 0.0 || v > 0.0 || w > 0.0))
+                        continue;
+                    
+                    double det = u + v + w;
+                    if (det == 0.0)
+                        continue;
+                    
+                    double tScaled = u*sz*az + v*sz*bz + w*sz*cz;
+                    double tHit = tScaled/det;
+                    if (!(tHit > 0.0) || tHit >= tBest)
+                        continue;
+                    
+                    tBest = tHit;
+                    hitTriangle = t;
+                    hitB0 = u/det;
+                    hitB1 = v/det;
+                    hitB2 = w/det;
+                }
+            } else {
+                int left = first;
+                double tLeft = PrimitiveBVH.intersectNode(nodeBounds, left,
+                        o[0], o[1], o[2], ix, iy, iz, tBest);
+                double tRight = PrimitiveBVH.intersectNode(nodeBounds, left + 1,
+                        o[0], o[1], o[2], ix, iy, iz, tBest);
+                
+                // Visit nearer child first:
+                if (tLeft <= tRight) {
+                    if (tRight < Double.POSITIVE_INFINITY)
+                        stack[top++] = left + 1;
+                    if (tLeft < Double.POSITIVE_INFINITY)
+                        stack[top++] = left;
+                } else {
+                    if (tLeft < Double.POSITIVE_INFINITY)
+                        stack[top++] = left;
+                    stack[top++] = left + 1;
+                }
+            }
+        }
+        
+        if (hitTriangle < 0)
+            return Double.POSITIVE_INFINITY;
+        
+        recordCollision(ray, tBest, hitTriangle, hitB0, hitB1, hitB2);
+        
+        return tBest;
+    }
+    
+    /**
+     * Record incident ray, interpolated normal and texture coordinates of
+     * a collision.
+     * 
+     * @param ray incident ray
+     * @param t distance along ray
+     * @param tri triangle hit
+     * @param b0 barycentric weight of first vertex
+     * @param b1 barycentric weight of second vertex
+     * @param b2 barycentric weight of third vertex
+     */
+    private void recordCollision(Ray ray, double t, int tri,
+            double b0, double b1, double b2) {
+        
+        Vector3D normal;
+        if (triangleNormals != null && triangleNormals.get(3*tri) >= 0) {
+            int n0 = 3*triangleNormals.get(3*tri), n1 = 3*triangleNormals.get(3*tri + 1),
+                    n2 = 3*triangleNormals.get(3*tri + 2);
+            normal = new Vector3D(
+                    b0*normals.get(n0) + b1*normals.get(n1) + b2*normals.get(n2),
+                    b0*normals.get(n0 + 1) + b1*normals.get(n1 + 1) + b2*normals.get(n2 + 1),
+                    b0*normals.get(n0 + 2) + b1*normals.get(n1 + 2) + b2*normals.get(n2 + 2));
+        } else {
+            int p0 = 3*triangles.get(3*tri), p1 = 3*triangles.get(3*tri + 1),
+                    p2 = 3*triangles.get(3*tri + 2);
+            Vector3D e1 = new Vector3D(positions.get(p1) - positions.get(p0),
+                    positions.get(p1 + 1) - positions.get(p0 + 1),
+                    positions.get(p1 + 2) - positions.get(p0 + 2));
+            Vector3D e2 = new Vector3D(positions.get(p2) - positions.get(p0),
+                    positions.get(p2 + 1) - positions.get(p0 + 1),
+                    positions.get(p2 + 2) - positions.get(p0 + 2));
+            normal = e1.crossProduct(e2);
+        }
+        
+        if (triangleUVs != null && triangleUVs.get(3*tri) >= 0) {
+            int t0 = 2*triangleUVs.get(3*tri), t1 = 2*triangleUVs.get(3*tri + 1),
+                    t2 = 2*triangleUVs.get(3*tri + 2);
+            u = b0*uvs.get(t0) + b1*uvs.get(t1) + b2*uvs.get(t2);
+            v = b0*uvs.get(t0 + 1) + b1*uvs.get(t1 + 1) + b2*uvs.get(t2 + 1);
+        } else {
+            u = 0.0;
+            v = 0.0;
+        }
+        
+        incidentRay = ray;
+        normalRay = new Ray(ray.origin.add(t, ray.direction), normal.normalize());
+    }
+
+    @Override
+    public double getU() {
+        return u;
+    }
+
+    @Override
+    public double getV() {
+        return v;
+    }
+
+    @Override
+    public List<Vector3D[]> getWireFrameObjectFrame() {
+        List<Vector3D[]> edges = new ArrayList<>();
+        for (int t = 0; t < nTriangles; t++) {
+            for (int e = 0; e < 3; e++) {
+                int p = 3*triangles.get(3*t + e), q = 3*triangles.get(3*t + (e + 1)%3);
+                edges.add(new Vector3D[] {
+                    new Vector3D(positions.get(p), positions.get(p + 1), positions.get(p + 2)),
+                    new Vector3D(positions.get(q), positions.get(q + 1), positions.get(q + 2))});
+            }
+        }
+        
+        return edges;
+    }
+
+    @Override
+    public Vector3D[] getBoundsObjectFrame() {
+        if (nTriangles == 0)
+            return null;
+        
+        DoubleBuffer b = bvh.getNodeBounds();
+        return new Vector3D[] {new Vector3D(b.get(0), b.get(1), b.get(2)),
+            new Vector3D(b.get(3), b.get(4), b.get(5))};
+    }
+}
@@ -51,5 +51,15 @@ public class Rotation extends Transformation {
     public Vector3D applyInverse(Vector3D vec) {
         return rotation.applyTo(vec);
     }
+
+    @Override
+    public Vector3D applyToDirection(Vector3D vec) {
+        return apply(vec);
+    }
+
+    @Override
+    public Vector3D applyInverseToDirection(Vector3D vec) {
+        return applyInverse(vec);
+    }
     
 }
@@ -60,6 +60,10 @@ public class Scale extends Transformation {
         this.scaleVec = new Vector3D(scale, scale, scale);
     }
 
+    public Vector3D getScaleVec() {
+        return scaleVec;
+    }
+    
     @Override
     public Vector3D apply(Vector3D vec) {
         return new Vector3D(
@@ -75,5 +79,20 @@ public class Scale extends Transformation {
                 vec.getY()/scaleVec.getY(),
                 vec.getZ()/scaleVec.getZ());
     }
+
+    @Override
+    public Vector3D applyToDirection(Vector3D vec) {
+        return apply(vec);
+    }
+
+    @Override
+    public Vector3D applyInverseToDirection(Vector3D vec) {
+        return applyInverse(vec);
+    }
+
+    @Override
+    public Vector3D applyToNormal(Vector3D vec) {
+        return applyInverse(vec);
+    }
     
 }
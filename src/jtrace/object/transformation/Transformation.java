@@ -42,4 +42,38 @@ public abstract class Transformation {
      */
     public abstract Vector3D applyInverse(Vector3D vec);
     
+    /**
+     * Apply transformation to a direction, which is unaffected by any
+     * translational component of the transformation.
+     * 
+     * @param vec direction to transform
+     * @return transformed direction
+     */
+    public Vector3D applyToDirection(Vector3D vec) {
+        return apply(vec).subtract(apply(Vector3D.ZERO));
+    }
+    
+    /**
+     * Apply inverse transformation to a direction.
+     * 
+     * @param vec direction to transform
+     * @return transformed direction
+     */
+    public Vector3D applyInverseToDirection(Vector3D vec) {
+        return applyInverse(vec).subtract(applyInverse(Vector3D.ZERO));
+    }
+    
+    /**
+     * Apply transformation to a surface normal.  Normals transform with
+     * the inverse transpose of the transformation, which coincides with
+     * applyToDirection() for rotations and translations.  The result is
+     * not normalized.
+     * 
+     * @param vec normal to transform
+     * @return transformed normal
+     */
+    public Vector3D applyToNormal(Vector3D vec) {
+        return applyToDirection(vec);
+    }
+    
 }
@@ -52,6 +52,10 @@ public class Translation extends Transformation {
         this.delta = new Vector3D(deltaX, deltaY, deltaZ);
     }
     
+    public Vector3D getDelta() {
+        return delta;
+    }
+    
     @Override
     public Vector3D apply(Vector3D vec) {
         return vec.add(delta);
@@ -61,5 +65,15 @@ public class Translation extends Transformation {
     public Vector3D applyInverse(Vector3D vec) {
         return vec.subtract(delta);
     }
+
+    @Override
+    public Vector3D applyToDirection(Vector3D vec) {
+        return vec;
+    }
+
+    @Override
+    public Vector3D applyInverseToDirection(Vector3D vec) {
+        return vec;
+    }
     
 }
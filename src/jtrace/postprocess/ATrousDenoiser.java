@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.postprocess;
+
+import java.util.stream.IntStream;
+import jtrace.FrameBuffer;
+
+/**
+ * Edge-avoiding a-trous wavelet denoiser (Dammertz et al., 2010).  The
+ * colour buffer is repeatedly smoothed with a 5x5 B3-spline kernel whose
+ * taps are spaced 2^i pixels apart at iteration i, so that large filter
+ * footprints are obtained cheaply.  Each tap is weighted by the similarity
+ * of its colour, normal, depth and albedo to those of the central pixel,
+ * which prevents the filter from blurring across geometric and texture
+ * edges.  Guide buffers missing from the frame (AOVs which were not
+ * requested) are ignored.  Rows are filtered in parallel.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class ATrousDenoiser extends PostProcess {
+    
+    static final double[] KERNEL = {1.0/16, 1.0/4, 3.0/8, 1.0/4, 1.0/16};
+    
+    int iterations;
+    double sigmaColour, sigmaNormal, sigmaDepth, sigmaAlbedo;
+    
+    /**
+     * Create denoiser.
+     * 
+     * @param iterations number of filter passes
+     * @param sigmaColour colour difference scale
+     * @param sigmaNormal normal difference scale
+     * @param sigmaDepth relative depth difference scale
+     * @param sigmaAlbedo albedo difference scale
+     */
+    public ATrousDenoiser(int iterations, double sigmaColour,
+            double sigmaNormal, double sigmaDepth, double sigmaAlbedo) {
+        this.iterations = iterations;
+        this.sigmaColour = sigmaColour;
+        this.sigmaNormal = sigmaNormal;
+        this.sigmaDepth = sigmaDepth;
+        this.sigmaAlbedo = sigmaAlbedo;
+    }
+    
+    /**
+     * Create denoiser with default parameters.
+     */
+    public ATrousDenoiser() {
+        this(5, 0.5, 0.1, 0.05, 0.1);
+    }
+
+    @Override
+    public FrameBuffer apply(FrameBuffer frame) {
+        
+        FrameBuffer src = frame;
+        double sigmaC = sigmaColour;
+        
+        for (int i=0; i<iterations; i++) {
+            FrameBuffer dest = frame.copyGuides();
+            
+            final FrameBuffer in = src;
+            final int step = 1 << i;
+            final double invSigmaCSq = 1.0/(sigmaC*sigmaC);
+            IntStream.range(0, frame.getHeight()).parallel()
+                    .forEach(y -> filterRow(in, dest, y, step, invSigmaCSq));
+            
+            src = dest;
+            
+            // Finer detail is removed by early passes, so later passes
+            // use a tighter colour tolerance:
+            sigmaC *= 0.5;
+        }
+        
+        return src;
+    }
+    
+    /**
+     * Apply a single filter pass to one row of the frame.
+     * 
+     * @param in input frame
+     * @param out output frame
+     * @param y row index
+     * @param step spacing between filter taps
+     * @param invSigmaCSq inverse square of colour difference scale
+     */
+    private void filterRow(FrameBuffer in, FrameBuffer out, int y, int step,
+            double invSigmaCSq) {
+        
+        int width = in.getWidth();
+        int height = in.getHeight();
+        
+        double[] colour = in.getColourBuffer();
+        double[] normal = in.getNormalBuffer();
+        double[] depth = in.getDepthBuffer();
+        double[] albedo = in.getAlbedoBuffer();
+        double[] result = out.getColourBuffer();
+        
+        double invSigmaNSq = 1.0/(sigmaNormal*sigmaNormal);
+        double invSigmaASq = 1.0/(sigmaAlbedo*sigmaAlbedo);
+        
+        for (int x=0; x<width; x++) {
+            int p = y*width + x;
+            
+            double r = 0.0, g = 0.0, b = 0.0, weightSum = 0.0;
+            
+            for (int j=0; j<5; j++) {
+                int qy = y + (j-2)*step;
+                if (qy < 0 || qy >= height)
+                    continue;
+                
+                for (int i=0; i<5; i++) {
+                    int qx = x + (i-2)*step;
+                    if (qx < 0 || qx >= width)
+                        continue;
+                    
+                    int q = qy*width + qx;
+                    
+                    double distC = sqDist(colour, p, q);
+                    double distN = normal != null ? sqDist(normal, p, q) : 0.0;
+                    double distA = albedo != null ? sqDist(albedo, p, q) : 0.0;
+                    
+                    double distZ;
+                    if (depth == null || depth[p] == depth[q])
+                        distZ = 0.0;
+                    else if (Double.isInfinite(depth[p]) || Double.isInfinite(depth[q]))
+                        continue;
+                    else
+                        distZ = Math.abs(depth[p] - depth[q])
+                                /(sigmaDepth*step*depth[p] + 1e-10);
+                    
+                    double w = KERNEL[i]*KERNEL[j]*Math.exp(
+                            - distC*invSigmaCSq
+                            - distN*invSigmaNSq
+                            - distA*invSigmaASq
+                            - distZ);
+                    
+                    r += w*colour[3*q];
+                    g += w*colour[3*q+1];
+                    b += w*colour[3*q+2];
+                    weightSum += w;
+                }
+            }
+            
+            result[3*p] = r/weightSum;
+            result[3*p+1] = g/weightSum;
+            result[3*p+2] = b/weightSum;
+        }
+    }
+    
+    /**
+     * Squared distance between two elements of an interleaved 3 component
+     * buffer.
+     */
+    private static double sqDist(double[] buf, int p, int q) {
+        double d0 = buf[3*p] - buf[3*q];
+        double d1 = buf[3*p+1] - buf[3*q+1];
+        double d2 = buf[3*p+2] - buf[3*q+2];
+        return d0*d0 + d1*d1 + d2*d2;
+    }
+}
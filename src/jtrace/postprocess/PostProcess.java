@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.postprocess;
+
+import jtrace.FrameBuffer;
+
+/**
+ * Abstract class for post-processing steps applied to rendered frames.
+ * Steps can be chained by passing the output of one to the next, e.g.
+ * {@code step.apply(scene.renderFrame(width, height, depth))}.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public abstract class PostProcess {
+    
+    /**
+     * Apply processing step to frame.
+     * 
+     * @param frame rendered frame
+     * @return processed frame
+     */
+    public abstract FrameBuffer apply(FrameBuffer frame);
+    
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.sampler;
+
+/**
+ * Sampler based on the Halton sequence with Owen scrambling.  Dimension i
+ * of each sample uses the radical inverse in the ith prime base.  The
+ * digits of each radical inverse are permuted using random shifts which
+ * depend on the pixel, dimension and all preceding digits.  Dimensions
+ * beyond the table of primes reuse the bases with independent scrambles.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class HaltonSampler extends Sampler {
+    
+    static final int[] PRIMES = {
+        2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47, 53,
+        59, 61, 67, 71, 73, 79, 83, 89, 97, 101, 103, 107, 109, 113, 127, 131
+    };
+    
+    public HaltonSampler(long seed) {
+        super(seed);
+    }
+    
+    public HaltonSampler() {
+        this(0);
+    }
+
+    @Override
+    public double get1D() {
+        double res = scrambledRadicalInverse(sampleIndex,
+                PRIMES[dimension % PRIMES.length], getDimensionSeed());
+        dimension += 1;
+        return res;
+    }
+
+    @Override
+    public double[] get2D() {
+        return new double[] {get1D(), get1D()};
+    }
+    
+    /**
+     * Radical inverse of integer i in the given base.
+     * 
+     * @param i
+     * @param base
+     * @return digits of i in base, mirrored about the decimal point
+     */
+    public static double radicalInverse(int i, int base) {
+        double inv = 1.0/base, f = inv, res = 0.0;
+        while (i > 0) {
+            res += f*(i % base);
+            i /= base;
+            f *= inv;
+        }
+        
+        return res;
+    }
+    
+    /**
+     * Owen scrambled radical inverse.  Digits are generated until their
+     * contribution is below double precision, so that the scrambling also
+     * randomises the trailing (zero) digits of i.
+     * 
+     * @param i
+     * @param base
+     * @param seed
+     * @return scrambled radical inverse
+     */
+    static double scrambledRadicalInverse(int i, int base, long seed) {
+        double inv = 1.0/base, f = inv, res = 0.0;
+        long prefix = seed;
+        while (f > 1e-16) {
+            int digit = i % base;
+            i /= base;
+            
+            int shift = (int)Long.remainderUnsigned(mix(prefix), base);
+            res += f*((digit + shift) % base);
+            
+            prefix = mix(prefix ^ (digit + 1));
+            f *= inv;
+        }
+        
+        return Math.min(res, Math.nextDown(1.0));
+    }
+}
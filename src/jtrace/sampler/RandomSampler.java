@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.sampler;
+
+import java.util.SplittableRandom;
+import jtrace.NotContent;
+
+/**
+ * Sampler producing independent uniform random samples.  Included as a
+ * reference against which the low-discrepancy samplers can be compared.
+ * The generator is reseeded for every pixel sample, so results remain
+ * reproducible.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class RandomSampler extends Sampler {
+    
+    @NotContent private SplittableRandom random;
+    
+    public RandomSampler(long seed) {
+        super(seed);
+    }
+    
+    public RandomSampler() {
+        this(0);
+    }
+
+    @Override
+    public void startPixelSample(int x, int y, int index) {
+        super.startPixelSample(x, y, index);
+        random = new SplittableRandom(mix(pixelSeed + index));
+    }
+
+    @Override
+    public double get1D() {
+        dimension += 1;
+        return random.nextDouble();
+    }
+
+    @Override
+    public double[] get2D() {
+        dimension += 2;
+        return new double[] {random.nextDouble(), random.nextDouble()};
+    }
+}
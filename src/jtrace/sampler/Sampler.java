@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.sampler;
+
+import jtrace.NotContent;
+
+/**
+ * Abstract class for generators of sample points used by stochastic
+ * parts of the renderer (anti-aliasing, depth of field, light selection,
+ * soft shadows).
+ * 
+ * Each pixel sample is started with startPixelSample(), which seeds the
+ * sampler deterministically from the pixel coordinates and sample index.
+ * Subsequent calls to get1D() and get2D() then return coordinates from
+ * successive dimensions of the sample point.  As long as consumers request
+ * dimensions in a consistent order, the samples obtained for a given pixel
+ * depend only on that pixel, so results are reproducible regardless of
+ * the order in which pixels are rendered.  Samplers hold per-pixel state,
+ * so a sampler must not be shared between concurrent renders.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public abstract class Sampler {
+    
+    /**
+     * Global seed, allowing distinct but reproducible sample sets.
+     */
+    protected final long seed;
+    
+    @NotContent protected int pixelX, pixelY, sampleIndex;
+    @NotContent protected int dimension;
+    @NotContent protected long pixelSeed;
+    
+    public Sampler(long seed) {
+        this.seed = seed;
+    }
+    
+    /**
+     * Begin generation of the given sample within the given pixel.
+     * 
+     * @param x pixel x coordinate
+     * @param y pixel y coordinate
+     * @param index index of sample within pixel
+     */
+    public void startPixelSample(int x, int y, int index) {
+        this.pixelX = x;
+        this.pixelY = y;
+        this.sampleIndex = index;
+        this.dimension = 0;
+        this.pixelSeed = mix(seed ^ mix(((long)x << 32) ^ (y & 0xffffffffL)));
+    }
+    
+    /**
+     * @return next sample coordinate in [0,1)
+     */
+    public abstract double get1D();
+    
+    /**
+     * @return next pair of sample coordinates, each in [0,1)
+     */
+    public abstract double[] get2D();
+    
+    /**
+     * @return seed for the current pixel and dimension
+     */
+    protected long getDimensionSeed() {
+        return mix(pixelSeed + 0x9e3779b97f4a7c15L*(dimension + 1));
+    }
+    
+    /**
+     * 64 bit hash function (the SplitMix64 finaliser).
+     * 
+     * @param v value to hash
+     * @return hashed value
+     */
+    public static long mix(long v) {
+        v = (v ^ (v >>> 30))*0xbf58476d1ce4e5b9L;
+        v = (v ^ (v >>> 27))*0x94d049bb133111ebL;
+        return v ^ (v >>> 31);
+    }
+    
+    /**
+     * Interpret the bits of an integer as a binary fraction in [0,1).
+     * 
+     * @param bits
+     * @return fraction
+     */
+    protected static double toUnit(int bits) {
+        return (bits & 0xffffffffL)*0x1p-32;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.sampler;
+
+/**
+ * Sampler based on the Sobol sequence with Owen scrambling.  Each pair of
+ * dimensions is drawn from the first two dimensions of the Sobol sequence,
+ * with the sample index shuffled and the resulting points scrambled
+ * independently for every pixel and dimension pair (Burley, 2020).  This
+ * retains the excellent stratification of the 2D Sobol points in every
+ * dimension pair while decorrelating different pairs and pixels.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class SobolSampler extends Sampler {
+    
+    public SobolSampler(long seed) {
+        super(seed);
+    }
+    
+    public SobolSampler() {
+        this(0);
+    }
+
+    @Override
+    public double get1D() {
+        long dimSeed = getDimensionSeed();
+        dimension += 1;
+        
+        int index = nestedUniformScramble(sampleIndex, (int)dimSeed);
+        return toUnit(nestedUniformScramble(Integer.reverse(index),
+                (int)(dimSeed >>> 32)));
+    }
+
+    @Override
+    public double[] get2D() {
+        long dimSeed = getDimensionSeed();
+        dimension += 2;
+        
+        int index = nestedUniformScramble(sampleIndex, (int)dimSeed);
+        long scrambleSeed = mix(dimSeed);
+        
+        return new double[] {
+            toUnit(nestedUniformScramble(Integer.reverse(index),
+                    (int)scrambleSeed)),
+            toUnit(nestedUniformScramble(sobolDim2(index),
+                    (int)(scrambleSeed >>> 32)))
+        };
+    }
+    
+    /**
+     * Second dimension of the Sobol sequence, as a 32 bit binary fraction.
+     * 
+     * @param index
+     * @return sample bits
+     */
+    static int sobolDim2(int index) {
+        int res = 0;
+        for (int v = 1 << 31; index != 0; index >>>= 1, v ^= v >>> 1) {
+            if ((index & 1) != 0)
+                res ^= v;
+        }
+        
+        return res;
+    }
+    
+    /**
+     * Hash-based Owen scrambling of the bits of a 32 bit binary fraction.
+     * Each bit is flipped based on a hash of the bits above it.
+     * 
+     * @param bits binary fraction to scramble
+     * @param seed scrambling seed
+     * @return scrambled bits
+     */
+    static int nestedUniformScramble(int bits, int seed) {
+        bits = Integer.reverse(bits);
+        bits ^= bits*0x3d20adea;
+        bits += seed;
+        bits *= (seed >>> 16) | 1;
+        bits ^= bits*0x05526c56;
+        bits ^= bits*0x53a22864;
+        return Integer.reverse(bits);
+    }
+}
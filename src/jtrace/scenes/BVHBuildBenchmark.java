@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.scenes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import jtrace.accel.BVH;
+import jtrace.object.SceneObject;
+import jtrace.object.Sphere;
+import jtrace.object.transformation.Scale;
+import jtrace.object.transformation.Translation;
+
+/**
+ * Measures the time taken to build the object BVH over 10k, 100k and 1M
+ * randomly placed spheres using fork-join pools of increasing size, and
+ * reports the speedup relative to a single thread.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class BVHBuildBenchmark {
+    
+    static final int[] SIZES = {10000, 100000, 1000000};
+    static final int REPEATS = 5;
+    
+    public static void main(String[] args)
+            throws InterruptedException, ExecutionException {
+        
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        System.out.println("Available processors: " + maxThreads);
+        
+        for (int n : SIZES) {
+            List<SceneObject> spheres = randomSpheres(n, new Random(42));
+            
+            double serialTime = 0.0;
+            for (int threads = 1; ; threads = Math.min(2*threads, maxThreads)) {
+                double time = timeBuild(spheres, threads);
+                if (threads == 1)
+                    serialTime = time;
+                
+                System.out.format("%8d spheres, %3d threads: %9.2f ms (speedup %.2f)\n",
+                        n, threads, time, serialTime/time);
+                
+                if (threads == maxThreads)
+                    break;
+            }
+        }
+    }
+    
+    /**
+     * Create spheres of random radius and position within a cube whose
+     * size grows with the number of spheres.
+     */
+    static List<SceneObject> randomSpheres(int n, Random random) {
+        double size = Math.cbrt(n);
+        
+        List<SceneObject> spheres = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Sphere sphere = new Sphere();
+            sphere.addTransformation(new Scale(0.05 + 0.2*random.nextDouble()));
+            sphere.addTransformation(new Translation(
+                    size*random.nextDouble(),
+                    size*random.nextDouble(),
+                    size*random.nextDouble()));
+            spheres.add(sphere);
+        }
+        
+        return spheres;
+    }
+    
+    /**
+     * @return minimum build time in milliseconds over several repeats.
+     */
+    static double timeBuild(List<SceneObject> objects, int threads)
+            throws InterruptedException, ExecutionException {
+        
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        BVH bvh = new BVH();
+        
+        double best = Double.POSITIVE_INFINITY;
+        try {
+            // Warm up before timing:
+            pool.submit(() -> bvh.build(objects)).get();
+            
+            for (int r = 0; r < REPEATS; r++) {
+                long start = System.nanoTime();
+                pool.submit(() -> bvh.build(objects)).get();
+                best = Math.min(best, (System.nanoTime() - start)/1e6);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        
+        return best;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.scenes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import jtrace.Camera;
+import jtrace.Ray;
+import jtrace.accel.AccelerationStructure;
+import jtrace.accel.BVH;
+import jtrace.accel.TypeSortedList;
+import jtrace.object.Cube;
+import jtrace.object.Plane;
+import jtrace.object.SceneObject;
+import jtrace.object.Sphere;
+import jtrace.object.transformation.Scale;
+import jtrace.object.transformation.Translation;
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+/**
+ * Measures the time taken to find the nearest object hit by each camera
+ * ray through a shuffled mixture of spheres, cubes and planes, testing
+ * the objects in scene order, grouped by type using TypeSortedList, and
+ * using the object BVH.  Each method should be run in a fresh JVM, given
+ * as the first argument, so that the JIT's view of the intersection call
+ * sites is not shared between methods.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class DispatchBenchmark {
+    
+    static final int[] SIZES = {10, 40, 160};
+    static final int WIDTH = 200, HEIGHT = 150;
+    static final int REPEATS = 30;
+    
+    public static void main(String[] args) {
+        
+        String method = args.length > 0 ? args[0] : "sorted";
+        
+        Camera camera = new Camera(new Vector3D(0, -12, 8), new Vector3D(0, 0, 0),
+                Vector3D.PLUS_K, 1.0, 1.33);
+        Ray[] rays = new Ray[WIDTH*HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++)
+                rays[y*WIDTH + x] = camera.getRay(WIDTH, HEIGHT, x, y);
+        }
+        
+        for (int n : SIZES) {
+            List<SceneObject> objects = mixedObjects(n, new Random(42));
+            
+            AccelerationStructure accel;
+            switch (method) {
+                case "sorted":
+                    accel = new TypeSortedList(objects);
+                    break;
+                case "bvh":
+                    accel = new BVH(objects);
+                    break;
+                case "list":
+                    accel = null;
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                            "Method must be one of list, sorted or bvh.");
+            }
+            
+            System.out.format("%4d objects, %6s: %8.1f ns/ray\n",
+                    objects.size(), method, timeRays(objects, accel, rays));
+        }
+    }
+    
+    /**
+     * Create equal numbers of spheres and cubes at random positions above
+     * a pair of planes, in random order.
+     */
+    static List<SceneObject> mixedObjects(int n, Random random) {
+        List<SceneObject> objects = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            SceneObject object = i%2 == 0 ? new Sphere() : new Cube();
+            object.addTransformation(new Scale(0.3));
+            object.addTransformation(new Translation(
+                    8*random.nextDouble() - 4,
+                    8*random.nextDouble() - 4,
+                    2*random.nextDouble()));
+            objects.add(object);
+        }
+        
+        objects.add(new Plane());
+        Plane ceiling = new Plane();
+        ceiling.addTransformation(new Translation(0, 0, 5));
+        objects.add(ceiling);
+        
+        Collections.shuffle(objects, random);
+        
+        return objects;
+    }
+    
+    /**
+     * @return minimum time per ray in nanoseconds over several repeats.
+     */
+    static double timeRays(List<SceneObject> objects, AccelerationStructure accel,
+            Ray[] rays) {
+        
+        double[] distance = new double[1];
+        int hits = 0;
+        
+        double best = Double.POSITIVE_INFINITY;
+        for (int r = 0; r < REPEATS; r++) {
+            long start = System.nanoTime();
+            for (Ray ray : rays) {
+                SceneObject nearest = accel != null
+                        ? accel.findNearest(ray, distance)
+                        : findNearest(objects, ray);
+                if (nearest != null)
+                    hits += 1;
+            }
+            best = Math.min(best, (System.nanoTime() - start)/(double)rays.length);
+        }
+        
+        // Use result so that the search can't be optimised away:
+        if (hits < 0)
+            System.out.println(hits);
+        
+        return best;
+    }
+    
+    /**
+     * Find nearest object by testing each in scene order, as Scene does
+     * when no acceleration structure is set.
+     */
+    static SceneObject findNearest(List<SceneObject> objects, Ray ray) {
+        double nearestDist = Double.POSITIVE_INFINITY;
+        SceneObject nearest = null;
+        for (SceneObject object : objects) {
+            double dist = object.getFirstCollision(ray);
+            if (dist < nearestDist) {
+                nearest = object;
+                nearestDist = dist;
+            }
+        }
+        
+        return nearest;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.scenes;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import javax.imageio.ImageIO;
+import jtrace.Scene;
+import jtrace.io.SceneFile;
+
+/**
+ * Renders a scene description or compiled scene to a PNG image, or
+ * compiles a scene description:
+ * 
+ * <pre>
+ * RenderSceneFile scene out.png [width height [depth]]
+ * RenderSceneFile -compile scene.txt scene.bin
+ * </pre>
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class RenderSceneFile {
+    
+    public static void main(String[] args) throws IOException {
+        
+        if (args.length == 3 && args[0].equals("-compile")) {
+            SceneFile.compile(Paths.get(args[1]), Paths.get(args[2]));
+            return;
+        }
+        
+        if (args.length != 2 && args.length != 4 && args.length != 5) {
+            System.err.println("Usage: RenderSceneFile scene out.png [width height [depth]]\n"
+                    + "       RenderSceneFile -compile scene.txt scene.bin");
+            System.exit(1);
+        }
+        
+        int width = args.length > 2 ? Integer.parseInt(args[2]) : 640;
+        int height = args.length > 2 ? Integer.parseInt(args[3]) : 480;
+        int depth = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        
+        Scene scene = SceneFile.load(Paths.get(args[0]));
+        BufferedImage image = scene.render(width, height, depth);
+        ImageIO.write(image, "PNG", new File(args[1]));
+    }
+}
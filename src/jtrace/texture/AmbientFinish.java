@@ -41,5 +41,13 @@ public class AmbientFinish extends Finish {
     public Colour layerFinish(SceneObject object, Colour pigmentColour, Colour colour) {
         return colour.add(pigmentColour.scale(ambient));
     }
+
+    @Override
+    public void accumulateFinish(SceneObject object, Colour pigmentColour,
+            double[] rgb) {
+        rgb[0] += pigmentColour.getR()*ambient;
+        rgb[1] += pigmentColour.getG()*ambient;
+        rgb[2] += pigmentColour.getB()*ambient;
+    }
     
 }
@@ -17,9 +17,10 @@
 package jtrace.texture;
 
 import jtrace.Colour;
-import jtrace.LightSource;
+import jtrace.LightSample;
 import jtrace.Ray;
 import jtrace.object.SceneObject;
+import jtrace.sampler.Sampler;
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 
 /**
@@ -27,7 +28,7 @@ import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
  *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
-public class DiffuseFinish extends Finish {
+public class DiffuseFinish extends LightingFinish {
     
     double diffuse;
     
@@ -41,33 +42,53 @@ public class DiffuseFinish extends Finish {
     }
 
     @Override
-    public Colour layerFinish(SceneObject object, Colour pigmentColour, Colour colour) {
+    public void accumulateLight(SceneObject object, Colour pigmentColour,
+            LightSample sample, double[] rgb) {
         
-        Colour diffuseColour = new Colour(0,0,0);
+        // Projection of light source direction onto surface normal:
+        double projection = sample.direction
+                .dotProduct(object.getNormalRay().direction);
         
-        Ray normalRay = object.getNormalRay();
-        
-        for (LightSource light : object.getVisibleLights()) {
-
-            // Determine distance to and direction of light source
-            Vector3D lightDir = light.getLocation()
-                    .subtract(normalRay.origin);
-            double lightDistanceSq = lightDir.getNormSq();
-            lightDir = lightDir.normalize();
-            
-            // Projection of light source direction onto surface normal:
-            double projection = lightDir.dotProduct(normalRay.direction);
-            
-            if (projection>0.0) {
-                // Determine degree of illumination:
-                double illum = projection*light.getIntensity(lightDistanceSq);
-            
-                // Scale light colour by illumination and add to diffuse colour:
-                diffuseColour = diffuseColour
-                        .add(light.getColour().scale(illum));      
-            }
+        if (projection>0.0) {
+            // Scale light colour by illumination and filter by pigment:
+            double illum = projection*diffuse;
+            rgb[0] += pigmentColour.getR()*sample.r*illum;
+            rgb[1] += pigmentColour.getG()*sample.g*illum;
+            rgb[2] += pigmentColour.getB()*sample.b*illum;
         }
+    }
+    
+    @Override
+    public Colour getScatterFilter(SceneObject object, Colour pigmentColour) {
+        return pigmentColour.scale(diffuse);
+    }
+    
+    /**
+     * Cosine-weighted sample of the hemisphere on the incident side of
+     * the surface.
+     */
+    @Override
+    public Ray sampleScatteredRay(SceneObject object, Sampler sampler) {
+        
+        Vector3D normal = object.getNormalRay().direction.normalize();
+        if (object.isInternal())
+            normal = normal.negate();
+        
+        Vector3D a;
+        if (Math.abs(normal.getX()) < 0.9)
+            a = Vector3D.PLUS_I.crossProduct(normal).normalize();
+        else
+            a = Vector3D.PLUS_J.crossProduct(normal).normalize();
+        Vector3D b = normal.crossProduct(a);
+        
+        double[] uv = sampler.get2D();
+        double r = Math.sqrt(uv[0]);
+        double phi = 2.0*Math.PI*uv[1];
+        
+        Vector3D dir = new Vector3D(r*Math.cos(phi), a,
+                r*Math.sin(phi), b,
+                Math.sqrt(Math.max(0.0, 1.0 - uv[0])), normal);
         
-        return colour.add(pigmentColour.filter(diffuseColour).scale(diffuse));
+        return new Ray(object.getNormalRayRef().origin, dir);
     }
 }
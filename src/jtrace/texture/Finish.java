@@ -17,7 +17,9 @@
 package jtrace.texture;
 
 import jtrace.Colour;
+import jtrace.Ray;
 import jtrace.object.SceneObject;
+import jtrace.sampler.Sampler;
 
 /**
  * Abstract class encompassing finishes to apply to objects.
@@ -37,5 +39,65 @@ public abstract class Finish {
      */
     public abstract Colour layerFinish(SceneObject object,
             Colour pigmentColour, Colour colour);
+    
+    /**
+     * Incorporate colour due to finish into the texture colour held in
+     * an RGB accumulator, which is updated in place.  Finishes whose
+     * contribution is simply added to the existing colour override this
+     * to avoid creating intermediate colours.  The default implementation
+     * delegates to layerFinish().
+     * 
+     * @param object Object on which texture is to be applied.
+     * @param pigmentColour Colour of pigment
+     * @param rgb Red, green and blue components of colour resulting from
+     * previous finish applications
+     */
+    public void accumulateFinish(SceneObject object, Colour pigmentColour,
+            double[] rgb) {
+        Colour colour = layerFinish(object, pigmentColour,
+                new Colour(rgb[0], rgb[1], rgb[2]));
+        rgb[0] = colour.getR();
+        rgb[1] = colour.getG();
+        rgb[2] = colour.getB();
+    }
+    
+    /**
+     * Determine whether the contribution of this finish depends on the
+     * direction from which the surface is viewed.  View-independent
+     * contributions can be reused between animation frames in which only
+     * the camera moves.
+     * 
+     * @return true if finish is view dependent
+     */
+    public boolean isViewDependent() {
+        return false;
+    }
+    
+    /**
+     * Obtain filter applied to light scattered by this finish from
+     * elsewhere in the scene (as opposed to light arriving directly from
+     * light sources).  Used by the path tracer.  The default implementation
+     * returns null, indicating that the finish scatters no light.
+     * 
+     * @param object Object on which texture is to be applied.
+     * @param pigmentColour Colour of pigment
+     * @return scattering filter or null
+     */
+    public Colour getScatterFilter(SceneObject object, Colour pigmentColour) {
+        return null;
+    }
+    
+    /**
+     * Sample ray along which light scattered by this finish arrives at
+     * the most recent collision point, with a probability density
+     * proportional to the finish's scattering distribution.
+     * 
+     * @param object Object on which texture is to be applied.
+     * @param sampler Sampler positioned at current pixel sample
+     * @return scattered ray
+     */
+    public Ray sampleScatteredRay(SceneObject object, Sampler sampler) {
+        return null;
+    }
 
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.texture;
+
+import jtrace.Colour;
+import jtrace.LightSample;
+import jtrace.object.SceneObject;
+
+/**
+ * Shading code generated by FlatTexture for the finishes of one texture.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+interface FinishEvaluator {
+    
+    /**
+     * Add the contributions of all finishes at the most recent collision
+     * to the RGB accumulator.
+     * 
+     * @param object Object on which texture is to be applied.
+     * @param rgb Red, green and blue components of colour resulting from
+     * previous textures
+     * @throws Throwable if a finish throws
+     */
+    void evaluate(SceneObject object, double[] rgb) throws Throwable;
+    
+    /**
+     * Add the contributions of all lighting finishes for one light sample
+     * to the RGB accumulator.
+     * 
+     * @param object Object on which texture is to be applied.
+     * @param pigmentColour Colour of pigment
+     * @param sample Illumination from one visible light
+     * @param rgb Accumulator for red, green and blue components
+     * @throws Throwable if a finish throws
+     */
+    void accumulateLight(SceneObject object, Colour pigmentColour,
+            LightSample sample, double[] rgb) throws Throwable;
+}
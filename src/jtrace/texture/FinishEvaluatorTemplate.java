@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2012 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.texture;
+
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import jtrace.Colour;
+import jtrace.LightSample;
+import jtrace.object.SceneObject;
+
+/**
+ * Template from which FlatTexture generates a class for each texture
+ * that evaluates its finishes.  The class is never loaded under its own
+ * name: copies of its bytecode are defined as hidden classes whose class
+ * data holds the composed method handles of one texture.  Because these
+ * handles are held in static final fields, the JIT compiler treats them
+ * as constants and inlines the whole chain of finishes into evaluate()
+ * and accumulateLight().
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+final class FinishEvaluatorTemplate implements FinishEvaluator {
+    
+    private static final MethodHandle EVALUATOR, LIGHT_EVALUATOR;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            EVALUATOR = MethodHandles.classDataAt(lookup,
+                    ConstantDescs.DEFAULT_NAME, MethodHandle.class, 0);
+            LIGHT_EVALUATOR = MethodHandles.classDataAt(lookup,
+                    ConstantDescs.DEFAULT_NAME, MethodHandle.class, 1);
+        } catch (IllegalAccessException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    @Override
+    public void evaluate(SceneObject object, double[] rgb) throws Throwable {
+        EVALUATOR.invokeExact(object, rgb);
+    }
+
+    @Override
+    public void accumulateLight(SceneObject object, Colour pigmentColour,
+            LightSample sample, double[] rgb) throws Throwable {
+        LIGHT_EVALUATOR.invokeExact(object, pigmentColour, sample, rgb);
+    }
+}
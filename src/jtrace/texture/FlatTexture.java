@@ -16,10 +16,21 @@
  */
 package jtrace.texture;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import jtrace.Colour;
+import jtrace.LightSample;
+import jtrace.NotContent;
+import jtrace.Ray;
+import jtrace.Scene;
 import jtrace.object.SceneObject;
+import jtrace.sampler.Sampler;
 
 /**
  * A texture with a single pigment and set of finishes.
@@ -30,6 +41,55 @@ public class FlatTexture extends Texture {
     
     Pigment pigment;
     List<Finish> finishes;
+    List<LightingFinish> lightingFinishes;
+    List<TransparentFinish> transparentFinishes;
+    
+    /**
+     * Code generated for the pigment and finishes of this texture.  Built
+     * on first use by buildEvaluator() and discarded when a finish is
+     * added.
+     */
+    @NotContent FinishEvaluator evaluator;
+    
+    private static final MethodType FINISH_TYPE = MethodType.methodType(
+            void.class, SceneObject.class, Colour.class, double[].class);
+    private static final MethodType LIGHT_TYPE = MethodType.methodType(
+            void.class, SceneObject.class, Colour.class, LightSample.class,
+            double[].class);
+    
+    private static final MethodHandle GET_PIGMENT, ACCUMULATE_FINISH,
+            ACCUMULATE_LIGHT, ACCUMULATE_LIGHTING;
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            GET_PIGMENT = lookup.findVirtual(Pigment.class, "getPigment",
+                    MethodType.methodType(Colour.class, SceneObject.class));
+            ACCUMULATE_FINISH = lookup.findVirtual(Finish.class,
+                    "accumulateFinish", FINISH_TYPE);
+            ACCUMULATE_LIGHT = lookup.findVirtual(LightingFinish.class,
+                    "accumulateLight", LIGHT_TYPE);
+            ACCUMULATE_LIGHTING = lookup.findVirtual(FlatTexture.class,
+                    "accumulateLighting", FINISH_TYPE);
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+    
+    /**
+     * Bytecode of FinishEvaluatorTemplate, read when the first evaluator
+     * is generated.
+     */
+    private static class Template {
+        static final byte[] BYTES;
+        static {
+            try (InputStream in = FlatTexture.class.getResourceAsStream(
+                    "FinishEvaluatorTemplate.class")) {
+                BYTES = in.readAllBytes();
+            } catch (IOException ex) {
+                throw new ExceptionInInitializerError(ex);
+            }
+        }
+    }
     
     /**
      * Create a flat texture with a single pigment.
@@ -39,6 +99,8 @@ public class FlatTexture extends Texture {
     public FlatTexture(Pigment pigment) {
         this.pigment = pigment;
         finishes = new ArrayList<>();
+        lightingFinishes = new ArrayList<>();
+        transparentFinishes = new ArrayList<>();
     }
     
     /**
@@ -49,16 +111,246 @@ public class FlatTexture extends Texture {
      */
     public FlatTexture addFinish(Finish finish) {
         finishes.add(finish);
+        evaluator = null;
+        if (finish instanceof LightingFinish)
+            lightingFinishes.add((LightingFinish)finish);
+        if (finish instanceof TransparentFinish)
+            transparentFinishes.add((TransparentFinish)finish);
         return this;
     }
 
+    /**
+     * Generate the evaluator for this texture.  Method handles bound to
+     * the pigment and each finish are composed with foldArguments() into
+     * one handle applying the finishes in the order they were added.
+     * The lighting finishes are combined into a single stage at the
+     * position of the first of them, which sweeps the light samples once
+     * and applies a second composed handle to each.  The composed handles
+     * become the constants of a hidden class defined from
+     * FinishEvaluatorTemplate, so that each texture gets its own fused
+     * shading code.
+     */
+    private void buildEvaluator() {
+        MethodHandle light = MethodHandles.empty(LIGHT_TYPE);
+        for (int i = lightingFinishes.size() - 1; i >= 0; i--)
+            light = MethodHandles.foldArguments(light,
+                    ACCUMULATE_LIGHT.bindTo(lightingFinishes.get(i)));
+        
+        MethodHandle chain = MethodHandles.empty(FINISH_TYPE);
+        for (int i = finishes.size() - 1; i >= 0; i--) {
+            Finish finish = finishes.get(i);
+            if (!(finish instanceof LightingFinish))
+                chain = MethodHandles.foldArguments(chain,
+                        ACCUMULATE_FINISH.bindTo(finish));
+            else if (finish == lightingFinishes.get(0))
+                chain = MethodHandles.foldArguments(chain,
+                        ACCUMULATE_LIGHTING.bindTo(this));
+        }
+        
+        // Compute pigment colour once and pass it to every stage:
+        chain = MethodHandles.permuteArguments(chain,
+                MethodType.methodType(void.class, Colour.class,
+                        SceneObject.class, double[].class),
+                1, 0, 2);
+        
+        chain = MethodHandles.foldArguments(chain, GET_PIGMENT.bindTo(pigment));
+        
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClassWithClassData(Template.BYTES,
+                            Arrays.asList(chain, light), true);
+            evaluator = (FinishEvaluator)lookup.findConstructor(
+                    lookup.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
     @Override
     public Colour layerTextureColour(SceneObject object, Colour colour) {
+        double[] rgb = {colour.getR(), colour.getG(), colour.getB()};
+        accumulateTextureColour(object, rgb);
+        
+        return new Colour(rgb[0], rgb[1], rgb[2]);
+    }
+
+    @Override
+    public void accumulateTextureColour(SceneObject object, double[] rgb) {
+        if (evaluator == null)
+            buildEvaluator();
+        
+        try {
+            evaluator.evaluate(object, rgb);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * Apply all lighting finishes using a single sweep over the light
+     * sources visible from the collision point.
+     * 
+     * @param object Object on which texture is to be applied.
+     * @param pigmentColour Colour of pigment
+     * @param colour Colour resulting from previous finish applications
+     * @return New colour.
+     */
+    private Colour layerLighting(SceneObject object, Colour pigmentColour, Colour colour) {
+        double[] rgb = {colour.getR(), colour.getG(), colour.getB()};
+        accumulateLighting(object, pigmentColour, rgb);
+        
+        return new Colour(rgb[0], rgb[1], rgb[2]);
+    }
+    
+    /**
+     * Apply all lighting finishes using a single sweep over the light
+     * sources visible from the collision point, adding the result to the
+     * RGB accumulator.
+     * 
+     * @param object Object on which texture is to be applied.
+     * @param pigmentColour Colour of pigment
+     * @param rgb Red, green and blue components of colour resulting from
+     * previous finish applications
+     */
+    private void accumulateLighting(SceneObject object, Colour pigmentColour,
+            double[] rgb) {
+        if (evaluator == null)
+            buildEvaluator();
+        
+        // Sum over lights separately before adding to the colour of
+        // earlier finishes:
+        double[] lightingRGB = new double[3];
+        
+        Scene scene = object.getScene();
+        if (scene.isRecordingLightContributions()) {
+            double[] lightRGB = new double[3];
+            for (LightSample sample : object.getLightSamples()) {
+                lightRGB[0] = 0.0;
+                lightRGB[1] = 0.0;
+                lightRGB[2] = 0.0;
+                accumulateLight(object, pigmentColour, sample, lightRGB);
+                
+                scene.recordLightContribution(sample.light,
+                        new Colour(lightRGB[0], lightRGB[1], lightRGB[2]));
+                for (int i=0; i<3; i++)
+                    lightingRGB[i] += lightRGB[i];
+            }
+        } else {
+            for (LightSample sample : object.getLightSamples()) {
+                accumulateLight(object, pigmentColour, sample, lightingRGB);
+            }
+        }
+        
+        for (int i=0; i<3; i++)
+            rgb[i] += lightingRGB[i];
+    }
+    
+    /**
+     * Add contribution of all lighting finishes for one light sample.
+     */
+    private void accumulateLight(SceneObject object, Colour pigmentColour,
+            LightSample sample, double[] rgb) {
+        try {
+            evaluator.accumulateLight(object, pigmentColour, sample, rgb);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    @Override
+    public boolean isViewDependent() {
+        for (Finish finish : finishes) {
+            if (finish.isViewDependent())
+                return true;
+        }
+        
+        return false;
+    }
+    
+    @Override
+    public Colour getAlbedo(SceneObject object) {
+        return pigment.getPigment(object);
+    }
+    
+    @Override
+    public boolean isTransparent() {
+        return !transparentFinishes.isEmpty();
+    }
+    
+    @Override
+    public Colour getTransmittance(SceneObject object) {
+        if (transparentFinishes.isEmpty())
+            return null;
+        
         Colour pigmentColour = pigment.getPigment(object);
-        for (Finish finish : finishes)
-            colour = finish.layerFinish(object, pigmentColour, colour);
+        Colour transmittance = Colour.black;
+        for (TransparentFinish finish : transparentFinishes)
+            transmittance = transmittance.add(
+                    finish.getTransmissionFilter(pigmentColour));
+        
+        return transmittance;
+    }
+    
+    @Override
+    public boolean isTransmittanceUniform() {
+        return transparentFinishes.isEmpty() || pigment.isUniform();
+    }
+    
+    @Override
+    public Colour layerDirectColour(SceneObject object, Colour colour) {
+        if (lightingFinishes.isEmpty())
+            return colour;
+        
+        return layerLighting(object, pigment.getPigment(object), colour);
+    }
+    
+    /**
+     * Choose one of the scattering finishes with probability proportional
+     * to the largest component of its filter.
+     */
+    @Override
+    public Scatter sampleScatter(SceneObject object, Sampler sampler) {
+        Colour pigmentColour = pigment.getPigment(object);
+        
+        Colour[] filters = new Colour[finishes.size()];
+        double[] weights = new double[finishes.size()];
+        double totalWeight = 0.0;
+        for (int i=0; i<finishes.size(); i++) {
+            filters[i] = finishes.get(i).getScatterFilter(object, pigmentColour);
+            if (filters[i] != null) {
+                weights[i] = Math.max(filters[i].getR(),
+                        Math.max(filters[i].getG(), filters[i].getB()));
+                totalWeight += weights[i];
+            }
+        }
+        
+        if (totalWeight <= 0.0)
+            return null;
+        
+        double u = sampler.get1D()*totalWeight;
+        int chosen = -1;
+        for (int i=0; i<finishes.size(); i++) {
+            if (weights[i] > 0.0) {
+                chosen = i;
+                if (u < weights[i])
+                    break;
+                u -= weights[i];
+            }
+        }
+        
+        Ray ray = finishes.get(chosen).sampleScatteredRay(object, sampler);
+        if (ray == null)
+            return null;
         
-        return colour;
+        return new Scatter(ray,
+                filters[chosen].scale(totalWeight/weights[chosen]));
     }
     
 }
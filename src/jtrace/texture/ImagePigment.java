@@ -53,6 +53,19 @@ public class ImagePigment extends Pigment {
         this.scaleV = scaleV;
     }
     
+    /**
+     * Create a pigment using an already decoded image.
+     * 
+     * @param image
+     * @param scaleU
+     * @param scaleV 
+     */
+    public ImagePigment(BufferedImage image, double scaleU, double scaleV) {
+        this.image = image;
+        this.scaleU = scaleU;
+        this.scaleV = scaleV;
+    }
+    
     /**
      * Create a pigment using given image file.  The value of scale determines
      * the size of the image in the uv coodinate space.  The image will be
@@ -70,6 +83,18 @@ public class ImagePigment extends Pigment {
         this.scaleV = image.getWidth()/maxDim*scale;
     }
 
+    public BufferedImage getImage() {
+        return image;
+    }
+    
+    public double getScaleU() {
+        return scaleU;
+    }
+    
+    public double getScaleV() {
+        return scaleV;
+    }
+
     @Override
     public Colour getPigment(SceneObject object) {
         
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.texture;
+
+import jtrace.Colour;
+import jtrace.LightSample;
+import jtrace.object.SceneObject;
+
+/**
+ * Abstract class for finishes whose contribution is a sum over the light
+ * sources visible from the collision point.  FlatTexture combines all of
+ * its lighting finishes into a single sweep over the light samples.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public abstract class LightingFinish extends Finish {
+    
+    /**
+     * Add the contribution of a single light sample to the RGB accumulator.
+     * 
+     * @param object Object on which texture is to be applied.
+     * @param pigmentColour Colour of pigment
+     * @param sample Illumination from one visible light
+     * @param rgb Accumulator for red, green and blue components
+     */
+    public abstract void accumulateLight(SceneObject object,
+            Colour pigmentColour, LightSample sample, double[] rgb);
+
+    @Override
+    public Colour layerFinish(SceneObject object, Colour pigmentColour, Colour colour) {
+        
+        double[] rgb = new double[3];
+        for (LightSample sample : object.getLightSamples())
+            accumulateLight(object, pigmentColour, sample, rgb);
+        
+        return colour.add(new Colour(rgb[0], rgb[1], rgb[2]));
+    }
+
+    @Override
+    public void accumulateFinish(SceneObject object, Colour pigmentColour,
+            double[] rgb) {
+        
+        // Sum over lights separately, so that the result matches that of
+        // layerFinish() exactly:
+        double[] lightRGB = new double[3];
+        for (LightSample sample : object.getLightSamples())
+            accumulateLight(object, pigmentColour, sample, lightRGB);
+        
+        for (int i=0; i<3; i++)
+            rgb[i] += lightRGB[i];
+    }
+    
+}
@@ -20,6 +20,7 @@ import jtrace.Colour;
 import jtrace.Ray;
 import jtrace.Scene;
 import jtrace.object.SceneObject;
+import jtrace.sampler.Sampler;
 
 /**
  * Finish to add a truly reflective finish to an object.
@@ -50,5 +51,28 @@ public class MirrorFinish extends Finish {
         // Return mixture of reflected colour and existing finish colours:
         return colour.add(mirroredColour.scale(mirrorStrength));
     }
+
+    @Override
+    public void accumulateFinish(SceneObject object, Colour pigmentColour,
+            double[] rgb) {
+        Colour mirroredColour = object.getScene().traceRay(object.getReflectedRay());
+        rgb[0] += mirroredColour.getR()*mirrorStrength;
+        rgb[1] += mirroredColour.getG()*mirrorStrength;
+        rgb[2] += mirroredColour.getB()*mirrorStrength;
+    }
+
+    @Override
+    public Colour getScatterFilter(SceneObject object, Colour pigmentColour) {
+        return Colour.white.scale(mirrorStrength);
+    }
+
+    @Override
+    public Ray sampleScatteredRay(SceneObject object, Sampler sampler) {
+        return object.getReflectedRay();
+    }
     
+    @Override
+    public boolean isViewDependent() {
+        return true;
+    }
 }
@@ -34,4 +34,14 @@ public abstract class Pigment {
      */
     public abstract Colour getPigment(SceneObject object);
     
+    /**
+     * Determine whether the pigment has the same colour at every point.
+     * The default implementation conservatively returns false.
+     * 
+     * @return true if pigment colour is independent of collision point
+     */
+    public boolean isUniform() {
+        return false;
+    }
+    
 }
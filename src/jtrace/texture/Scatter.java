@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2014 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jtrace.texture;
+
+import jtrace.Colour;
+import jtrace.Ray;
+
+/**
+ * Ray along which a path is continued after scattering from a surface,
+ * together with the filter to apply to light arriving along that ray.
+ * The filter already accounts for the probability with which the
+ * scattering event was chosen.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class Scatter {
+    
+    public final Ray ray;
+    public final Colour filter;
+    
+    public Scatter(Ray ray, Colour filter) {
+        this.ray = ray;
+        this.filter = filter;
+    }
+}
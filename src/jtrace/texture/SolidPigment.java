@@ -42,4 +42,9 @@ public class SolidPigment extends Pigment {
         return pigmentColour;
     }
     
+    @Override
+    public boolean isUniform() {
+        return true;
+    }
+    
 }
@@ -16,20 +16,16 @@
  */
 package jtrace.texture;
 
-import java.util.List;
 import jtrace.Colour;
-import jtrace.LightSource;
-import jtrace.Ray;
-import jtrace.Scene;
+import jtrace.LightSample;
 import jtrace.object.SceneObject;
-import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 
 /**
  * Finish for adding specular highlights to a texture.
  *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
-public class SpecularFinish extends Finish {
+public class SpecularFinish extends LightingFinish {
     
     double specular;
     double tightness;
@@ -46,35 +42,26 @@ public class SpecularFinish extends Finish {
     }
 
     @Override
-    public Colour layerFinish(SceneObject object, Colour pigmentColour, Colour colour) {
+    public void accumulateLight(SceneObject object, Colour pigmentColour,
+            LightSample sample, double[] rgb) {
         
-        Colour specularColour = new Colour(0,0,0);
+        // Projection of light direction onto reflected ray:
+        double projection = sample.direction
+                .dotProduct(object.getReflectedRay().direction);
         
-        Ray incidentRay = object.getIncidentRay();
-        Ray normalRay = object.getNormalRay();
-        Ray reflectedRay = object.getReflectedRay();
-        
-        for (LightSource light : object.getVisibleLights()) {
-            
-            // Determine distance and direction to light:
-            Vector3D lightDir = light.getLocation().subtract(normalRay.origin);
-            double lightDistanceSq = lightDir.getNormSq();
-            lightDir = lightDir.normalize();
+        if (projection>0) {
+            // Degree of illumination:
+            double illum = Math.pow(projection,tightness);
             
-            // Projection of light direction onto reflected ray:
-            double projection = lightDir.dotProduct(reflectedRay.direction);
-            
-            if (projection>0) {
-                // Digree of illumination:
-                double illum = Math.pow(projection,tightness)
-                        *light.getIntensity(lightDistanceSq);
-                
-                // Scale light colour by intensity and add to specular colour:
-                specularColour = specularColour.add(light.getColour().scale(illum));
-            }
+            // Scale light colour by intensity and add to specular colour:
+            rgb[0] += sample.r*illum;
+            rgb[1] += sample.g*illum;
+            rgb[2] += sample.b*illum;
         }
-        
-        return colour.add(specularColour);
-        
+    }
+    
+    @Override
+    public boolean isViewDependent() {
+        return true;
     }
 }
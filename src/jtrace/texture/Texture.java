@@ -18,6 +18,7 @@ package jtrace.texture;
 
 import jtrace.Colour;
 import jtrace.object.SceneObject;
+import jtrace.sampler.Sampler;
 
 /**
  * Container for texture elements.
@@ -36,5 +37,102 @@ public abstract class Texture {
      */
     public abstract Colour layerTextureColour(SceneObject object, Colour colour);
     
+    /**
+     * Incorporate colour due to this texture at collision point into the
+     * colour derived from underlying textures, held in an RGB accumulator
+     * which is updated in place.  The default implementation delegates
+     * to layerTextureColour().
+     * 
+     * @param object Object with which ray has collided
+     * @param rgb Red, green and blue components of colour due to
+     * underlying texture layers
+     */
+    public void accumulateTextureColour(SceneObject object, double[] rgb) {
+        Colour colour = layerTextureColour(object,
+                new Colour(rgb[0], rgb[1], rgb[2]));
+        rgb[0] = colour.getR();
+        rgb[1] = colour.getG();
+        rgb[2] = colour.getB();
+    }
+    
+    /**
+     * Determine whether the colour of this texture depends on the direction
+     * from which the surface is viewed.  The default implementation
+     * conservatively returns true.
+     * 
+     * @return true if texture is view dependent
+     */
+    public boolean isViewDependent() {
+        return true;
+    }
+    
+    /**
+     * Obtain the intrinsic colour of the texture at the collision point,
+     * independent of illumination.
+     * 
+     * @param object Object with which ray has collided
+     * @return albedo, or null if texture has no well defined colour
+     */
+    public Colour getAlbedo(SceneObject object) {
+        return null;
+    }
+    
+    /**
+     * Determine whether any light from the light sources can pass through
+     * the texture.  The default implementation returns false.
+     * 
+     * @return true if texture is transparent
+     */
+    public boolean isTransparent() {
+        return false;
+    }
+    
+    /**
+     * Obtain filter applied to light from the light sources passing
+     * through the object at the collision point on its way to another
+     * surface.  The default implementation returns null, indicating that
+     * the texture is opaque.
+     * 
+     * @param object Object with which shadow ray has collided
+     * @return transmission filter, or null if texture is opaque
+     */
+    public Colour getTransmittance(SceneObject object) {
+        return null;
+    }
+    
+    /**
+     * Determine whether getTransmittance() returns the same filter at
+     * every point on the object, allowing it to be cached.
+     * 
+     * @return true if transmittance is independent of collision point
+     */
+    public boolean isTransmittanceUniform() {
+        return true;
+    }
+    
+    /**
+     * Incorporate colour due to light arriving directly from the light
+     * sources in the scene, excluding any contribution which requires
+     * tracing further rays.  Used by the path tracer for next event
+     * estimation.
+     * 
+     * @param object Object with which ray has collided
+     * @param colour Colour due to underlying texture layers
+     * @return New colour at collision point.
+     */
+    public Colour layerDirectColour(SceneObject object, Colour colour) {
+        return colour;
+    }
+    
+    /**
+     * Choose how to continue a path scattered by this texture.
+     * 
+     * @param object Object with which ray has collided
+     * @param sampler Sampler positioned at current pixel sample
+     * @return scattered ray and filter, or null if path is absorbed
+     */
+    public Scatter sampleScatter(SceneObject object, Sampler sampler) {
+        return null;
+    }
     
 }
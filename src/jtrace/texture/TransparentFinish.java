@@ -18,18 +18,29 @@ package jtrace.texture;
 
 import jtrace.Colour;
 import jtrace.Ray;
+import jtrace.Scene;
 import jtrace.object.SceneObject;
-import org.apache.commons.math3.geometry.euclidean.threed.Rotation;
+import jtrace.sampler.Sampler;
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 
 /**
  * Finish to allow refracted light to contribute to texture colour.
+ * Light is divided between the refracted and reflected directions
+ * according to Schlick's approximation to the Fresnel equations.  When
+ * either share falls below a cut-off, that direction is not traced and
+ * its share is given to the other.
  *
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 public class TransparentFinish extends Finish {
     
+    /**
+     * Default share of light below which a direction is not traced.
+     */
+    public static final double DEFAULT_BRANCH_CUTOFF = 0.02;
+    
     double ior;
+    double branchCutoff;
     
     /**
      * Create finish to simulate a transparent object with refractive
@@ -38,56 +49,169 @@ public class TransparentFinish extends Finish {
      * @param ior refractive index
      */
     public TransparentFinish(double ior) {
+        this(ior, DEFAULT_BRANCH_CUTOFF);
+    }
+    
+    /**
+     * Create finish to simulate a transparent object with refractive
+     * index ior relative to the surrounding space.
+     * 
+     * @param ior refractive index
+     * @param branchCutoff share of light below which the reflected or
+     * refracted ray is not traced.  Zero traces both whenever both
+     * contribute.
+     */
+    public TransparentFinish(double ior, double branchCutoff) {
         this.ior = ior;
+        this.branchCutoff = branchCutoff;
     }
     
     /**
-     * Obtain ray refracted according to Snell's law.
+     * Obtain ray refracted according to Snell's law, using the vector
+     * form t = eta*d + (eta*cos(i) - cos(t))*n for unit incident direction
+     * d and normal n facing the incident ray.
      * 
      * @param incidentRay
      * @param normalRay
-     * @return refracted ray
+     * @return refracted ray, or null in case of total internal reflection
      */
     Ray getRefractedRay(Ray incidentRay, Ray normalRay) {
- 
+        
+        Vector3D normal = normalRay.direction;
+        double invNorm = 1.0/incidentRay.direction.getNorm();
+        double cosI = -incidentRay.direction.dotProduct(normal)*invNorm;
+        
         // Check direction of incident ray (inside to out or outside to in)
         // and adjust ior accordingly:
-        double snellFactor;
-        Vector3D axis;
-        if (incidentRay.direction.dotProduct(normalRay.direction)<0.0) {
-            snellFactor = 1.0/ior;
-            axis = incidentRay.direction.crossProduct(normalRay.direction);
+        double eta;
+        if (cosI > 0.0) {
+            eta = 1.0/ior;
         } else {
-            snellFactor = ior;
-            axis = normalRay.direction.crossProduct(incidentRay.direction);
+            eta = ior;
+            cosI = -cosI;
+            normal = normal.negate();
         }
         
-        if (axis.getNorm()>0) {
-            axis = axis.normalize();
-        } else {
-            return new Ray(normalRay.getOrigin(), incidentRay.direction);
-        }
+        double sinSqT = eta*eta*(1.0 - cosI*cosI);
+        if (sinSqT > 1.0)
+            return null;
         
-        double angle = Math.asin((incidentRay.direction.normalize().crossProduct(normalRay.direction).normalize()).getNorm());
-        double newAngle = Math.asin(snellFactor*Math.sin(angle));
+        double cosT = Math.sqrt(1.0 - sinSqT);
         
-        Rotation rotation = new Rotation(axis, newAngle - angle);
-
-        Vector3D refractedDir = rotation.applyTo(incidentRay.direction);
+        return new Ray(normalRay.getOrigin(), new Vector3D(eta*invNorm,
+                incidentRay.direction, eta*cosI - cosT, normal));
+    }
+    
+    /**
+     * Obtain fraction of light reflected, using Schlick's approximation
+     * evaluated at the larger of the incident and refracted angles.
+     * 
+     * @param incidentRay
+     * @param normalRay
+     * @param refractedRay refracted ray, or null in case of total internal
+     * reflection
+     * @return reflectance
+     */
+    double getReflectance(Ray incidentRay, Ray normalRay, Ray refractedRay) {
+        if (refractedRay == null)
+            return 1.0;
+        
+        double cosI = Math.abs(incidentRay.direction.dotProduct(normalRay.direction))
+                /incidentRay.direction.getNorm();
+        double cosT = Math.abs(refractedRay.direction.dotProduct(normalRay.direction));
         
-        return new Ray(normalRay.getOrigin(), refractedDir);
+        double r0 = (ior - 1.0)/(ior + 1.0);
+        r0 *= r0;
+        double x = 1.0 - Math.min(cosI, cosT);
+        
+        return r0 + (1.0 - r0)*x*x*x*x*x;
     }
 
     @Override
     public Colour layerFinish(SceneObject object, Colour pigmentColour, Colour colour) {
+        double[] rgb = {colour.getR(), colour.getG(), colour.getB()};
+        accumulateFinish(object, pigmentColour, rgb);
+        
+        return new Colour(rgb[0], rgb[1], rgb[2]);
+    }
 
-        // Trace refracted ray through scene:
+    @Override
+    public void accumulateFinish(SceneObject object, Colour pigmentColour,
+            double[] rgb) {
+        
+        // Obtain both rays before tracing either, as tracing may replace
+        // the object's collision:
         Ray refractedRay = getRefractedRay(object.getIncidentRay(),
                 object.getNormalRayTrans());
-        Colour transmittedColour = object.getScene().traceRay(refractedRay);
+        Ray reflectedRay = object.getReflectedRay();
+        
+        double reflectance = getReflectance(object.getIncidentRay(),
+                object.getNormalRayTrans(), refractedRay);
+        if (reflectance < branchCutoff)
+            reflectance = 0.0;
+        else if (1.0 - reflectance < branchCutoff)
+            reflectance = 1.0;
+        
+        Scene scene = object.getScene();
+        
+        // Combine refracted and reflected colours with existing finish
+        // colours:
+        if (reflectance < 1.0) {
+            Colour transmittedColour = scene.traceRay(refractedRay);
+            double transmittance = 1.0 - reflectance;
+            rgb[0] += transmittedColour.getR()*pigmentColour.getR()*transmittance;
+            rgb[1] += transmittedColour.getG()*pigmentColour.getG()*transmittance;
+            rgb[2] += transmittedColour.getB()*pigmentColour.getB()*transmittance;
+        }
+        
+        if (reflectance > 0.0) {
+            Colour reflectedColour = scene.traceRay(reflectedRay);
+            rgb[0] += reflectedColour.getR()*reflectance;
+            rgb[1] += reflectedColour.getG()*reflectance;
+            rgb[2] += reflectedColour.getB()*reflectance;
+        }
+    }
+
+    /**
+     * Obtain filter applied to light passing straight through an object
+     * with this finish, as seen by shadow rays.  Light is taken to cross
+     * two surfaces at normal incidence, so refraction and the variation
+     * of reflectance with angle are ignored.
+     * 
+     * @param pigmentColour Colour of pigment
+     * @return transmission filter
+     */
+    public Colour getTransmissionFilter(Colour pigmentColour) {
+        double r0 = (ior - 1.0)/(ior + 1.0);
+        r0 *= r0;
         
-        // Combine refracted colour with existing finish colours:
-        return transmittedColour.filter(pigmentColour).add(colour);
+        return pigmentColour.scale((1.0 - r0)*(1.0 - r0));
+    }
+
+    @Override
+    public Colour getScatterFilter(SceneObject object, Colour pigmentColour) {
+        return pigmentColour;
+    }
+
+    /**
+     * Choose the refracted or reflected ray with probabilities given by
+     * their shares of the light.
+     */
+    @Override
+    public Ray sampleScatteredRay(SceneObject object, Sampler sampler) {
+        Ray refractedRay = getRefractedRay(object.getIncidentRay(),
+                object.getNormalRayTrans());
+        
+        double reflectance = getReflectance(object.getIncidentRay(),
+                object.getNormalRayTrans(), refractedRay);
+        if (sampler.get1D() < reflectance)
+            return object.getReflectedRay();
+        
+        return refractedRay;
     }
     
+    @Override
+    public boolean isViewDependent() {
+        return true;
+    }
 }